@@ -0,0 +1,157 @@
+package benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.jme3.network.Client;
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+import com.jme3.network.Server;
+import com.jme3.network.serializing.Serializer;
+
+import diff.DiffClassRegistration;
+import diff.MessageSerialization;
+import example.GameStateMessage;
+
+/**
+ * The game states and the stand-ins for the jME server, connections and
+ * client that the benchmarks share. A game state is a
+ * {@link GameStateMessage} with a list of floats that is sized to a given
+ * number of serialized bytes, of which a given fraction changes every tick.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+final class BenchmarkStates {
+	private static boolean registered;
+
+	private BenchmarkStates() {
+	}
+
+	public static synchronized void registerClasses() {
+		if (!registered) {
+			DiffClassRegistration.registerClasses();
+			Serializer.registerClass(GameStateMessage.class);
+			registered = true;
+		}
+	}
+
+	/**
+	 * Creates the game state of a tick. Every float that changes gets a value
+	 * that is unique for the tick, the others keep their value.
+	 * 
+	 * @param floats
+	 *            Number of floats in the state
+	 * @param changeDensity
+	 *            Fraction of the floats that changes every tick
+	 * @param tick
+	 *            The tick
+	 * @return The game state
+	 */
+	public static GameStateMessage createState(int floats,
+			double changeDensity, int tick) {
+		int period = Math.max(1, (int) Math.round(1 / changeDensity));
+		List<Float> position = new ArrayList<>(floats);
+		for (int i = 0; i < floats; i++) {
+			position.add(i % period == 0 ? (float) tick + i : (float) i);
+		}
+
+		List<Float> orientation = new ArrayList<>(Arrays.asList(0.5f, 0.6f,
+				0.7f));
+		return new GameStateMessage("benchmark", position, orientation,
+				(byte) tick);
+	}
+
+	/**
+	 * Gets the number of floats that makes the serialized game state about
+	 * the given size, but at least one.
+	 * 
+	 * @param stateSize
+	 *            Size of the serialized state in bytes
+	 * @return Number of floats
+	 */
+	public static int getFloats(int stateSize) {
+		registerClasses();
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		int empty = MessageSerialization.serialize(createState(0, 1, 0),
+				buffer).remaining();
+		int perFloat = MessageSerialization.serialize(createState(1, 1, 0),
+				buffer).remaining()
+				- empty;
+		return Math.max(1, (stateSize - empty) / perFloat);
+	}
+
+	/**
+	 * Creates a server that serializes every message it broadcasts, like the
+	 * real server does, but does not send it anywhere.
+	 */
+	public static Server createServer(final List<HostedConnection> connections) {
+		return (Server) Proxy.newProxyInstance(
+				BenchmarkStates.class.getClassLoader(),
+				new Class<?>[] { Server.class }, new InvocationHandler() {
+					private ByteBuffer serialized = ByteBuffer.allocate(4096);
+
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						switch (method.getName()) {
+						case "getConnections":
+							return connections;
+						case "hasConnections":
+							return !connections.isEmpty();
+						case "broadcast":
+							serialized = MessageSerialization.serialize(
+									(Message) args[args.length - 1],
+									serialized);
+							return null;
+						default:
+							return null;
+						}
+					}
+				});
+	}
+
+	public static HostedConnection createConnection(final int id) {
+		return (HostedConnection) Proxy.newProxyInstance(
+				BenchmarkStates.class.getClassLoader(),
+				new Class<?>[] { HostedConnection.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						switch (method.getName()) {
+						case "getId":
+						case "hashCode":
+							return id;
+						case "equals":
+							return proxy == args[0];
+						case "toString":
+							return "Connection " + id;
+						default:
+							return null;
+						}
+					}
+				});
+	}
+
+	/**
+	 * Creates a client that ignores the acknowledgments that are sent to the
+	 * server.
+	 */
+	public static Client createClient() {
+		return (Client) Proxy.newProxyInstance(
+				BenchmarkStates.class.getClassLoader(),
+				new Class<?>[] { Client.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						return null;
+					}
+				});
+	}
+}
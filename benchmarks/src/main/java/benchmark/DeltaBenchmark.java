@@ -0,0 +1,104 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme3.network.Message;
+import com.jme3.network.serializing.Serializer;
+
+import diff.DeltaCache;
+import diff.DiffMessage;
+import diff.HeapSnapshotStore;
+import diff.SnapshotStore;
+import example.GameStateMessage;
+
+/**
+ * Measures the server side of a delta: generating it from two serialized
+ * snapshots with {@link DeltaCache#generateDelta}, which tries every codec,
+ * and writing and reading the resulting {@link DiffMessage} with its
+ * serializer.
+ * <p>
+ * Usage: {@code java -jar benchmarks/target/benchmarks.jar DeltaBenchmark -prof gc}
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeltaBenchmark {
+	/** Size of the serialized state in bytes */
+	@Param({ "64", "1024", "16384", "65536" })
+	public int stateSize;
+
+	/** Fraction of the state that changes every tick */
+	@Param({ "0.01", "0.1", "0.5" })
+	public double changeDensity;
+
+	private DeltaCache<GameStateMessage> deltaCache;
+	private SnapshotStore store;
+	private GameStateMessage message;
+	private DiffMessage diffMessage;
+	private Serializer serializer;
+	private ByteBuffer buffer;
+
+	@Setup
+	public void setup() {
+		BenchmarkStates.registerClasses();
+		int floats = BenchmarkStates.getFloats(stateSize);
+
+		store = new HeapSnapshotStore((short) 2);
+		store.store((short) 0, BenchmarkStates.createState(floats,
+				changeDensity, 0));
+		message = BenchmarkStates.createState(floats, changeDensity, 1);
+		store.store((short) 1, message);
+
+		deltaCache = new DeltaCache<>();
+		Message delta = generateDelta();
+		if (!(delta instanceof DiffMessage)) {
+			throw new IllegalStateException(
+					"The delta is not smaller than the message");
+		}
+
+		diffMessage = (DiffMessage) delta;
+		serializer = Serializer.getSerializer(DiffMessage.class);
+		buffer = ByteBuffer.allocate(stateSize * 2 + 64);
+	}
+
+	@Benchmark
+	public Message generateDelta() {
+		return deltaCache.generateDelta(store.get((short) 1),
+				store.get((short) 0), message, (short) 0);
+	}
+
+	@Benchmark
+	public ByteBuffer writeDiffMessage() throws IOException {
+		buffer.clear();
+		serializer.writeObject(buffer, diffMessage);
+		return buffer;
+	}
+
+	@Benchmark
+	public DiffMessage writeAndReadDiffMessage() throws IOException {
+		buffer.clear();
+		serializer.writeObject(buffer, diffMessage);
+		buffer.flip();
+		return serializer.readObject(buffer, DiffMessage.class);
+	}
+}
@@ -0,0 +1,138 @@
+package benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import diff.DeltaCodec;
+import diff.HeapSnapshotStore;
+import diff.IntBitmaskCodec;
+import diff.SnapshotStore;
+import diff.VarintChangeListCodec;
+import diff.XorRunLengthCodec;
+
+/**
+ * Compares the kernel that finds the changes between two large snapshots:
+ * the codecs, which skip unchanged regions with a vectorized comparison,
+ * against the loop that compares the snapshots an int at a time, which the
+ * bitmask codec used before. The snapshots are random bytes of which a given fraction of
+ * the ints changes, read from a snapshot store like on the server.
+ * <p>
+ * Usage: {@code java -jar benchmarks/target/benchmarks.jar DiffKernelBenchmark}
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiffKernelBenchmark {
+	/** Size of the serialized state in bytes */
+	@Param({ "16384", "65536", "102400" })
+	public int stateSize;
+
+	/** Fraction of the ints that changes every tick */
+	@Param({ "0.001", "0.01", "0.1" })
+	public double changeDensity;
+
+	private SnapshotStore store;
+	private ByteBuffer target;
+	private DeltaCodec scalarIntBitmask;
+	private DeltaCodec intBitmask;
+	private DeltaCodec varintChangeList;
+	private DeltaCodec xorRunLength;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		byte[] baseline = new byte[stateSize];
+		random.nextBytes(baseline);
+		byte[] message = baseline.clone();
+		for (int i = 0; i < stateSize / 4; i++) {
+			if (random.nextDouble() < changeDensity) {
+				message[i * 4 + random.nextInt(4)]++;
+			}
+		}
+
+		store = new HeapSnapshotStore((short) 2);
+		store.store((short) 0, ByteBuffer.wrap(baseline));
+		store.store((short) 1, ByteBuffer.wrap(message));
+		target = ByteBuffer.allocate(stateSize * 2 + 64);
+
+		scalarIntBitmask = new ScalarIntBitmaskCodec();
+		intBitmask = new IntBitmaskCodec();
+		varintChangeList = new VarintChangeListCodec();
+		xorRunLength = new XorRunLengthCodec();
+	}
+
+	/**
+	 * The int bitmask delta, generated by comparing an int at a time.
+	 */
+	@Benchmark
+	public ByteBuffer scalarIntBitmask() {
+		return encode(scalarIntBitmask);
+	}
+
+	@Benchmark
+	public ByteBuffer intBitmask() {
+		return encode(intBitmask);
+	}
+
+	@Benchmark
+	public ByteBuffer varintChangeList() {
+		return encode(varintChangeList);
+	}
+
+	@Benchmark
+	public ByteBuffer xorRunLength() {
+		return encode(xorRunLength);
+	}
+
+	private ByteBuffer encode(DeltaCodec codec) {
+		target.clear();
+		codec.encode(store.get((short) 0), store.get((short) 1), target);
+		return target;
+	}
+
+	/**
+	 * The int bitmask codec with the loop it had before unchanged regions
+	 * were skipped.
+	 */
+	private static class ScalarIntBitmaskCodec extends IntBitmaskCodec {
+		@Override
+		public void encode(ByteBuffer baseline, ByteBuffer message,
+				ByteBuffer target) {
+			int numInts = (message.remaining() + 3) / 4;
+			int flagStart = target.position();
+
+			// reserve space for the flags
+			for (int i = 0; i < (numInts + 7) / 8; i++) {
+				target.put((byte) 0);
+			}
+
+			for (int i = 0; i < numInts; i++) {
+				int val = getInt(message, i * 4);
+				if (val != getInt(baseline, i * 4)) {
+					target.putInt(val);
+					target.put(flagStart + i / 8,
+							(byte) (target.get(flagStart + i / 8) | 1 << (i % 8)));
+				}
+			}
+		}
+	}
+}
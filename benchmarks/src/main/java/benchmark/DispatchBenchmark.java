@@ -0,0 +1,128 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme3.network.Filter;
+import com.jme3.network.Filters;
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Server;
+
+import diff.AckMessage;
+import diff.ServerDiffHandler;
+import example.GameStateMessage;
+
+/**
+ * Measures one tick of {@link ServerDiffHandler#dispatchMessage}, including
+ * the acknowledgments of the clients, for a number of clients and history
+ * depths. The server is a stand-in that only serializes the messages that
+ * are broadcast, like the real server does. The clients acknowledge messages
+ * with delays up to the history depth, so that there are several baselines
+ * per tick.
+ * <p>
+ * Usage: {@code java -jar benchmarks/target/benchmarks.jar DispatchBenchmark -prof gc}
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+	private static final int NUM_STATES = 16;
+
+	@Param({ "1", "16", "256" })
+	public int clients;
+
+	@Param({ "8", "32" })
+	public short historyDepth;
+
+	/** Size of the serialized state in bytes */
+	@Param({ "1024", "16384" })
+	public int stateSize;
+
+	/** Fraction of the state that changes every tick */
+	@Param({ "0.1" })
+	public double changeDensity;
+
+	/** Generate the deltas of the groups of clients in parallel */
+	@Param({ "false", "true" })
+	public boolean parallel;
+
+	private List<HostedConnection> connections;
+	private Server server;
+	private ServerDiffHandler<GameStateMessage> handler;
+	private Filter<HostedConnection> filter;
+	private GameStateMessage[] states;
+	private ExecutorService executor;
+	private int tick;
+
+	@Setup
+	public void setup() {
+		BenchmarkStates.registerClasses();
+		int floats = BenchmarkStates.getFloats(stateSize);
+
+		connections = new ArrayList<>();
+		for (int i = 0; i < clients; i++) {
+			connections.add(BenchmarkStates.createConnection(i));
+		}
+
+		server = BenchmarkStates.createServer(connections);
+		handler = new ServerDiffHandler<>(server, historyDepth);
+		if (parallel) {
+			executor = new ForkJoinPool();
+			handler.setExecutor(executor);
+		}
+
+		filter = Filters.in(connections);
+		states = new GameStateMessage[NUM_STATES];
+		for (int i = 0; i < states.length; i++) {
+			states[i] = BenchmarkStates.createState(floats, changeDensity, i);
+		}
+
+		tick = 0;
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	@Benchmark
+	public void dispatchMessage() {
+		handler.dispatchMessage(server, filter, states[tick % states.length]);
+
+		/* Acknowledge with a delay that depends on the client */
+		for (int i = 0; i < clients; i++) {
+			short label = (short) (tick - i % historyDepth);
+			if (label >= 0) {
+				handler.messageReceived(connections.get(i), new AckMessage(
+						label));
+			}
+		}
+
+		// follow the labels of the handler, which wrap to 0
+		tick = (tick + 1) & Short.MAX_VALUE;
+	}
+}
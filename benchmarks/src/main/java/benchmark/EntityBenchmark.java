@@ -0,0 +1,163 @@
+package benchmark;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import com.jme3.network.AbstractMessage;
+import com.jme3.network.serializing.Serializable;
+import com.jme3.network.serializing.Serializer;
+
+import diff.DeltaCodec;
+import diff.DeltaCodecs;
+import diff.DiffClassRegistration;
+import diff.Entity;
+import diff.EntityMessage;
+import diff.EntityMessageSerializer;
+import diff.HeapSnapshotStore;
+import diff.SnapshotStore;
+
+/**
+ * Measures the size of the deltas and the time to encode them for every codec,
+ * for game states that consist of hundreds of entities. Every tick, a few
+ * entities move, and sometimes an entity is spawned or removed.
+ * <p>
+ * Usage: {@code EntityBenchmark [entities] [ticks]}
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class EntityBenchmark {
+	private static final Random random = new Random(42);
+
+	@Serializable
+	public static class Player implements Entity {
+		private int id;
+		private float x, y, z;
+		private short health;
+		private String name;
+
+		public Player() {
+		}
+
+		public Player(int id) {
+			this.id = id;
+			name = "player" + id;
+			health = 100;
+		}
+
+		@Override
+		public int getEntityId() {
+			return id;
+		}
+	}
+
+	@Serializable
+	public static class WorldState extends AbstractMessage implements
+			EntityMessage<Player> {
+		private transient List<Player> players;
+		private int tick;
+
+		public WorldState() {
+			super(false);
+		}
+
+		public WorldState(int tick, List<Player> players) {
+			super(false);
+			this.tick = tick;
+			this.players = players;
+		}
+
+		@Override
+		public Collection<Player> getEntities() {
+			return players;
+		}
+
+		@Override
+		public void setEntities(List<Player> entities) {
+			players = entities;
+		}
+	}
+
+	private static void tick(Map<Integer, Player> players, int tick) {
+		for (Player player : players.values()) {
+			if (random.nextInt(10) == 0) {
+				player.x += 0.5f;
+				player.z -= 0.25f;
+			}
+		}
+
+		if (random.nextInt(4) == 0) {
+			int id = random.nextInt(players.size() * 2);
+			if (players.remove(id) == null) {
+				players.put(id, new Player(id));
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		int entities = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+		int ticks = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		DiffClassRegistration.registerClasses();
+		Serializer.registerClass(Player.class);
+		Serializer.registerClass(WorldState.class,
+				new EntityMessageSerializer());
+
+		Map<Integer, Player> players = new TreeMap<>();
+		for (int i = 0; i < entities; i++) {
+			players.put(i * 2, new Player(i * 2));
+		}
+
+		/* Serialize all states in advance */
+		SnapshotStore store = new HeapSnapshotStore((short) (ticks + 1));
+		for (int tick = 0; tick <= ticks; tick++) {
+			store.store((short) tick, new WorldState(tick, new ArrayList<>(
+					players.values())));
+			tick(players, tick);
+		}
+
+		ByteBuffer target = ByteBuffer.allocate(32767 + 2);
+		System.out.println(entities + " entities, " + ticks + " ticks, "
+				+ store.get((short) 0).remaining() + " bytes per message");
+		System.out.println(String.format("%-24s %12s %12s", "codec",
+				"avg bytes", "encode (us)"));
+
+		for (DeltaCodec codec : DeltaCodecs.getAll()) {
+			// warm up
+			encodeAll(codec, store, ticks, target);
+
+			long start = System.nanoTime();
+			long bytes = encodeAll(codec, store, ticks, target);
+			long time = System.nanoTime() - start;
+
+			System.out.println(String.format("%-24s %12d %12.3f", codec
+					.getClass().getSimpleName(), bytes / ticks, time / 1e3
+					/ ticks));
+		}
+	}
+
+	private static long encodeAll(DeltaCodec codec, SnapshotStore store,
+			int ticks, ByteBuffer target) {
+		long bytes = 0;
+		for (int tick = 1; tick <= ticks; tick++) {
+			ByteBuffer message = store.get((short) tick);
+			target.clear();
+			target.limit(message.remaining());
+
+			try {
+				codec.encode(store.get((short) (tick - 1)), message, target);
+				bytes += target.position();
+			} catch (BufferOverflowException e) {
+				bytes += message.remaining(); // a full message is sent
+			}
+		}
+
+		return bytes;
+	}
+}
@@ -0,0 +1,117 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import diff.ClientDiffHandler;
+import diff.DeltaCache;
+import diff.DiffMessage;
+import diff.DiffMessageSerializer;
+import diff.HeapSnapshotStore;
+import diff.LabeledMessage;
+import diff.SnapshotStore;
+import example.GameStateMessage;
+
+/**
+ * Measures {@link ClientDiffHandler#mergeMessage} in the steady state, where
+ * every delta message is merged with a baseline in the history of the client.
+ * Run with the gc profiler to compare the allocation per merge with the
+ * allocation of deserializing a full message, which is the lower bound.
+ * The read benchmarks include reading the delta message from a packet, with
+ * a copy of its data or as a zero-copy view.
+ * <p>
+ * Usage: {@code java -jar benchmarks/target/benchmarks.jar MergeBenchmark -prof gc}
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergeBenchmark {
+	/** Size of the serialized state in bytes */
+	@Param({ "64", "1024", "16384", "65536" })
+	public int stateSize;
+
+	/** Fraction of the state that changes every tick */
+	@Param({ "0.01", "0.1", "0.5" })
+	public double changeDensity;
+
+	private ClientDiffHandler<GameStateMessage> handler;
+	private DiffMessage diffMessage;
+	private ByteBuffer packet;
+	private DiffMessageSerializer copyingSerializer;
+	private DiffMessageSerializer zeroCopySerializer;
+
+	@Setup
+	public void setup() {
+		BenchmarkStates.registerClasses();
+		int floats = BenchmarkStates.getFloats(stateSize);
+
+		/* Generate the delta on the server side */
+		GameStateMessage baseline = BenchmarkStates.createState(floats,
+				changeDensity, 0);
+		GameStateMessage message = BenchmarkStates.createState(floats,
+				changeDensity, 1);
+		SnapshotStore serverStore = new HeapSnapshotStore((short) 2);
+		serverStore.store((short) 0, baseline);
+		serverStore.store((short) 1, message);
+		diffMessage = (DiffMessage) new DeltaCache<GameStateMessage>()
+				.generateDelta(serverStore.get((short) 1),
+						serverStore.get((short) 0), message, (short) 0);
+
+		packet = ByteBuffer.allocate(stateSize * 2 + 64);
+		try {
+			new DiffMessageSerializer().writeObject(packet, diffMessage);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		packet.flip();
+		copyingSerializer = new DiffMessageSerializer(null, 0, false);
+		zeroCopySerializer = new DiffMessageSerializer(null, 0, true);
+
+		/* Seed the client with the baseline of the delta */
+		handler = new ClientDiffHandler<>(BenchmarkStates.createClient(),
+				GameStateMessage.class, (short) 32);
+		handler.messageReceived(BenchmarkStates.createClient(),
+				new LabeledMessage((short) 0, baseline));
+	}
+
+	@Benchmark
+	public GameStateMessage mergeMessage() {
+		return handler.mergeMessage((short) 1, diffMessage);
+	}
+
+	@Benchmark
+	public GameStateMessage readAndMerge() throws IOException {
+		return readAndMerge(copyingSerializer);
+	}
+
+	@Benchmark
+	public GameStateMessage readAndMergeZeroCopy() throws IOException {
+		return readAndMerge(zeroCopySerializer);
+	}
+
+	private GameStateMessage readAndMerge(DiffMessageSerializer serializer)
+			throws IOException {
+		packet.rewind();
+		return handler.mergeMessage((short) 1,
+				serializer.readObject(packet, DiffMessage.class));
+	}
+}
@@ -0,0 +1,108 @@
+package benchmark;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.jme3.network.serializing.Serializer;
+
+import diff.DeltaCodec;
+import diff.DeltaCodecs;
+import diff.DiffClassRegistration;
+import diff.HeapSnapshotStore;
+import diff.SnapshotStore;
+import example.GameStateMessage;
+
+/**
+ * Measures the size of the deltas and the time to encode them for every codec,
+ * for game states where entities are added and removed, so that the rest of
+ * the serialized message shifts. Every entity is a position of three floats,
+ * of which a few change every tick.
+ * <p>
+ * Usage: {@code ShiftBenchmark [entities] [ticks]}
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class ShiftBenchmark {
+	private static final Random random = new Random(42);
+
+	private static void tick(List<Float> entities, int tick) {
+		/* Move some entities */
+		for (int i = 0; i < entities.size(); i += 30) {
+			entities.set(i, (float) tick + i);
+		}
+
+		/* Add or remove an entity at a random place */
+		int index = random.nextInt(entities.size() / 3) * 3;
+		if (random.nextBoolean()) {
+			entities.subList(index, index + 3).clear();
+		} else {
+			entities.addAll(index, Arrays.asList((float) tick, 1f, 2f));
+		}
+	}
+
+	public static void main(String[] args) {
+		int entities = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int ticks = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		DiffClassRegistration.registerClasses();
+		Serializer.registerClass(GameStateMessage.class);
+
+		List<Float> state = new ArrayList<>(entities * 3);
+		for (int i = 0; i < entities * 3; i++) {
+			state.add((float) i);
+		}
+
+		/* Serialize all states in advance */
+		SnapshotStore store = new HeapSnapshotStore((short) (ticks + 1));
+		for (int tick = 0; tick <= ticks; tick++) {
+			store.store((short) tick, new GameStateMessage("entities "
+					+ state.size() / 3, new ArrayList<>(state),
+					new ArrayList<>(Arrays.asList(0.5f, 0.6f, 0.7f)),
+					(byte) tick));
+			tick(state, tick);
+		}
+
+		ByteBuffer target = ByteBuffer.allocate(32767 + 2);
+		System.out.println(entities + " entities, " + ticks + " ticks, "
+				+ store.get((short) 0).remaining() + " bytes per message");
+		System.out.println(String.format("%-24s %12s %12s", "codec",
+				"avg bytes", "encode (us)"));
+
+		for (DeltaCodec codec : DeltaCodecs.getAll()) {
+			// warm up
+			encodeAll(codec, store, ticks, target);
+
+			long start = System.nanoTime();
+			long bytes = encodeAll(codec, store, ticks, target);
+			long time = System.nanoTime() - start;
+
+			System.out.println(String.format("%-24s %12d %12.3f", codec
+					.getClass().getSimpleName(), bytes / ticks, time / 1e3
+					/ ticks));
+		}
+	}
+
+	private static long encodeAll(DeltaCodec codec, SnapshotStore store,
+			int ticks, ByteBuffer target) {
+		long bytes = 0;
+		for (int tick = 1; tick <= ticks; tick++) {
+			ByteBuffer message = store.get((short) tick);
+			target.clear();
+			target.limit(message.remaining());
+
+			try {
+				codec.encode(store.get((short) (tick - 1)), message, target);
+				bytes += target.position();
+			} catch (BufferOverflowException e) {
+				bytes += message.remaining(); // a full message is sent
+			}
+		}
+
+		return bytes;
+	}
+}
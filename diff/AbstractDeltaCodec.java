@@ -0,0 +1,324 @@
+package diff;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Base class for delta codecs, with helpers to access serialized messages.
+ * The baseline is treated as if it is extended with zeros, so that a message
+ * that is longer than its baseline can be encoded in the same way as a
+ * message of the same length.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public abstract class AbstractDeltaCodec implements DeltaCodec {
+	/** Number of unchanged bytes that end a region of changes */
+	protected static final int REGION_GAP = 16;
+	/** Number of bytes after a change that are compared a word at a time */
+	private static final int INLINE_SCAN = 64;
+	/** ByteBuffer.mismatch(ByteBuffer) or null before Java 11 */
+	private static final MethodHandle MISMATCH = findMismatch();
+	private final byte id;
+
+	protected AbstractDeltaCodec(byte id) {
+		this.id = id;
+	}
+
+	@Override
+	public byte getId() {
+		return id;
+	}
+
+	private static MethodHandle findMismatch() {
+		try {
+			return MethodHandles.publicLookup().findVirtual(ByteBuffer.class,
+					"mismatch",
+					MethodType.methodType(int.class, ByteBuffer.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			return null; // Java 8
+		}
+	}
+
+	/**
+	 * Gets the byte at the given offset from the position of the buffer, or 0
+	 * if the offset is beyond the limit.
+	 */
+	protected static byte getByte(ByteBuffer buffer, int offset) {
+		int index = buffer.position() + offset;
+		return index < buffer.limit() ? buffer.get(index) : 0;
+	}
+
+	/**
+	 * Gets the int at the given offset from the position of the buffer. Bytes
+	 * beyond the limit are read as 0.
+	 */
+	protected static int getInt(ByteBuffer buffer, int offset) {
+		int index = buffer.position() + offset;
+		if (index + 4 <= buffer.limit()) {
+			return buffer.getInt(index);
+		}
+
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = (value << 8)
+					| (index + i < buffer.limit() ? buffer.get(index + i) & 0xFF
+							: 0);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Puts the int at the given offset from the position of the buffer. Bytes
+	 * beyond the limit are not written.
+	 */
+	protected static void putInt(ByteBuffer buffer, int offset, int value) {
+		int index = buffer.position() + offset;
+		if (index + 4 <= buffer.limit()) {
+			buffer.putInt(index, value);
+			return;
+		}
+
+		for (int i = 0; i < 4 && index + i < buffer.limit(); i++) {
+			buffer.put(index + i, (byte) (value >>> (24 - 8 * i)));
+		}
+	}
+
+	/**
+	 * Finds the first byte at or after the given offset in which the message
+	 * differs from the baseline. The bytes right after the offset are compared
+	 * eight at a time, locating the changed byte in the differing word with
+	 * {@link Long#numberOfLeadingZeros(long)}, because changes are often close
+	 * together. Longer unchanged regions are skipped with
+	 * {@code ByteBuffer.mismatch}, which the JVM compiles to SIMD instructions,
+	 * on Java 11 and newer, or with the same word loop on older versions.
+	 * 
+	 * @param baseline
+	 *            Serialized message the client already has
+	 * @param message
+	 *            Serialized message to send
+	 * @param offset
+	 *            Offset from the position of the message to start at
+	 * @return The offset of the changed byte or the length of the message if
+	 *         the rest of the message is unchanged
+	 */
+	protected static int nextChange(ByteBuffer baseline, ByteBuffer message,
+			int offset) {
+		int length = message.remaining();
+		int common = Math.min(length, baseline.remaining());
+
+		if (offset < common && baseline.order() == message.order()) {
+			int end = MISMATCH == null ? common : Math.min(common, offset
+					+ INLINE_SCAN);
+			offset = nextChangedWord(baseline, message, offset, end);
+			if (offset < end) {
+				return offset;
+			}
+
+			if (offset < common) {
+				offset = mismatch(baseline, message, offset, common);
+				if (offset < common) {
+					return offset;
+				}
+			}
+		}
+
+		int start = message.position();
+		for (; offset < common; offset++) {
+			if (message.get(start + offset) != baseline.get(baseline
+					.position() + offset)) {
+				return offset;
+			}
+		}
+
+		/* Beyond the baseline, the message is compared to zeros */
+		for (; offset < length; offset++) {
+			if (message.get(start + offset) != 0) {
+				return offset;
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * Finds the end of a region of changes that starts at the given offset: the
+	 * first offset after which {@value #REGION_GAP} bytes are unchanged,
+	 * compared a word at a time. Within the region, the codec compares the
+	 * blocks it encodes one by one, because nearly all of them differ, and
+	 * then skips to the next region with {@link #nextChange}.
+	 * 
+	 * @param offset
+	 *            Offset from the position of the message of a changed byte
+	 * @return The end of the region, which is a multiple of eight bytes from
+	 *         the offset, or the length of the message
+	 */
+	protected static int endOfChanges(ByteBuffer baseline, ByteBuffer message,
+			int offset) {
+		int common = Math.min(message.remaining(), baseline.remaining());
+		if (baseline.order() != message.order()) {
+			return message.remaining();
+		}
+
+		int start = message.position();
+		int baselineStart = baseline.position();
+		for (; offset + REGION_GAP <= common; offset += 8) {
+			if (message.getLong(start + offset) == baseline
+					.getLong(baselineStart + offset)
+					&& message.getLong(start + offset + 8) == baseline
+							.getLong(baselineStart + offset + 8)) {
+				return offset;
+			}
+		}
+
+		return message.remaining();
+	}
+
+	/**
+	 * Finds the first block of four bytes at or after the given block in
+	 * which the message differs from the baseline, with {@link #nextChange}.
+	 * Only the bytes up to the length of the message are compared.
+	 * 
+	 * @param index
+	 *            Index of the block
+	 * @return The index of the changed block or the number of blocks if the
+	 *         rest of the message is unchanged
+	 */
+	protected static int nextChangedInt(ByteBuffer baseline,
+			ByteBuffer message, int index) {
+		int length = message.remaining();
+		int change = nextChange(baseline, message, index * 4);
+		return change >= length ? (length + 3) / 4 : change / 4;
+	}
+
+	/**
+	 * Gets a block of four bytes of the baseline, in which the bytes beyond
+	 * the length of the message are 0, like they are in the message.
+	 */
+	protected static int getMessageInt(ByteBuffer baseline, int index,
+			int length) {
+		int value = getInt(baseline, index * 4);
+		if (index * 4 + 4 > length) {
+			value &= -1 << 8 * (index * 4 + 4 - length);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Compares the message to the baseline a word at a time, up to the end.
+	 * 
+	 * @return The offset of the first changed byte or the end if there is
+	 *         none
+	 */
+	private static int nextChangedWord(ByteBuffer baseline,
+			ByteBuffer message, int offset, int end) {
+		int start = message.position();
+		int baselineStart = baseline.position();
+		boolean bigEndian = message.order() == ByteOrder.BIG_ENDIAN;
+
+		for (; offset + 8 <= end; offset += 8) {
+			long difference = message.getLong(start + offset)
+					^ baseline.getLong(baselineStart + offset);
+			if (difference != 0) {
+				return offset
+						+ (bigEndian ? Long.numberOfLeadingZeros(difference)
+								: Long.numberOfTrailingZeros(difference)) / 8;
+			}
+		}
+
+		for (; offset < end; offset++) {
+			if (message.get(start + offset) != baseline.get(baselineStart
+					+ offset)) {
+				return offset;
+			}
+		}
+
+		return end;
+	}
+
+	/**
+	 * Finds the first changed byte before the end with
+	 * {@code ByteBuffer.mismatch}.
+	 * 
+	 * @return The offset of the changed byte or the end if there is none
+	 */
+	private static int mismatch(ByteBuffer baseline, ByteBuffer message,
+			int offset, int end) {
+		ByteBuffer messageRange = message.duplicate();
+		messageRange.limit(message.position() + end);
+		messageRange.position(message.position() + offset);
+		ByteBuffer baselineRange = baseline.duplicate();
+		baselineRange.limit(baseline.position() + end);
+		baselineRange.position(baseline.position() + offset);
+
+		int index;
+		try {
+			index = (int) MISMATCH.invokeExact(messageRange, baselineRange);
+		} catch (Throwable e) {
+			throw new IllegalStateException("Could not compare the buffers", e);
+		}
+
+		return index < 0 ? end : offset + index;
+	}
+
+	/**
+	 * Gets up to eight bytes of flags at the given index as one word, in which
+	 * bit {@code i} is bit {@code i % 8} of byte {@code i / 8}. The set bits
+	 * can then be scanned with {@link Long#numberOfTrailingZeros(long)},
+	 * skipping eight bytes without changes at once.
+	 */
+	protected static long getFlags(ByteBuffer buffer, int index, int numBytes) {
+		if (index + 8 <= buffer.limit()) {
+			long word = Long.reverseBytes(buffer.getLong(index));
+			return numBytes >= 8 ? word : word & (1L << numBytes * 8) - 1;
+		}
+
+		long word = 0;
+		for (int i = 0; i < numBytes; i++) {
+			word |= (buffer.get(index + i) & 0xFFL) << 8 * i;
+		}
+
+		return word;
+	}
+
+	/**
+	 * Counts the set flags in the given bytes, a word at a time.
+	 */
+	protected static int countFlags(ByteBuffer buffer, int index, int numBytes) {
+		int count = 0;
+		for (int i = 0; i < numBytes; i += 8) {
+			count += Long.bitCount(getFlags(buffer, index + i,
+					Math.min(8, numBytes - i)));
+		}
+
+		return count;
+	}
+
+	/**
+	 * Copies the baseline to the target, from the position to the limit of
+	 * the target. If the baseline is shorter, the rest of the target is filled
+	 * with zeros. The positions of both buffers are not changed.
+	 */
+	protected static void copyBaseline(ByteBuffer baseline, ByteBuffer target) {
+		int baselinePosition = baseline.position();
+		int baselineLimit = baseline.limit();
+		int targetPosition = target.position();
+		int length = Math.min(baseline.remaining(), target.remaining());
+
+		baseline.limit(baselinePosition + length);
+		target.put(baseline);
+		baseline.limit(baselineLimit);
+		baseline.position(baselinePosition);
+
+		while (target.hasRemaining()) {
+			target.put((byte) 0);
+		}
+
+		target.position(targetPosition);
+	}
+}
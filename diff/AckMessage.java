@@ -1,30 +1,141 @@
 package diff;
 
 import com.jme3.network.AbstractMessage;
-import com.jme3.network.serializing.Serializable;
+import com.jme3.network.Message;
 
 /**
- * An acknowledgment message that is sent from the client to the server. It
- * contains and identifier of the message that was received.
+ * A cumulative acknowledgment message that is sent from the client to the
+ * server. It contains the newest label the client received and a bitfield of
+ * the 32 labels before it: bit {@code i} is set if label {@code id - 1 - i}
+ * was received as well. A lost acknowledgment is therefore repaired by the
+ * next one.
+ * <p>
+ * One acknowledgment covers all channels of a handler: it has a label and a
+ * bitfield per channel, indexed by the channel id. A channel that has not
+ * received anything yet has label -1.
+ * <p>
+ * An acknowledgment can carry a message of the client, so that the client
+ * does not have to send a separate packet for it. See
+ * {@link ClientDiffHandler#send(Message)}.
  * 
  * @author Ben Ruijl
  * 
  */
-// TODO: add the class that the ack is for
-@Serializable
 public class AckMessage extends AbstractMessage {
-	private short id;
+	/** Number of previous labels in the bitfield */
+	public static final int WINDOW = 32;
+	private short[] ids;
+	private int[] received;
+	private Message message;
 
 	public AckMessage() {
 		super(false);
 	}
 
 	public AckMessage(short id) {
-		this.id = id;
+		this(id, 0, null);
 	}
 
+	/**
+	 * Creates an acknowledgment of a label and the previous labels in the
+	 * bitfield, which may carry a message.
+	 * 
+	 * @param id
+	 *            Newest received label
+	 * @param received
+	 *            Bitfield of the received labels before it
+	 * @param message
+	 *            Message that is piggybacked or {@code null}
+	 */
+	public AckMessage(short id, int received, Message message) {
+		this(new short[] { id }, new int[] { received }, message);
+	}
+
+	/**
+	 * Creates an acknowledgment of several channels, which may carry a
+	 * message.
+	 * 
+	 * @param ids
+	 *            Newest received label per channel
+	 * @param received
+	 *            Bitfield of the received labels before it per channel
+	 * @param message
+	 *            Message that is piggybacked or {@code null}
+	 */
+	public AckMessage(short[] ids, int[] received, Message message) {
+		super(message == null ? false : message.isReliable());
+		this.ids = ids;
+		this.received = received;
+		this.message = message;
+	}
+
+	public int getNumChannels() {
+		return ids.length;
+	}
+
+	/**
+	 * Gets the newest received label of channel 0.
+	 * 
+	 * @return The label
+	 */
 	public short getId() {
-		return id;
+		return ids[0];
+	}
+
+	/**
+	 * Gets the newest received label of a channel.
+	 * 
+	 * @param channel
+	 *            The channel
+	 * @return The label or -1 if the channel has not received anything
+	 */
+	public short getId(int channel) {
+		return ids[channel];
 	}
 
+	/**
+	 * Gets the bitfield of the labels before the newest label of a channel.
+	 * 
+	 * @param channel
+	 *            The channel
+	 * @return The bitfield
+	 * @see #getReceived()
+	 */
+	public int getReceived(int channel) {
+		return received[channel];
+	}
+
+	/**
+	 * Gets the bitfield of the labels before the newest label. Bit {@code i}
+	 * is set if label {@code id - 1 - i} was received, where labels wrap from
+	 * {@link Short#MAX_VALUE} to 0.
+	 * 
+	 * @return The bitfield
+	 */
+	public int getReceived() {
+		return received[0];
+	}
+
+	/**
+	 * Gets the message that is piggybacked on this acknowledgment.
+	 * 
+	 * @return The message or {@code null} if there is none
+	 */
+	public Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * Gets the distance from an older label to a newer one, taking into
+	 * account that labels wrap from {@link Short#MAX_VALUE} to 0.
+	 * 
+	 * @param newer
+	 *            The newer label
+	 * @param older
+	 *            The older label
+	 * @return The number of labels in between, plus one
+	 */
+	public static int distance(short newer, short older) {
+		return (newer - older) & Short.MAX_VALUE;
+	}
 }
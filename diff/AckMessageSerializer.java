@@ -0,0 +1,60 @@
+package diff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.jme3.network.Message;
+import com.jme3.network.serializing.Serializer;
+
+/**
+ * Serializes an acknowledgment as the number of channels, the newest label
+ * and the bitfield of the previous labels of every channel and a flag that
+ * tells if a message is piggybacked, followed by that message.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+@SuppressWarnings("unchecked")
+public class AckMessageSerializer extends Serializer {
+
+	@Override
+	public <T> T readObject(ByteBuffer data, Class<T> c) throws IOException {
+		int numChannels = data.get() & 0xFF;
+		if (numChannels == 0 || numChannels > 128) {
+			throw new IOException("Invalid acknowledgment of " + numChannels
+					+ " channels");
+		}
+
+		short[] ids = new short[numChannels];
+		int[] received = new int[numChannels];
+		for (int i = 0; i < numChannels; i++) {
+			ids[i] = data.getShort();
+			received[i] = data.getInt();
+		}
+
+		Message message = null;
+		if (data.get() != 0) {
+			message = (Message) Serializer.readClassAndObject(data);
+		}
+
+		return (T) new AckMessage(ids, received, message);
+	}
+
+	@Override
+	public void writeObject(ByteBuffer buffer, Object object)
+			throws IOException {
+		AckMessage ack = (AckMessage) object;
+		buffer.put((byte) ack.getNumChannels());
+		for (int i = 0; i < ack.getNumChannels(); i++) {
+			buffer.putShort(ack.getId(i));
+			buffer.putInt(ack.getReceived(i));
+		}
+
+		if (ack.getMessage() == null) {
+			buffer.put((byte) 0);
+		} else {
+			buffer.put((byte) 1);
+			Serializer.writeClassAndObject(buffer, ack.getMessage());
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package diff;
+
+import com.jme3.network.AbstractMessage;
+import com.jme3.network.Message;
+import com.jme3.network.serializing.Serializable;
+
+/**
+ * A static baseline of a channel, which is sent reliably to every client and
+ * cached by it, so that new or desynchronized connections receive a delta
+ * against it instead of a full message. See
+ * {@link ServerChannel#setBaseline}.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+@Serializable
+public class BaselineMessage extends AbstractMessage {
+	private byte channel;
+	private short version;
+	private Message message;
+
+	/* Required */
+	public BaselineMessage() {
+		message = null;
+	}
+
+	public BaselineMessage(byte channel, short version, Message message) {
+		super(true);
+		this.channel = channel;
+		this.version = version;
+		this.message = message;
+	}
+
+	public byte getChannel() {
+		return channel;
+	}
+
+	public short getVersion() {
+		return version;
+	}
+
+	public Message getMessage() {
+		return message;
+	}
+
+}
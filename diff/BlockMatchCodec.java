@@ -0,0 +1,147 @@
+package diff;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A shift-tolerant delta format, similar to rsync and bsdiff. The message is
+ * expressed as copies of byte ranges of the baseline, possibly at a different
+ * offset, and literal inserts. When a variable-length field such as a string
+ * or a list changes length, the rest of the message is shifted, which the
+ * other codecs see as a complete change. This codec sees it as a copy with a
+ * different offset.
+ * <p>
+ * The delta is a sequence of a {@link Varint} with the number of literals, the
+ * literals, and a copy: the shift of the copy relative to the current offset
+ * (zigzag encoded) and the length of the copy minus the minimum length. The
+ * last sequence only consists of literals.
+ * <p>
+ * The baseline is indexed by a hash of every four bytes, so encoding is linear
+ * in the size of the baseline and the message.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class BlockMatchCodec extends AbstractDeltaCodec {
+	public static final byte ID = 4;
+	private static final int MIN_COPY = 4;
+	private static final int HASH_BITS = 13;
+
+	private final ThreadLocal<int[]> hashTables = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1 << HASH_BITS];
+		}
+	};
+
+	public BlockMatchCodec() {
+		super(ID);
+	}
+
+	private static int hash(int value) {
+		return (value * 0x9E3779B1) >>> (32 - HASH_BITS);
+	}
+
+	/**
+	 * Gets the length of the match between the baseline at the candidate
+	 * offset and the message at the given offset.
+	 */
+	private static int matchLength(ByteBuffer baseline, int candidate,
+			ByteBuffer message, int offset) {
+		int base = baseline.position();
+		int start = message.position();
+		int length = 0;
+
+		while (candidate + length < baseline.remaining()
+				&& offset + length < message.remaining()
+				&& baseline.get(base + candidate + length) == message
+						.get(start + offset + length)) {
+			length++;
+		}
+
+		return length;
+	}
+
+	@Override
+	public void encode(ByteBuffer baseline, ByteBuffer message,
+			ByteBuffer target) {
+		int[] table = hashTables.get();
+		int base = baseline.position();
+		int start = message.position();
+		int length = message.remaining();
+
+		/* Index the baseline. Offsets are stored plus one, 0 means empty */
+		for (int i = 0; i < table.length; i++) {
+			table[i] = 0;
+		}
+
+		for (int i = baseline.remaining() - 4; i >= 0; i--) {
+			table[hash(baseline.getInt(base + i))] = i + 1;
+		}
+
+		int literalStart = 0;
+		int shift = 0;
+		int i = 0;
+		while (i + MIN_COPY <= length) {
+			/* First try to continue with the shift of the previous copy */
+			int candidate = i + shift;
+			int copy = candidate >= 0 ? matchLength(baseline, candidate,
+					message, i) : 0;
+
+			if (copy < MIN_COPY) {
+				candidate = table[hash(message.getInt(start + i))] - 1;
+				copy = candidate >= 0 ? matchLength(baseline, candidate,
+						message, i) : 0;
+			}
+
+			if (copy < MIN_COPY) {
+				i++;
+				continue;
+			}
+
+			writeLiterals(message, literalStart, i, target);
+			shift = candidate - i;
+			Varint.put(target, Varint.zigZag(shift));
+			Varint.put(target, copy - MIN_COPY);
+
+			i += copy;
+			literalStart = i;
+		}
+
+		writeLiterals(message, literalStart, length, target);
+	}
+
+	private static void writeLiterals(ByteBuffer message, int from, int to,
+			ByteBuffer target) {
+		Varint.put(target, to - from);
+		for (int i = from; i < to; i++) {
+			target.put(message.get(message.position() + i));
+		}
+	}
+
+	@Override
+	public void decode(ByteBuffer baseline, ByteBuffer delta, ByteBuffer target) {
+		int start = target.position();
+		int base = baseline.position();
+
+		while (true) {
+			int literals = Varint.get(delta);
+			for (int i = 0; i < literals; i++) {
+				target.put(delta.get());
+			}
+
+			if (!target.hasRemaining()) {
+				break;
+			}
+
+			int offset = target.position() - start
+					+ Varint.unZigZag(Varint.get(delta));
+			int copy = Varint.get(delta) + MIN_COPY;
+
+			for (int i = 0; i < copy; i++) {
+				target.put(baseline.get(base + offset + i));
+			}
+		}
+
+		target.position(start);
+	}
+}
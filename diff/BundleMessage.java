@@ -0,0 +1,31 @@
+package diff;
+
+import java.util.List;
+
+import com.jme3.network.AbstractMessage;
+import com.jme3.network.Message;
+
+/**
+ * Several small labeled messages of different channels that are sent to a
+ * client in one datagram, so that a tick of a handler with many channels
+ * costs one packet instead of one per channel.
+ * 
+ * @author Ben Ruijl
+ * @see BundleMessageSerializer
+ */
+public class BundleMessage extends AbstractMessage {
+	private List<Message> messages;
+
+	public BundleMessage() {
+		super(false);
+	}
+
+	public BundleMessage(List<Message> messages) {
+		super(false);
+		this.messages = messages;
+	}
+
+	public List<Message> getMessages() {
+		return messages;
+	}
+}
@@ -0,0 +1,46 @@
+package diff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jme3.network.Message;
+import com.jme3.network.serializing.Serializer;
+
+/**
+ * Serializes a bundle as the number of messages followed by the messages.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+@SuppressWarnings("unchecked")
+public class BundleMessageSerializer extends Serializer {
+	/** Maximum number of messages in a bundle, one per channel */
+	private static final int MAX_MESSAGES = 128;
+
+	@Override
+	public <T> T readObject(ByteBuffer data, Class<T> c) throws IOException {
+		int count = Varint.get(data);
+		if (count < 0 || count > MAX_MESSAGES) {
+			throw new IOException("Invalid bundle of " + count + " messages");
+		}
+
+		List<Message> messages = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			messages.add((Message) Serializer.readClassAndObject(data));
+		}
+
+		return (T) new BundleMessage(messages);
+	}
+
+	@Override
+	public void writeObject(ByteBuffer buffer, Object object)
+			throws IOException {
+		List<Message> messages = ((BundleMessage) object).getMessages();
+		Varint.put(buffer, messages.size());
+		for (Message message : messages) {
+			Serializer.writeClassAndObject(buffer, message);
+		}
+	}
+}
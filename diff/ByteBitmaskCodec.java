@@ -0,0 +1,82 @@
+package diff;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A delta format that compares the message byte by byte. The delta consists of
+ * a bitmask of the changed bytes, followed by their new values. Works well if
+ * changes are small, such as single bytes or shorts.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class ByteBitmaskCodec extends AbstractDeltaCodec implements
+		InPlaceDeltaCodec {
+	public static final byte ID = 1;
+
+	public ByteBitmaskCodec() {
+		super(ID);
+	}
+
+	@Override
+	public void encode(ByteBuffer baseline, ByteBuffer message,
+			ByteBuffer target) {
+		int length = message.remaining();
+		int flagStart = target.position();
+		int numFlags = (length + 7) / 8;
+
+		// reserve space for the flags
+		for (int i = 0; i < numFlags; i++) {
+			target.put((byte) 0);
+		}
+
+		/* Skip to every region of changes and only compare that region */
+		int j = nextChange(baseline, message, 0);
+		while (j < length) {
+			int end = endOfChanges(baseline, message, j);
+			for (; j < end; j++) {
+				byte val = message.get(message.position() + j);
+				if (val != getByte(baseline, j)) {
+					target.put(val);
+					target.put(flagStart + j / 8,
+							(byte) (target.get(flagStart + j / 8) | 1 << (j % 8)));
+				}
+			}
+
+			j = nextChange(baseline, message, end);
+		}
+	}
+
+	@Override
+	public void decode(ByteBuffer baseline, ByteBuffer delta, ByteBuffer target) {
+		copyBaseline(baseline, target);
+		apply(delta, target);
+	}
+
+	@Override
+	public void apply(ByteBuffer delta, ByteBuffer target) {
+		int start = target.position();
+		int flagStart = delta.position();
+		int numFlags = (target.remaining() + 7) / 8;
+
+		/* Check the length before anything is written */
+		if (delta.remaining() - numFlags < countFlags(delta, flagStart,
+				numFlags)) {
+			throw new BufferUnderflowException();
+		}
+
+		delta.position(flagStart + numFlags);
+
+		/* Scan the flags 64 at a time */
+		for (int i = 0; i < numFlags; i += 8) {
+			long flags = getFlags(delta, flagStart + i,
+					Math.min(8, numFlags - i));
+			while (flags != 0) {
+				int bit = Long.numberOfTrailingZeros(flags);
+				target.put(start + i * 8 + bit, delta.get());
+				flags &= flags - 1;
+			}
+		}
+	}
+}
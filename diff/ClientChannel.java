@@ -0,0 +1,352 @@
+package diff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jme3.network.AbstractMessage;
+import com.jme3.network.Client;
+import com.jme3.network.Message;
+import com.jme3.network.MessageListener;
+import com.jme3.network.base.MessageListenerRegistry;
+import com.jme3.network.serializing.Serializer;
+
+/**
+ * A stream of messages of type {@code T} that a {@link ClientDiffHandler}
+ * receives from the server. Every channel has its own history, labels and
+ * listeners, and matches the {@link ServerChannel} with the same id.
+ * <p>
+ * Channel 0 has the message type of the handler and is created with it. More
+ * channels are added with {@link ClientDiffHandler#addChannel}, in the same
+ * order as on the server.
+ * 
+ * @author Ben Ruijl
+ * 
+ * @param <T>
+ *            Message type
+ */
+public class ClientChannel<T extends AbstractMessage> {
+	protected static final Logger log = Logger
+			.getLogger(ClientChannel.class.getName());
+	private final byte id;
+	private final Class<T> cls;
+	private final short numSnapshots;
+	private final SnapshotStore snapshots;
+	private final ClientMetrics metrics;
+	private final MessageListenerRegistry<Client> listenerRegistry;
+	private ByteBuffer baselineBuffer;
+	private ByteBuffer mergeBuffer;
+	private short curPos;
+	private volatile JitterBuffer<T> jitterBuffer;
+	private volatile SnapshotStore baselineStore;
+	private volatile short baselineVersion;
+	/* Acknowledgment state, guarded by the handler */
+	short ackId;
+	int ackReceived;
+
+	ClientChannel(byte id, Class<T> cls, SnapshotStore snapshots) {
+		this.id = id;
+		this.cls = cls;
+		this.snapshots = snapshots;
+		numSnapshots = snapshots.getNumSnapshots();
+		metrics = new ClientMetrics();
+		listenerRegistry = new MessageListenerRegistry<>();
+		baselineBuffer = ByteBuffer.allocate(4096);
+		mergeBuffer = ByteBuffer.allocate(4096);
+
+		curPos = -1; // no message received yet
+		ackId = -1;
+		baselineVersion = -1;
+	}
+
+	public byte getId() {
+		return id;
+	}
+
+	public Class<T> getMessageClass() {
+		return cls;
+	}
+
+	/**
+	 * Gets the store that keeps the history of serialized messages, for
+	 * example to inspect its memory usage.
+	 * 
+	 * @return The snapshot store
+	 */
+	public SnapshotStore getSnapshotStore() {
+		return snapshots;
+	}
+
+	/**
+	 * Gets the metrics of this channel, which can be exposed through JMX with
+	 * {@link ClientMetrics#register(String)}.
+	 * 
+	 * @return The channel metrics
+	 */
+	public ClientMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets a buffer that receives every message of this channel, including
+	 * the ones that arrive out of order, so that the state can be sampled at
+	 * render time. The listeners still receive the newest messages.
+	 * 
+	 * @param jitterBuffer
+	 *            The buffer or {@code null} to remove it
+	 */
+	public void setJitterBuffer(JitterBuffer<T> jitterBuffer) {
+		this.jitterBuffer = jitterBuffer;
+	}
+
+	public JitterBuffer<T> getJitterBuffer() {
+		return jitterBuffer;
+	}
+
+	/**
+	 * Caches the static baseline that the server published, replacing the
+	 * previous version. Called when a {@link BaselineMessage} arrives.
+	 */
+	void setBaseline(short version, Message baseline) {
+		if (!cls.isInstance(baseline)) {
+			log.log(Level.WARNING, "Received baseline of the wrong type "
+					+ baseline.getClass().getName() + " on channel " + id);
+			return;
+		}
+
+		/* A new store, so that a merge never sees a partial baseline */
+		SnapshotStore store = new HeapSnapshotStore((short) 1);
+		store.store(version, baseline);
+		baselineStore = store;
+		baselineVersion = version;
+	}
+
+	/**
+	 * Gets the version of the cached static baseline, see
+	 * {@link ServerChannel#setBaseline}.
+	 * 
+	 * @return The version or -1 if no baseline has been received
+	 */
+	public short getBaselineVersion() {
+		return baselineVersion;
+	}
+
+	public void addListener(MessageListener<? super Client> listener) {
+		listenerRegistry.addMessageListener(listener);
+	}
+
+	public void removeListener(MessageListener<? super Client> listener) {
+		listenerRegistry.removeMessageListener(listener);
+	}
+
+	/**
+	 * Applies the delta message to the old message it was generated from, to
+	 * generate a new message of type {@code T}. The new message is cached
+	 * under the given label.
+	 * 
+	 * @param label
+	 *            Label of the new message
+	 * @param diffMessage
+	 *            The delta message
+	 * @return A new message of type {@code T} or {@code null} if the old
+	 *         message is not in the cache (anymore)
+	 */
+	@SuppressWarnings("unchecked")
+	public T mergeMessage(short label, DiffMessage diffMessage) {
+		long start = System.nanoTime();
+		DeltaCodec codec = DeltaCodecs.get(diffMessage.getCodec());
+		if (codec == null) {
+			log.log(Level.SEVERE, "Unknown delta codec " + diffMessage.getCodec()
+					+ ", make sure it is registered on the client");
+			return null;
+		}
+
+		/* The old message is either in the history or the static baseline */
+		SnapshotStore source = snapshots;
+		short baselineId = diffMessage.getMessageId();
+		if (DiffMessage.isBaselineId(baselineId)) {
+			source = baselineStore;
+			baselineId = DiffMessage.getBaselineVersion(baselineId);
+			if (source == null || !source.contains(baselineId)) {
+				/* Expected while the reliable baseline is still underway */
+				metrics.registerBaselineMiss();
+				log.log(Level.FINE, "Baseline version " + baselineId
+						+ " is not available to merge with");
+				return null;
+			}
+		}
+
+		/* Copy old message, including its padding */
+		int baselineLength = source.length(baselineId);
+		if (baselineLength < 0) {
+			metrics.registerHistoryLookup(false);
+			log.log(Level.WARNING, "Old message " + diffMessage.getMessageId()
+					+ " is not available to merge with");
+			return null;
+		}
+
+		int length = diffMessage.getLength();
+		ByteBuffer delta = diffMessage.getData();
+		delta.rewind();
+
+		try {
+			if (codec instanceof InPlaceDeltaCodec) {
+				/* Copy the baseline once and only write the changes */
+				int paddedLength = (baselineLength + 3) / 4 * 4;
+				mergeBuffer = MessageSerialization.ensureCapacity(mergeBuffer,
+						Math.max(length, paddedLength));
+				mergeBuffer.clear();
+				source.read(baselineId, mergeBuffer);
+				for (int i = paddedLength; i < length; i++) {
+					mergeBuffer.put(i, (byte) 0);
+				}
+
+				mergeBuffer.position(0);
+				mergeBuffer.limit(length);
+				((InPlaceDeltaCodec) codec).apply(delta, mergeBuffer);
+			} else {
+				baselineBuffer = MessageSerialization.ensureCapacity(
+						baselineBuffer, (baselineLength + 3) / 4 * 4);
+				baselineBuffer.clear();
+				source.read(baselineId, baselineBuffer);
+				baselineBuffer.position(0);
+				baselineBuffer.limit(baselineLength);
+
+				mergeBuffer = MessageSerialization.ensureCapacity(mergeBuffer,
+						length);
+				mergeBuffer.clear();
+				mergeBuffer.limit(length);
+				codec.decode(baselineBuffer, delta, mergeBuffer);
+			}
+		} catch (RuntimeException e) {
+			/* A bad length or offset must not reach the client thread */
+			metrics.registerMalformed();
+			log.log(Level.SEVERE, "Malformed delta of message " + label + ": "
+					+ e);
+			return null;
+		}
+
+		mergeBuffer.position(0);
+		snapshots.store(label, mergeBuffer);
+
+		try {
+			mergeBuffer.position(0);
+			T message = (T) Serializer.readClassAndObject(mergeBuffer);
+			metrics.registerHistoryLookup(true);
+			metrics.registerMerge(delta.limit(), length,
+					System.nanoTime() - start);
+			return message;
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Could not merge messages", e);
+		} catch (RuntimeException e) {
+			/* A delta that decodes to a message the serializer rejects */
+			metrics.registerMalformed();
+			log.log(Level.SEVERE, "Malformed delta of message " + label + ": "
+					+ e);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Checks if a message is too old to be merged, because its label is
+	 * further behind the last received label than the number of snapshots.
+	 * Counts the message as discarded if it is.
+	 */
+	boolean discardTooOld(short label) {
+		if (curPos >= 0
+				&& (curPos - label > numSnapshots || (label - curPos > Short.MAX_VALUE / 2
+						&& Short.MAX_VALUE - label + curPos > numSnapshots))) {
+			metrics.registerDiscarded();
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Stores a full message or merges a delta message of this channel.
+	 * 
+	 * @return The new message or {@code null} if it could not be read and
+	 *         should not be acknowledged
+	 */
+	@SuppressWarnings("unchecked")
+	T process(LabeledMessage lm) {
+		if (discardTooOld(lm.getLabel())) {
+			log.log(Level.INFO, "Discarding too old message: " + lm.getLabel()
+					+ " vs. cur " + curPos + " on channel " + id);
+			return null;
+		}
+
+		if (cls.isInstance(lm.getMessage())) { // received full message
+			snapshots.store(lm.getLabel(), lm.getMessage());
+			metrics.registerFull();
+			return (T) lm.getMessage();
+		} else if (lm.getMessage() instanceof DiffMessage) {
+			DiffMessage diffMessage = (DiffMessage) lm.getMessage();
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "Received diff of "
+						+ diffMessage.getData().limit() + " bytes");
+			}
+
+			return mergeMessage(lm.getLabel(), diffMessage);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Notifies the listeners of a processed message, if it is newer than the
+	 * last message they received.
+	 */
+	void deliver(Client source, short label, short time, T message) {
+		JitterBuffer<T> buffer = jitterBuffer;
+		if (buffer != null) {
+			buffer.add(label, time, message, System.nanoTime());
+		}
+
+		boolean isNew = curPos < label || label - curPos > Short.MAX_VALUE / 2;
+
+		if (isNew) {
+			curPos = label;
+			listenerRegistry.messageReceived(source, message);
+		} else {
+			// notify if message was old, for testing
+			log.log(Level.FINEST, "Old message received: " + label
+					+ " vs. cur " + curPos);
+		}
+	}
+
+	/**
+	 * Adds a label to the acknowledgment of this channel.
+	 * 
+	 * @return True if the label is newer than the acknowledged label, false
+	 *         if it is older or a duplicate
+	 */
+	boolean acknowledge(short label) {
+		if (ackId < 0) {
+			ackId = label;
+			ackReceived = 0;
+			return true;
+		}
+
+		int distance = AckMessage.distance(label, ackId);
+		if (distance == 0) {
+			return false; // duplicate
+		} else if (distance <= Short.MAX_VALUE / 2) {
+			/* A newer label, the old one moves into the bitfield */
+			ackReceived = distance > AckMessage.WINDOW ? 0
+					: (ackReceived << 1 | 1) << (distance - 1);
+			ackId = label;
+			return true;
+		}
+
+		distance = AckMessage.distance(ackId, label);
+		if (distance <= AckMessage.WINDOW) {
+			ackReceived |= 1 << (distance - 1);
+		}
+
+		return false;
+	}
+}
@@ -2,8 +2,8 @@ package diff;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -12,7 +12,6 @@ import com.jme3.network.Client;
 import com.jme3.network.Message;
 import com.jme3.network.MessageListener;
 import com.jme3.network.base.MessageListenerRegistry;
-import com.jme3.network.base.MessageProtocol;
 import com.jme3.network.serializing.Serializer;
 
 /**
@@ -21,6 +20,29 @@ import com.jme3.network.serializing.Serializer;
  * old message. When the message is processed, an acknowledgment is sent to the
  * server.
  * <p>
+ * Acknowledgments are cumulative: they contain the newest received label and
+ * a bitfield of the labels before it. By default, one is sent for every new
+ * message. With {@link #setAckRate(int)} they are sent at most at the given
+ * rate instead, and messages of the client that are sent with
+ * {@link #send(Message)} carry the pending acknowledgment for free.
+ * <p>
+ * The old messages are cached in serialized form, so a delta message can be
+ * applied without serializing the old message again. Delta messages are
+ * merged in a buffer that is reused, so that merging does not allocate
+ * anything but the resulting message. Messages that are split into fragments
+ * are reassembled first, and only acknowledged when they are complete.
+ * <p>
+ * A handler can receive several streams of messages of different types, each
+ * on its own {@link ClientChannel}. Channel 0 has type {@code T}, more
+ * channels are added with {@link #addChannel}, in the same order as on the
+ * server. One acknowledgment covers all channels, and a bundle of messages of
+ * several channels is acknowledged once.
+ * <p>
+ * The static baseline of a channel, see {@link ServerChannel#setBaseline}, is
+ * received reliably and cached, so that the first message after connecting
+ * can already be a delta. A large baseline arrives in fragments, which are
+ * reassembled separately from the fragments of the other messages.
+ * <p>
  * Client can register message listeners for type {@code T} by calling
  * {@link #addListener()}. It is very important that the client does not listen
  * to message type {@code T} through other methods (for example directly from
@@ -34,131 +56,370 @@ import com.jme3.network.serializing.Serializer;
  * @param <T>
  *            Message type
  */
-@SuppressWarnings("unchecked")
 public class ClientDiffHandler<T extends AbstractMessage> implements
 		MessageListener<Client> {
 	protected static final Logger log = Logger
 			.getLogger(ClientDiffHandler.class.getName());
-	private final short numSnapshots;
-	private final Class<T> cls;
-	private final List<T> snapshots;
-	private final MessageListenerRegistry<Client> listenerRegistry;
-	private short curPos;
+	private final ClientChannel<T> defaultChannel;
+	private final List<ClientChannel<?>> channels;
+	private final FragmentAssembler assembler;
+	private final FragmentAssembler baselineAssembler;
+	private final MessageListenerRegistry<Client> baselineListeners;
+	private final Client client;
+	private boolean ackPending;
+	private boolean ackDue;
+	private long lastAckTime;
+	private volatile long ackInterval;
 
 	public ClientDiffHandler(Client client, Class<T> cls, short numSnapshots) {
-		this.numSnapshots = numSnapshots;
-		this.cls = cls;
-		listenerRegistry = new MessageListenerRegistry<>();
-		snapshots = new ArrayList<>(numSnapshots);
+		this(client, cls, new HeapSnapshotStore(numSnapshots));
+	}
+
+	/**
+	 * Creates a handler that keeps the history of messages in the given
+	 * snapshot store. Use a {@link DirectSnapshotStore} to keep the history
+	 * off-heap, with a fixed memory usage.
+	 * 
+	 * @param client
+	 *            The client
+	 * @param cls
+	 *            Message type
+	 * @param snapshots
+	 *            Store for the history of messages
+	 */
+	public ClientDiffHandler(Client client, Class<T> cls,
+			SnapshotStore snapshots) {
+		this.client = client;
+		assembler = new FragmentAssembler();
+		baselineAssembler = new FragmentAssembler(
+				FragmentAssembler.DEFAULT_MAX_PENDING,
+				MessageSerialization.MAX_SIZE);
+		baselineListeners = new MessageListenerRegistry<>();
+		defaultChannel = new ClientChannel<>((byte) 0, cls, snapshots);
+		channels = new CopyOnWriteArrayList<>();
+		channels.add(defaultChannel);
+
+		ackInterval = 0;
+		client.addMessageListener(this, LabeledMessage.class,
+				FragmentMessage.class, BundleMessage.class,
+				BaselineMessage.class);
+	}
+
+	/**
+	 * Adds a channel for messages of another type, with its own history. The
+	 * channels should be added in the same order as on the server.
+	 * 
+	 * @param cls
+	 *            Message type of the channel
+	 * @param snapshots
+	 *            Store for the history of messages of the channel
+	 * @return The channel
+	 */
+	public synchronized <U extends AbstractMessage> ClientChannel<U> addChannel(
+			Class<U> cls, SnapshotStore snapshots) {
+		if (channels.size() >= ServerDiffHandler.MAX_CHANNELS) {
+			throw new IllegalStateException("A handler has at most "
+					+ ServerDiffHandler.MAX_CHANNELS + " channels");
+		}
+
+		ClientChannel<U> channel = new ClientChannel<>((byte) channels.size(),
+				cls, snapshots);
+		channels.add(channel);
+		return channel;
+	}
+
+	public <U extends AbstractMessage> ClientChannel<U> addChannel(
+			Class<U> cls, short numSnapshots) {
+		return addChannel(cls, new HeapSnapshotStore(numSnapshots));
+	}
+
+	public ClientChannel<T> getDefaultChannel() {
+		return defaultChannel;
+	}
+
+	/**
+	 * Gets a channel by its id.
+	 * 
+	 * @param id
+	 *            Channel id
+	 * @return The channel
+	 */
+	public ClientChannel<?> getChannel(int id) {
+		return channels.get(id);
+	}
+
+	public int getNumChannels() {
+		return channels.size();
+	}
+
+	/**
+	 * Gets the store that keeps the history of serialized messages of channel
+	 * 0, for example to inspect its memory usage.
+	 * 
+	 * @return The snapshot store
+	 */
+	public SnapshotStore getSnapshotStore() {
+		return defaultChannel.getSnapshotStore();
+	}
+
+	/**
+	 * Gets the metrics of channel 0, which can be exposed through JMX with
+	 * {@link ClientMetrics#register(String)}.
+	 * 
+	 * @return The client metrics
+	 */
+	public ClientMetrics getMetrics() {
+		return defaultChannel.getMetrics();
+	}
+
+	/**
+	 * Sets the maximum number of acknowledgments that are sent per second. A
+	 * lower rate saves upstream packets, but the server learns later which
+	 * baselines the client has, so the deltas refer to older messages.
+	 * 
+	 * @param acksPerSecond
+	 *            Maximum rate or 0 to acknowledge every new message
+	 */
+	public void setAckRate(int acksPerSecond) {
+		ackInterval = acksPerSecond <= 0 ? 0 : 1000000000L / acksPerSecond;
+	}
+
+	public int getAckRate() {
+		long interval = ackInterval;
+		return interval == 0 ? 0 : (int) (1000000000L / interval);
+	}
+
+	/**
+	 * Sends a message to the server with the pending acknowledgment
+	 * piggybacked, so that no separate acknowledgment is needed. The message
+	 * is delivered to the listeners of the {@link ServerDiffHandler}, see
+	 * {@link ServerDiffHandler#addMessageListener}.
+	 * 
+	 * @param message
+	 *            Message to send
+	 */
+	public synchronized void send(Message message) {
+		client.send(createAck(message));
+		ackPending = false;
+		lastAckTime = System.nanoTime();
+	}
+
+	/**
+	 * Sends the pending acknowledgment, if there is one.
+	 */
+	public synchronized void sendAck() {
+		if (ackPending) {
+			client.send(createAck(null));
+			ackPending = false;
+			lastAckTime = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Creates an acknowledgment of all channels.
+	 */
+	private AckMessage createAck(Message message) {
+		int numChannels = channels.size();
+		short[] ids = new short[numChannels];
+		int[] received = new int[numChannels];
+		for (int i = 0; i < numChannels; i++) {
+			ClientChannel<?> channel = channels.get(i);
+			ids[i] = channel.ackId;
+			received[i] = channel.ackReceived;
+		}
+
+		return new AckMessage(ids, received, message);
+	}
+
+	/**
+	 * Adds a label to the pending acknowledgment. An old message is sent with
+	 * the next acknowledgment.
+	 */
+	private synchronized void acknowledge(ClientChannel<?> channel, short label) {
+		ackDue |= channel.acknowledge(label);
+		ackPending = true;
+	}
 
-		for (int i = 0; i < numSnapshots; i++) {
-			snapshots.add(null);
+	/**
+	 * Sends the pending acknowledgment if a new message arrived and the ack
+	 * rate allows it.
+	 */
+	private synchronized void flushAck() {
+		if (!ackDue) {
+			return;
 		}
 
-		client.addMessageListener(this, LabeledMessage.class);
+		ackDue = false;
+		long interval = ackInterval;
+		if (interval == 0 || System.nanoTime() - lastAckTime >= interval) {
+			sendAck();
+		}
+	}
+
+	/**
+	 * Sets a buffer that receives every message of channel 0, so that the
+	 * state can be sampled at render time. See
+	 * {@link ClientChannel#setJitterBuffer}.
+	 * 
+	 * @param jitterBuffer
+	 *            The buffer or {@code null} to remove it
+	 */
+	public void setJitterBuffer(JitterBuffer<T> jitterBuffer) {
+		defaultChannel.setJitterBuffer(jitterBuffer);
+	}
+
+	public JitterBuffer<T> getJitterBuffer() {
+		return defaultChannel.getJitterBuffer();
 	}
 
 	public void addListener(MessageListener<? super Client> listener) {
-		listenerRegistry.addMessageListener(listener);
+		defaultChannel.addListener(listener);
 	}
 
 	public void removeListener(MessageListener<? super Client> listener) {
-		listenerRegistry.removeMessageListener(listener);
+		defaultChannel.removeListener(listener);
+	}
+
+	/**
+	 * Adds a listener for the static baselines of all channels. It receives
+	 * every {@link BaselineMessage} after it is reassembled and cached.
+	 * 
+	 * @param listener
+	 *            The listener
+	 */
+	public void addBaselineListener(MessageListener<? super Client> listener) {
+		baselineListeners.addMessageListener(listener);
+	}
+
+	public void removeBaselineListener(
+			MessageListener<? super Client> listener) {
+		baselineListeners.removeMessageListener(listener);
 	}
 
 	/**
-	 * Applies the delta message to the old message to generate a new message of
-	 * type {@code T}.
+	 * Applies the delta message of channel 0 to the old message it was
+	 * generated from. See {@link ClientChannel#mergeMessage}.
 	 * 
-	 * @param oldMessage
-	 *            The old message
+	 * @param label
+	 *            Label of the new message
 	 * @param diffMessage
 	 *            The delta message
-	 * @return A new message of type {@code T}
-	 */
-	public T mergeMessage(T oldMessage, DiffMessage diffMessage) {
-		ByteBuffer oldBuffer = MessageProtocol
-				.messageToBuffer(oldMessage, null);
-
-		/* Copy old message */
-		ByteBuffer newBuffer = ByteBuffer.allocate(32767);
-		newBuffer.put(oldBuffer);
-		newBuffer.position(0);
-
-		int index = 0;
-		for (int i = 0; i < 8 * diffMessage.getFlag().length; i++) {
-			if ((diffMessage.getFlag()[i / 8] & (1 << (i % 8))) != 0) {
-				newBuffer.putInt(i * 4, diffMessage.getData()[index]);
-				index++;
-			}
-		}
+	 * @return A new message of type {@code T} or {@code null} if the old
+	 *         message is not in the cache (anymore)
+	 */
+	public T mergeMessage(short label, DiffMessage diffMessage) {
+		return defaultChannel.mergeMessage(label, diffMessage);
+	}
 
-		try {
-			newBuffer.position(2); // skip size
-			return (T) Serializer.readClassAndObject(newBuffer);
-		} catch (IOException e) {
-			log.log(Level.SEVERE, "Could not merge messages", e);
+	/**
+	 * Gets the channel of a received message.
+	 * 
+	 * @return The channel or {@code null} if it has not been added
+	 */
+	private ClientChannel<?> findChannel(byte id) {
+		if (id < 0 || id >= channels.size()) {
+			log.log(Level.WARNING, "Received message of unknown channel " + id
+					+ ", make sure the channels are added on the client");
+			return null;
 		}
 
-		return null;
+		return channels.get(id);
 	}
 
 	/**
-	 * Process the arrival of either a message of type {@code T} or a delta
-	 * message. Sends an acknowledgment to the server when a message is
-	 * received.
+	 * Process the arrival of either a message of type {@code T}, a delta
+	 * message, a fragment of one of them, a bundle of messages of several
+	 * channels or a static baseline. Sends an acknowledgment to the server
+	 * when a complete message is received.
 	 */
 	@Override
 	public void messageReceived(Client source, Message m) {
-		if (m instanceof LabeledMessage) {
-			LabeledMessage lm = (LabeledMessage) m;
-			T message = (T) lm.getMessage();
-
-			boolean isNew = curPos < lm.getLabel()
-					|| lm.getLabel() - curPos > Short.MAX_VALUE / 2;
-
-			// message is too old
-			if (curPos - lm.getLabel() > numSnapshots
-					|| (lm.getLabel() - curPos > Short.MAX_VALUE / 2 && Short.MAX_VALUE
-							- lm.getLabel() + curPos > numSnapshots)) {
-				log.log(Level.INFO,
-						"Discarding too old message: " + lm.getLabel()
-								+ " vs. cur " + curPos);
-				return;
+		if (m instanceof BaselineMessage) {
+			/* Baselines are reliable and need no acknowledgment */
+			receiveBaseline(source, (BaselineMessage) m);
+			return;
+		} else if (m instanceof FragmentMessage
+				&& DiffMessage.isBaselineId(((FragmentMessage) m).getLabel())) {
+			receiveBaseline(source, (FragmentMessage) m);
+			return;
+		} else if (m instanceof BundleMessage) {
+			/* Acknowledge the whole bundle at once */
+			for (Message message : ((BundleMessage) m).getMessages()) {
+				receive(source, message);
 			}
+		} else {
+			receive(source, m);
+		}
 
-			if (cls.isInstance(lm.getMessage())) { // received full message
-				snapshots.set(lm.getLabel() % numSnapshots, message);
-			} else {
-				if (lm.getMessage() instanceof DiffMessage) {
-					log.log(Level.FINE, "Received diff of size "
-							+ MessageProtocol.messageToBuffer(message, null)
-									.limit());
+		flushAck();
+	}
 
-					DiffMessage diffMessage = (DiffMessage) message;
+	private void receiveBaseline(Client source, BaselineMessage baseline) {
+		ClientChannel<?> channel = findChannel(baseline.getChannel());
+		if (channel != null) {
+			channel.setBaseline(baseline.getVersion(), baseline.getMessage());
+			baselineListeners.messageReceived(source, baseline);
+		}
+	}
 
-					T newMessage = mergeMessage(
-							snapshots.get(diffMessage.getMessageId()
-									% numSnapshots), diffMessage);
+	/**
+	 * Adds a fragment of a baseline. The fragments arrive reliably and in
+	 * order, all on the same thread.
+	 */
+	private void receiveBaseline(Client source, FragmentMessage fragment) {
+		ByteBuffer serialized = baselineAssembler.add(fragment);
+		if (serialized == null) {
+			return;
+		}
 
-					snapshots.set(lm.getLabel() % numSnapshots, newMessage);
-				}
+		try {
+			Object message = Serializer.readClassAndObject(serialized);
+			if (message instanceof BaselineMessage) {
+				receiveBaseline(source, (BaselineMessage) message);
+			}
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Could not read reassembled baseline of "
+					+ "channel " + fragment.getChannel(), e);
+		}
+	}
+
+	private void receive(Client source, Message m) {
+		if (m instanceof FragmentMessage) {
+			FragmentMessage fragment = (FragmentMessage) m;
+			ClientChannel<?> channel = findChannel(fragment.getChannel());
+			if (channel == null || channel.discardTooOld(fragment.getLabel())) {
+				return;
 			}
 
-			/* Send an ACK back */
-			source.send(new AckMessage(lm.getLabel()));
-
-			/* Broadcast changes */
-			if (isNew) {
-				curPos = lm.getLabel();
-				listenerRegistry.messageReceived(source,
-						snapshots.get(curPos % numSnapshots));
-			} else {
-				// notify if message was old, for testing
-				log.log(Level.FINEST, "Old message received: " + lm.getLabel()
-						+ " vs. cur " + curPos);
+			ByteBuffer serialized = assembler.add(fragment);
+			if (serialized != null) {
+				try {
+					receive(source,
+							(Message) Serializer.readClassAndObject(serialized));
+				} catch (IOException e) {
+					log.log(Level.SEVERE, "Could not read reassembled message "
+							+ fragment.getLabel(), e);
+				}
+			}
+		} else if (m instanceof LabeledMessage) {
+			LabeledMessage lm = (LabeledMessage) m;
+			ClientChannel<?> channel = findChannel(lm.getChannel());
+			if (channel != null) {
+				receive(source, channel, lm);
 			}
+		}
+	}
 
+	private <U extends AbstractMessage> void receive(Client source,
+			ClientChannel<U> channel, LabeledMessage lm) {
+		U newMessage = channel.process(lm);
+		if (newMessage == null) {
+			return; // don't acknowledge what we could not merge
 		}
+
+		acknowledge(channel, lm.getLabel());
+
+		/* Broadcast changes */
+		channel.deliver(source, lm.getLabel(), lm.getTime(), newMessage);
 	}
 }
@@ -0,0 +1,176 @@
+package diff;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * The metrics of a {@link ClientDiffHandler}: the number and size of the
+ * received full and delta messages, the time to merge deltas, the hits and
+ * misses of the snapshot history and the deltas of a missing static baseline. All counters are updated without locking
+ * or allocating, so the metrics can stay on in production.
+ * <p>
+ * Call {@link #register(String)} to expose the metrics through JMX.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+	private final AtomicLong fullMessages;
+	private final AtomicLong deltaMessages;
+	private final AtomicLong deltaBytes;
+	private final AtomicLong mergedBytes;
+	private final AtomicLong historyHits;
+	private final AtomicLong historyMisses;
+	private final AtomicLong baselineMisses;
+	private final AtomicLong discardedMessages;
+	private final AtomicLong malformedMessages;
+	private final LatencyHistogram mergeLatency;
+	private ObjectName objectName;
+
+	public ClientMetrics() {
+		fullMessages = new AtomicLong();
+		deltaMessages = new AtomicLong();
+		deltaBytes = new AtomicLong();
+		mergedBytes = new AtomicLong();
+		historyHits = new AtomicLong();
+		historyMisses = new AtomicLong();
+		baselineMisses = new AtomicLong();
+		discardedMessages = new AtomicLong();
+		malformedMessages = new AtomicLong();
+		mergeLatency = new LatencyHistogram();
+	}
+
+	public void registerFull() {
+		fullMessages.incrementAndGet();
+	}
+
+	/**
+	 * Registers a delta that is merged.
+	 * 
+	 * @param size
+	 *            Size of the delta payload
+	 * @param length
+	 *            Length of the merged message
+	 * @param nanos
+	 *            Time it took to merge
+	 */
+	public void registerMerge(int size, int length, long nanos) {
+		deltaMessages.incrementAndGet();
+		deltaBytes.addAndGet(size);
+		mergedBytes.addAndGet(length);
+		mergeLatency.record(nanos);
+	}
+
+	/**
+	 * Registers the lookup of the baseline of a delta.
+	 * 
+	 * @param hit
+	 *            True if the baseline was in the history
+	 */
+	public void registerHistoryLookup(boolean hit) {
+		if (hit) {
+			historyHits.incrementAndGet();
+		} else {
+			historyMisses.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Registers a delta of a static baseline that has not been received.
+	 */
+	public void registerBaselineMiss() {
+		baselineMisses.incrementAndGet();
+	}
+
+	public void registerDiscarded() {
+		discardedMessages.incrementAndGet();
+	}
+
+	public void registerMalformed() {
+		malformedMessages.incrementAndGet();
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server, under
+	 * {@code quakemonkey:type=ClientDiffHandler,name=<name>}.
+	 * 
+	 * @param name
+	 *            Name of the handler
+	 */
+	public synchronized void register(String name) {
+		objectName = MetricsRegistration.register(this, "ClientDiffHandler",
+				name);
+	}
+
+	public synchronized void unregister() {
+		if (objectName != null) {
+			MetricsRegistration.unregister(objectName);
+			objectName = null;
+		}
+	}
+
+	@Override
+	public long getFullMessages() {
+		return fullMessages.get();
+	}
+
+	@Override
+	public long getDeltaMessages() {
+		return deltaMessages.get();
+	}
+
+	@Override
+	public long getDeltaBytes() {
+		return deltaBytes.get();
+	}
+
+	@Override
+	public long getMergedBytes() {
+		return mergedBytes.get();
+	}
+
+	@Override
+	public LatencyStats getMergeLatency() {
+		return mergeLatency.getStats();
+	}
+
+	@Override
+	public long getHistoryHits() {
+		return historyHits.get();
+	}
+
+	@Override
+	public long getHistoryMisses() {
+		return historyMisses.get();
+	}
+
+	@Override
+	public long getBaselineMisses() {
+		return baselineMisses.get();
+	}
+
+	@Override
+	public long getDiscardedMessages() {
+		return discardedMessages.get();
+	}
+
+	@Override
+	public long getMalformedMessages() {
+		return malformedMessages.get();
+	}
+
+	@Override
+	public void reset() {
+		fullMessages.set(0);
+		deltaMessages.set(0);
+		deltaBytes.set(0);
+		mergedBytes.set(0);
+		historyHits.set(0);
+		historyMisses.set(0);
+		baselineMisses.set(0);
+		discardedMessages.set(0);
+		malformedMessages.set(0);
+		mergeLatency.reset();
+	}
+}
@@ -0,0 +1,74 @@
+package diff;
+
+/**
+ * The metrics of a {@link ClientDiffHandler}, as they are exposed through
+ * JMX.
+ * 
+ * @author Ben Ruijl
+ * @see ClientMetrics
+ */
+public interface ClientMetricsMXBean {
+
+	long getFullMessages();
+
+	long getDeltaMessages();
+
+	/**
+	 * Gets the size of the delta payloads that were received.
+	 * 
+	 * @return Size in bytes
+	 */
+	long getDeltaBytes();
+
+	/**
+	 * Gets the size of the messages that were reconstructed from the deltas.
+	 * 
+	 * @return Size in bytes
+	 */
+	long getMergedBytes();
+
+	LatencyStats getMergeLatency();
+
+	/**
+	 * Gets the number of deltas whose baseline was in the history.
+	 * 
+	 * @return History hits
+	 */
+	long getHistoryHits();
+
+	/**
+	 * Gets the number of deltas that could not be merged, because their
+	 * baseline was no longer in the history.
+	 * 
+	 * @return History misses
+	 */
+	long getHistoryMisses();
+
+	/**
+	 * Gets the number of deltas that could not be merged, because they were
+	 * generated from a static baseline that has not been received yet. The
+	 * reliable baseline can be overtaken by unreliable deltas, so a few are
+	 * expected after a new baseline is published.
+	 * 
+	 * @return Baseline misses
+	 */
+	long getBaselineMisses();
+
+	/**
+	 * Gets the number of messages that were discarded because they were too
+	 * old.
+	 * 
+	 * @return Discarded messages
+	 */
+	long getDiscardedMessages();
+
+	/**
+	 * Gets the number of deltas that could not be decoded, because they were
+	 * malformed.
+	 * 
+	 * @return Malformed messages
+	 */
+	long getMalformedMessages();
+
+	void reset();
+}
@@ -0,0 +1,76 @@
+package diff;
+
+/**
+ * The metrics of one connection at a point in time, as they are exposed
+ * through JMX.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class ConnectionStats {
+	private final int id;
+	private final String address;
+	private final double rttMillis;
+	private final double lossRate;
+	private final int lag;
+	private final long sent;
+	private final long acknowledged;
+
+	public ConnectionStats(int id, String address, double rttMillis,
+			double lossRate, int lag, long sent, long acknowledged) {
+		this.id = id;
+		this.address = address;
+		this.rttMillis = rttMillis;
+		this.lossRate = lossRate;
+		this.lag = lag;
+		this.sent = sent;
+		this.acknowledged = acknowledged;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * Gets the smoothed round-trip time from sending a message to receiving
+	 * its acknowledgment.
+	 * 
+	 * @return Round-trip time in milliseconds or -1 if it is not known yet
+	 */
+	public double getRttMillis() {
+		return rttMillis;
+	}
+
+	/**
+	 * Gets the fraction of the messages for which no acknowledgment arrived,
+	 * either because the message or the acknowledgment was lost.
+	 * 
+	 * @return Loss rate between 0 and 1
+	 */
+	public double getLossRate() {
+		return lossRate;
+	}
+
+	public int getLag() {
+		return lag;
+	}
+
+	public long getSent() {
+		return sent;
+	}
+
+	public long getAcknowledged() {
+		return acknowledged;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"connection %d (%s): rtt %.1f ms, loss %.3f, lag %d, sent %d, acknowledged %d",
+				id, address, rttMillis, lossRate, lag, sent, acknowledged);
+	}
+}
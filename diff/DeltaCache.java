@@ -0,0 +1,500 @@
+package diff;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jme3.network.AbstractMessage;
+import com.jme3.network.Message;
+
+/**
+ * A cache of the labeled messages that are sent in the current tick, keyed by
+ * their label, their view and the baseline they are a delta of. Connections
+ * that receive the same message and acknowledged the same baseline receive
+ * the same delta, so it only has to be generated once. The cache is cleared
+ * when a new tick is started.
+ * <p>
+ * Messages for different baselines can be requested concurrently, as long as
+ * every combination of label and baseline is requested by at most one thread
+ * per tick.
+ * 
+ * @author Ben Ruijl
+ * 
+ * @param <T>
+ *            Message type
+ */
+public class DeltaCache<T extends AbstractMessage> {
+	/** Size of the chunks that hold the generated deltas */
+	private static final int CHUNK_SIZE = 65536;
+	/** Number of deltas after which every codec is tried again */
+	private static final int RETRY_INTERVAL = 32;
+	/** Number of selections after which the oldest are forgotten */
+	private static final int MAX_SELECTIONS = 4096;
+	private final ConcurrentMap<Long, Message> messages;
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final DeltaStatistics statistics;
+	private final LatencyHistogram encodeLatency;
+	private final ThreadLocal<ByteBuffer[]> encodeBuffers;
+	private final ConcurrentMap<Long, Selection> selections;
+	private volatile List<DeltaCodec> codecs;
+	private volatile short tickTime;
+
+	/**
+	 * Creates a cache that tries all codecs that are registered in
+	 * {@link DeltaCodecs}.
+	 */
+	public DeltaCache() {
+		messages = new ConcurrentHashMap<>();
+		selections = new ConcurrentHashMap<>();
+		statistics = new DeltaStatistics();
+		encodeLatency = new LatencyHistogram();
+		codecs = DeltaCodecs.getAll();
+
+		/*
+		 * Three buffers per thread: one for the best delta, one to try and a
+		 * chunk that the deltas that are sent are sliced from
+		 */
+		encodeBuffers = new ThreadLocal<ByteBuffer[]>() {
+			@Override
+			protected ByteBuffer[] initialValue() {
+				return new ByteBuffer[] { ByteBuffer.allocate(4096),
+						ByteBuffer.allocate(4096),
+						ByteBuffer.allocate(CHUNK_SIZE) };
+			}
+		};
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+	}
+
+	/**
+	 * Clears the messages of the previous tick. Should be called before the
+	 * first message of a new tick is requested.
+	 */
+	public void startTick() {
+		startTick(System.nanoTime());
+	}
+
+	/**
+	 * Clears the messages of the previous tick and sets the time that the
+	 * labeled messages of the new tick carry, see
+	 * {@link LabeledMessage#getTime()}.
+	 * 
+	 * @param time
+	 *            Time at which the tick was dispatched, from
+	 *            {@link System#nanoTime()}
+	 */
+	public void startTick(long time) {
+		messages.clear();
+		tickTime = (short) (time / 1000000);
+	}
+
+	/**
+	 * Gets the labeled message for a client that has the given baseline.
+	 * Returns a full message if there is no baseline or the message is not in
+	 * the store, or a delta message if that is smaller.
+	 * 
+	 * @param label
+	 *            Label of the message to send
+	 * @param baseline
+	 *            Label of the last message the client received or -1 if there
+	 *            is none
+	 * @param message
+	 *            Message to send
+	 * @param store
+	 *            Snapshot store that contains the serialized messages
+	 * @param receivers
+	 *            Number of clients that receive the message
+	 * @return The labeled message
+	 */
+	public Message getSnapshot(short label, short baseline, T message,
+			SnapshotStore store, int receivers) {
+		return getSnapshot((byte) 0, label, baseline, message, store,
+				receivers);
+	}
+
+	/**
+	 * Gets the labeled message of a channel for a client that has the given
+	 * baseline. See {@link #getSnapshot(short, short, AbstractMessage,
+	 * SnapshotStore, int)}.
+	 * 
+	 * @param channel
+	 *            Channel of the message
+	 * @param label
+	 *            Label of the message to send
+	 * @param baseline
+	 *            Label of the last message the client received or -1 if there
+	 *            is none
+	 * @param message
+	 *            Message to send
+	 * @param store
+	 *            Snapshot store that contains the serialized messages
+	 * @param receivers
+	 *            Number of clients that receive the message
+	 * @return The labeled message
+	 */
+	public Message getSnapshot(byte channel, short label, short baseline,
+			T message, SnapshotStore store, int receivers) {
+		return getSnapshot(channel, label, baseline, baseline < 0 ? null
+				: store.get(baseline), message, store, receivers);
+	}
+
+	/**
+	 * Gets the labeled message of a channel for a client that has the given
+	 * serialized baseline, which need not be in the store, such as the static
+	 * baseline of a {@link ServerChannel}.
+	 * 
+	 * @param channel
+	 *            Channel of the message
+	 * @param label
+	 *            Label of the message to send
+	 * @param baseline
+	 *            Message id the delta refers to, see {@link DiffMessage}
+	 * @param old
+	 *            The serialized baseline or {@code null} to send a full
+	 *            message
+	 * @param message
+	 *            Message to send
+	 * @param store
+	 *            Snapshot store that contains the serialized messages
+	 * @param receivers
+	 *            Number of clients that receive the message
+	 * @return The labeled message
+	 */
+	public Message getSnapshot(byte channel, short label, short baseline,
+			ByteBuffer old, T message, SnapshotStore store, int receivers) {
+		return getSnapshot(channel, 0, label, baseline, old, message, store,
+				receivers);
+	}
+
+	/**
+	 * Gets the labeled message of one view of a channel. The views of a
+	 * {@link ViewProjection} share the label of the tick, but each has its own
+	 * store, so the view is part of the key. See
+	 * {@link #getSnapshot(byte, short, short, ByteBuffer, AbstractMessage,
+	 * SnapshotStore, int)}.
+	 * 
+	 * @param channel
+	 *            Channel of the message
+	 * @param view
+	 *            Index of the view in this tick
+	 * @param label
+	 *            Label of the message to send
+	 * @param baseline
+	 *            Message id the delta refers to, see {@link DiffMessage}
+	 * @param old
+	 *            The serialized baseline or {@code null} to send a full
+	 *            message
+	 * @param message
+	 *            Message to send
+	 * @param store
+	 *            Snapshot store of the view
+	 * @param receivers
+	 *            Number of clients that receive the message
+	 * @return The labeled message
+	 */
+	public Message getSnapshot(byte channel, int view, short label,
+			short baseline, ByteBuffer old, T message, SnapshotStore store,
+			int receivers) {
+		Long key = (long) view << 32 | label << 16 | baseline & 0xFFFF;
+		Message cached = messages.get(key);
+		if (cached != null) {
+			hits.addAndGet(receivers);
+			registerSent(cached, store.length(label), receivers);
+			return cached;
+		}
+
+		/* Only the first receiver requires the message to be generated */
+		misses.incrementAndGet();
+		hits.addAndGet(receivers - 1);
+
+		/* The message may be missing if it did not fit in the store */
+		ByteBuffer buffer = store.get(label);
+
+		Message newMessage;
+		if (old == null || buffer == null) {
+			newMessage = new LabeledMessage(channel, label, tickTime, message);
+		} else {
+			long start = System.nanoTime();
+			newMessage = new LabeledMessage(channel, label, tickTime,
+					generateDelta(buffer, old, message, baseline,
+							getSelectionKey(view, label, baseline)));
+			encodeLatency.record(System.nanoTime() - start);
+		}
+
+		registerSent(newMessage, buffer == null ? -1 : buffer.remaining(),
+				receivers);
+		messages.put(key, newMessage);
+		return newMessage;
+	}
+
+	/**
+	 * Counts a labeled message in the statistics once per receiver.
+	 * 
+	 * @param messageSize
+	 *            Size of the full message or -1 if it did not fit in the store
+	 */
+	private void registerSent(Message labeled, int messageSize, int receivers) {
+		if (messageSize < 0) {
+			return;
+		}
+
+		Message sent = ((LabeledMessage) labeled).getMessage();
+		if (sent instanceof DiffMessage) {
+			statistics.registerDelta(((DiffMessage) sent).getData().limit(),
+					messageSize, receivers);
+		} else {
+			statistics.registerFull(messageSize, receivers);
+		}
+	}
+
+	/**
+	 * Gets the key of the codec that is remembered for the deltas of a view
+	 * between messages that are the same number of labels apart. Deltas to
+	 * the static baseline share one key per view.
+	 */
+	private static Long getSelectionKey(int view, short label, short baseline) {
+		int distance = DiffMessage.isBaselineId(baseline) ? 0x10000
+				: (label - baseline) & 0xFFFF;
+		return (long) view << 32 | distance;
+	}
+
+	/**
+	 * Returns a delta message from the serialized message and previous message
+	 * or just message if that happens to be smaller. Every codec is tried and
+	 * the smallest delta is used.
+	 * 
+	 * @param buffer
+	 *            Serialized message to send
+	 * @param old
+	 *            Serialized previous message
+	 * @param message
+	 *            Message to send
+	 * @param prevID
+	 *            Label of the previous message
+	 * @return
+	 */
+	public Message generateDelta(ByteBuffer buffer, ByteBuffer old, T message,
+			short prevID) {
+		return generateDelta(buffer, old, message, prevID, codecs);
+	}
+
+	/**
+	 * Returns a delta message like {@link #generateDelta(ByteBuffer,
+	 * ByteBuffer, AbstractMessage, short)}, but only tries the codec that won
+	 * the last time for the same key. Every codec is tried again after
+	 * {@value #RETRY_INTERVAL} deltas, or when the codec loses to the full
+	 * message. Concurrent deltas with the same key may both try every codec,
+	 * which only costs time.
+	 * 
+	 * @param key
+	 *            Key of the codec selection
+	 */
+	private Message generateDelta(ByteBuffer buffer, ByteBuffer old,
+			T message, short prevID, Long key) {
+		Selection selection = selections.get(key);
+		if (selection != null && selection.uses++ < RETRY_INTERVAL) {
+			Message delta = generateDelta(buffer, old, message, prevID,
+					selection.codec);
+			if (delta instanceof DiffMessage) {
+				return delta;
+			}
+
+			selections.remove(key);
+		}
+
+		Message delta = generateDelta(buffer, old, message, prevID, codecs);
+		if (delta instanceof DiffMessage) {
+			if (selections.size() >= MAX_SELECTIONS) {
+				selections.clear();
+			}
+
+			byte id = ((DiffMessage) delta).getCodec();
+			for (DeltaCodec codec : codecs) {
+				if (codec.getId() == id) {
+					selections.put(key, new Selection(codec));
+				}
+			}
+		} else {
+			selections.remove(key);
+		}
+
+		return delta;
+	}
+
+	/**
+	 * Returns the smallest delta of the given codecs, or the message if that
+	 * is smaller.
+	 */
+	private Message generateDelta(ByteBuffer buffer, ByteBuffer old,
+			T message, short prevID, List<DeltaCodec> codecs) {
+		ByteBuffer[] targets = encodeBuffers.get();
+		int messageSize = buffer.remaining();
+		int bestSize = messageSize;
+
+		/* The buffers grow with the largest message */
+		for (int i = 0; i < 2; i++) {
+			targets[i] = MessageSerialization.ensureCapacity(targets[i],
+					messageSize);
+		}
+
+		DeltaCodec best = null;
+
+		for (DeltaCodec codec : codecs) {
+			ByteBuffer target = targets[best == null ? 0 : 1];
+			target.clear();
+			target.limit(messageSize);
+
+			int size;
+			try {
+				codec.encode(old, buffer, target);
+				size = target.position();
+			} catch (BufferOverflowException e) {
+				size = messageSize; // not worth sending
+			}
+
+			statistics.registerAttempt(codec.getId(), size);
+
+			/* The header is the label, codec and two lengths */
+			int total = size + 3 + Varint.size(messageSize)
+					+ Varint.size(size);
+			if (total < bestSize) {
+				bestSize = total;
+
+				// keep the best delta in the first buffer
+				if (best != null) {
+					targets[1] = targets[0];
+					targets[0] = target;
+				}
+
+				best = codec;
+			}
+		}
+
+		if (best == null) {
+			return message;
+		}
+
+		ByteBuffer target = targets[0];
+		target.flip();
+		ByteBuffer delta = slice(targets, target);
+
+		statistics.registerSelection(best.getId(), delta.limit());
+		return new DiffMessage(prevID, best.getId(), messageSize, delta);
+	}
+
+	/**
+	 * Copies a delta to the chunk of this thread and returns a read-only
+	 * slice of it. A full chunk is replaced by a new one, and is collected
+	 * once the messages that were sliced from it are gone, so the deltas of
+	 * a tick do not need an array each.
+	 * 
+	 * @param targets
+	 *            Buffers of this thread, of which the last is the chunk
+	 * @param delta
+	 *            The encoded delta
+	 * @return The copy of the delta, from position 0 to the limit
+	 */
+	private static ByteBuffer slice(ByteBuffer[] targets, ByteBuffer delta) {
+		ByteBuffer chunk = targets[2];
+		if (chunk.remaining() < delta.remaining()) {
+			chunk = ByteBuffer.allocate(Math.max(CHUNK_SIZE,
+					delta.remaining()));
+			targets[2] = chunk;
+		}
+
+		ByteBuffer copy = chunk.slice();
+		copy.limit(delta.remaining());
+		chunk.position(chunk.position() + delta.remaining());
+		copy.put(delta);
+		copy.flip();
+		return copy.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Sets the codecs that are tried for every delta message. The client
+	 * should have registered the same codecs in {@link DeltaCodecs}.
+	 * 
+	 * @param codecs
+	 *            Codecs to try
+	 */
+	public void setCodecs(List<DeltaCodec> codecs) {
+		this.codecs = new ArrayList<>(codecs);
+		selections.clear();
+	}
+
+	public List<DeltaCodec> getCodecs() {
+		return codecs;
+	}
+
+	/**
+	 * Gets the statistics of the sizes of the delta messages per codec.
+	 * 
+	 * @return The delta statistics
+	 */
+	public DeltaStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Gets the histogram of the time it takes to generate a delta message.
+	 * 
+	 * @return The encode latency
+	 */
+	public LatencyHistogram getEncodeLatency() {
+		return encodeLatency;
+	}
+
+	/**
+	 * Gets the number of receivers that were served from the cache.
+	 * 
+	 * @return Number of cache hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of times a new message had to be generated.
+	 * 
+	 * @return Number of cache misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Gets the fraction of receivers that were served from the cache.
+	 * 
+	 * @return Hit ratio between 0 and 1, or 0 if there were no receivers
+	 */
+	public double getHitRatio() {
+		long numHits = hits.get();
+		long total = numHits + misses.get();
+		return total == 0 ? 0 : (double) numHits / total;
+	}
+
+	public void resetStatistics() {
+		hits.set(0);
+		misses.set(0);
+		encodeLatency.reset();
+	}
+
+	/**
+	 * The codec that produced the smallest delta for a key, with the number
+	 * of deltas it produced since every codec was tried.
+	 */
+	private static class Selection {
+		private final List<DeltaCodec> codec;
+		private int uses;
+
+		public Selection(DeltaCodec codec) {
+			this.codec = Collections.singletonList(codec);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package diff;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the difference between two serialized messages and applies it
+ * again. A delta message is tagged with the id of its codec, so the client
+ * can decode it with the same codec. The server tries all its codecs and
+ * sends the smallest delta.
+ * <p>
+ * Codecs are registered in {@link DeltaCodecs} with an id that has to be the
+ * same on the server and the client. Codecs should be stateless, because they
+ * are shared between handlers and threads.
+ * 
+ * @author Ben Ruijl
+ * @see DeltaCodecs
+ */
+public interface DeltaCodec {
+
+	/**
+	 * Gets the id of the codec, which identifies it in delta messages. The
+	 * highest bit is reserved, so the id is between 0 and 127.
+	 * 
+	 * @return Codec id
+	 */
+	byte getId();
+
+	/**
+	 * Encodes the difference between the baseline and the message. Both are
+	 * read from their position to their limit, without changing the
+	 * position.
+	 * 
+	 * @param baseline
+	 *            Serialized message the client already has
+	 * @param message
+	 *            Serialized message to send
+	 * @param target
+	 *            Buffer to write the delta to, starting at its position
+	 * @throws java.nio.BufferOverflowException
+	 *             If the delta does not fit in the target, in which case it is
+	 *             not worth sending
+	 */
+	void encode(ByteBuffer baseline, ByteBuffer message, ByteBuffer target);
+
+	/**
+	 * Applies a delta to the baseline. The new message is written to the
+	 * target from its position to its limit, which is set to the length of
+	 * the new message by the caller.
+	 * 
+	 * @param baseline
+	 *            Serialized message the delta is a difference of
+	 * @param delta
+	 *            Delta, read from its position to its limit
+	 * @param target
+	 *            Buffer to write the new message to
+	 */
+	void decode(ByteBuffer baseline, ByteBuffer delta, ByteBuffer target);
+}
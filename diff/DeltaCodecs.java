@@ -0,0 +1,84 @@
+package diff;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The registry of delta codecs. The server can only use codecs that the
+ * client knows, so make sure that the same codecs are registered on both
+ * sides. The default codecs are registered by
+ * {@link DiffClassRegistration#registerClasses()}.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class DeltaCodecs {
+	private static final DeltaCodec[] codecs = new DeltaCodec[128];
+
+	private DeltaCodecs() {
+	}
+
+	/**
+	 * Registers the default codecs:
+	 * <ul>
+	 * <li>{@link IntBitmaskCodec}, the original format of quakemonkey</li>
+	 * <li>{@link ByteBitmaskCodec}</li>
+	 * <li>{@link XorRunLengthCodec}</li>
+	 * <li>{@link VarintChangeListCodec}</li>
+	 * <li>{@link BlockMatchCodec}</li>
+	 * <li>{@link EntityDeltaCodec}, for messages that are serialized with an
+	 * {@link EntityMessageSerializer}</li>
+	 * </ul>
+	 */
+	public static void registerDefaults() {
+		register(new IntBitmaskCodec());
+		register(new ByteBitmaskCodec());
+		register(new XorRunLengthCodec());
+		register(new VarintChangeListCodec());
+		register(new BlockMatchCodec());
+		register(new EntityDeltaCodec());
+	}
+
+	/**
+	 * Registers a codec under its id, replacing the codec that was registered
+	 * with the same id. Ids are between 0 and 127.
+	 * 
+	 * @param codec
+	 *            Codec to register
+	 */
+	public static synchronized void register(DeltaCodec codec) {
+		if (codec.getId() < 0) {
+			throw new IllegalArgumentException("Codec id " + codec.getId()
+					+ " is not between 0 and 127");
+		}
+
+		codecs[codec.getId()] = codec;
+	}
+
+	/**
+	 * Gets the codec with the given id.
+	 * 
+	 * @param id
+	 *            Codec id
+	 * @return The codec or {@code null} if there is no codec with this id
+	 */
+	public static DeltaCodec get(byte id) {
+		return id < 0 ? null : codecs[id];
+	}
+
+	/**
+	 * Gets all registered codecs, ordered by id.
+	 * 
+	 * @return List of codecs
+	 */
+	public static synchronized List<DeltaCodec> getAll() {
+		List<DeltaCodec> all = new ArrayList<>();
+		for (DeltaCodec codec : codecs) {
+			if (codec != null) {
+				all.add(codec);
+			}
+		}
+
+		return all;
+	}
+}
@@ -0,0 +1,44 @@
+package diff;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An optional compression stage for the payload of delta messages, applied
+ * after the delta is encoded. The compressor is set when the classes are
+ * registered in {@link DiffClassRegistration}, so the server and the client
+ * have to use the same compressor.
+ * <p>
+ * Compressors should be thread-safe, because messages can be serialized on
+ * several threads.
+ * 
+ * @author Ben Ruijl
+ * @see HuffmanCompressor
+ * @see LzCompressor
+ */
+public interface DeltaCompressor {
+
+	/**
+	 * Compresses the source from its position to its limit.
+	 * 
+	 * @param source
+	 *            Data to compress
+	 * @param target
+	 *            Buffer to write the compressed data to, starting at its
+	 *            position
+	 * @throws java.nio.BufferOverflowException
+	 *             If the compressed data does not fit in the target, in which
+	 *             case compression does not pay off
+	 */
+	void compress(ByteBuffer source, ByteBuffer target);
+
+	/**
+	 * Decompresses the source. The target is filled from its position to its
+	 * limit, which is set to the original length by the caller.
+	 * 
+	 * @param source
+	 *            Compressed data, read from its position
+	 * @param target
+	 *            Buffer to write the original data to
+	 */
+	void decompress(ByteBuffer source, ByteBuffer target);
+}
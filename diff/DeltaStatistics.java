@@ -0,0 +1,211 @@
+package diff;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics of the delta messages that are generated, per codec, and of the
+ * full and delta messages that connections receive. For every delta, all
+ * codecs are tried, so the average size per codec shows which codec suits
+ * the messages best. The attempts and selections per codec are counted once
+ * per generated delta, while the full and delta messages and their sizes are
+ * counted once per receiving connection, so that their ratios describe what
+ * the connections actually receive. The counters are updated without
+ * locking.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class DeltaStatistics {
+	private final AtomicLongArray attempts;
+	private final AtomicLongArray encodedBytes;
+	private final AtomicLongArray selections;
+	private final AtomicLongArray selectedBytes;
+	private final AtomicLong fullMessages;
+	private final AtomicLong fullBytes;
+	private final AtomicLong deltaMessages;
+	private final AtomicLong deltaBytes;
+	private final AtomicLong deltaMessageBytes;
+
+	public DeltaStatistics() {
+		attempts = new AtomicLongArray(256);
+		encodedBytes = new AtomicLongArray(256);
+		selections = new AtomicLongArray(256);
+		selectedBytes = new AtomicLongArray(256);
+		fullMessages = new AtomicLong();
+		fullBytes = new AtomicLong();
+		deltaMessages = new AtomicLong();
+		deltaBytes = new AtomicLong();
+		deltaMessageBytes = new AtomicLong();
+	}
+
+	/**
+	 * Registers that a codec encoded a delta.
+	 * 
+	 * @param codec
+	 *            Codec id
+	 * @param size
+	 *            Size of the delta, or the size of the full message if the
+	 *            delta is larger
+	 */
+	public void registerAttempt(byte codec, int size) {
+		attempts.incrementAndGet(codec & 0xFF);
+		encodedBytes.addAndGet(codec & 0xFF, size);
+	}
+
+	/**
+	 * Registers that the delta of a codec is the smallest and is generated.
+	 * 
+	 * @param codec
+	 *            Codec id
+	 * @param size
+	 *            Size of the delta
+	 */
+	public void registerSelection(byte codec, int size) {
+		selections.incrementAndGet(codec & 0xFF);
+		selectedBytes.addAndGet(codec & 0xFF, size);
+	}
+
+	/**
+	 * Registers that a delta is sent to a number of connections.
+	 * 
+	 * @param size
+	 *            Size of the delta
+	 * @param messageSize
+	 *            Size of the full message
+	 * @param receivers
+	 *            Number of connections that receive the delta
+	 */
+	public void registerDelta(int size, int messageSize, int receivers) {
+		deltaMessages.addAndGet(receivers);
+		deltaBytes.addAndGet((long) size * receivers);
+		deltaMessageBytes.addAndGet((long) messageSize * receivers);
+	}
+
+	/**
+	 * Registers that a full message is sent to a number of connections,
+	 * because there was no baseline or no delta was smaller.
+	 * 
+	 * @param size
+	 *            Size of the full message
+	 * @param receivers
+	 *            Number of connections that receive the message
+	 */
+	public void registerFull(int size, int receivers) {
+		fullMessages.addAndGet(receivers);
+		fullBytes.addAndGet((long) size * receivers);
+	}
+
+	public long getAttempts(byte codec) {
+		return attempts.get(codec & 0xFF);
+	}
+
+	public long getSelections(byte codec) {
+		return selections.get(codec & 0xFF);
+	}
+
+	/**
+	 * Gets the average size of the deltas the codec encoded, whether they were
+	 * sent or not.
+	 * 
+	 * @param codec
+	 *            Codec id
+	 * @return Average size in bytes, or 0 if the codec was never used
+	 */
+	public double getAverageBytes(byte codec) {
+		long count = attempts.get(codec & 0xFF);
+		return count == 0 ? 0 : (double) encodedBytes.get(codec & 0xFF)
+				/ count;
+	}
+
+	/**
+	 * Gets the average size of the deltas of the codec that were sent.
+	 * 
+	 * @param codec
+	 *            Codec id
+	 * @return Average size in bytes, or 0 if the codec was never selected
+	 */
+	public double getAverageSelectedBytes(byte codec) {
+		long count = selections.get(codec & 0xFF);
+		return count == 0 ? 0 : (double) selectedBytes.get(codec & 0xFF)
+				/ count;
+	}
+
+	public long getFullMessages() {
+		return fullMessages.get();
+	}
+
+	public long getFullBytes() {
+		return fullBytes.get();
+	}
+
+	public long getDeltaMessages() {
+		return deltaMessages.get();
+	}
+
+	/**
+	 * Gets the total size of the deltas that were sent, summed over the
+	 * receiving connections.
+	 * 
+	 * @return Size in bytes
+	 */
+	public long getDeltaBytes() {
+		return deltaBytes.get();
+	}
+
+	/**
+	 * Gets the total size of the full messages that were replaced by deltas,
+	 * summed over the receiving connections.
+	 * 
+	 * @return Size in bytes
+	 */
+	public long getReplacedBytes() {
+		return deltaMessageBytes.get();
+	}
+
+	/**
+	 * Gets the total size of the deltas that were sent, divided by the total
+	 * size of the full messages they replaced.
+	 * 
+	 * @return Compression ratio, or 0 if no deltas were sent
+	 */
+	public double getDeltaRatio() {
+		long sent = getDeltaBytes();
+		long replaced = deltaMessageBytes.get();
+		return replaced == 0 ? 0 : (double) sent / replaced;
+	}
+
+	public void reset() {
+		for (int i = 0; i < attempts.length(); i++) {
+			attempts.set(i, 0);
+			encodedBytes.set(i, 0);
+			selections.set(i, 0);
+			selectedBytes.set(i, 0);
+		}
+
+		fullMessages.set(0);
+		fullBytes.set(0);
+		deltaMessages.set(0);
+		deltaBytes.set(0);
+		deltaMessageBytes.set(0);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("full messages: ").append(getFullMessages()).append(" (")
+				.append(getFullBytes()).append(" bytes), delta ratio: ")
+				.append(String.format("%.3f", getDeltaRatio()));
+
+		for (DeltaCodec codec : DeltaCodecs.getAll()) {
+			byte id = codec.getId();
+			sb.append("\n  ").append(codec.getClass().getSimpleName())
+					.append(": selected ").append(getSelections(id))
+					.append(" of ").append(getAttempts(id))
+					.append(String.format(", avg %.1f bytes",
+							getAverageBytes(id)));
+		}
+
+		return sb.toString();
+	}
+}
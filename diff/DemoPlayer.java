@@ -0,0 +1,285 @@
+package diff;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.jme3.network.AbstractMessage;
+import com.jme3.network.Client;
+import com.jme3.network.MessageListener;
+import com.jme3.network.base.MessageListenerRegistry;
+import com.jme3.network.serializing.Serializer;
+
+/**
+ * Plays a demo that was recorded with a {@link DemoRecorder}, by delivering
+ * the recorded messages to listeners, like a {@link ClientDiffHandler} does.
+ * The same listeners can be added to both, with a {@code null} source for the
+ * replayed messages.
+ * <p>
+ * Call {@link #update(long)} every frame to play the demo at the pace it was
+ * recorded, multiplied by the speed, or step through it with {@link #next()}.
+ * {@link #seek(int)} jumps to any tick: it looks up the keyframe of the tick
+ * in the index and applies at most one keyframe interval of deltas.
+ * <p>
+ * The same classes should be registered in the {@link Serializer} as when the
+ * demo was recorded. Not thread-safe.
+ * 
+ * @author Ben Ruijl
+ * 
+ * @param <T>
+ *            Message type
+ */
+public class DemoPlayer<T extends AbstractMessage> implements Closeable {
+	private final MappedFile data;
+	private final MappedFile index;
+	private final int keyframeInterval;
+	private final int numTicks;
+	private final long end;
+	private final MessageListenerRegistry<Client> listenerRegistry;
+	private ByteBuffer current;
+	private ByteBuffer scratch;
+	private long nextOffset;
+	private int tick;
+	private long time;
+	private double speed;
+
+	/**
+	 * Opens a demo and its index file.
+	 * 
+	 * @param file
+	 *            The demo file
+	 * @throws IOException
+	 *             If the file is not a demo or cannot be read
+	 */
+	public DemoPlayer(File file) throws IOException {
+		data = new MappedFile(file, false);
+		index = new MappedFile(DemoRecorder.getIndexFile(file), false);
+
+		ByteBuffer header = data.map(0, DemoRecorder.HEADER_SIZE);
+		if (header.getInt() != DemoRecorder.MAGIC
+				|| header.getInt() != DemoRecorder.FORMAT_VERSION) {
+			close();
+			throw new IOException(file + " is not a demo of this version");
+		}
+
+		/* The end in the header excludes a batch that was partly written */
+		keyframeInterval = header.getInt();
+		end = header.getLong();
+		numTicks = header.getInt();
+		if (end < DemoRecorder.HEADER_SIZE || end > data.size()
+				|| 8L * numTicks > index.size()) {
+			close();
+			throw new IOException(file + " or its index is damaged");
+		}
+		listenerRegistry = new MessageListenerRegistry<>();
+		current = ByteBuffer.allocate(4096);
+		scratch = ByteBuffer.allocate(4096);
+		speed = 1;
+		rewind();
+	}
+
+	public void addListener(MessageListener<? super Client> listener) {
+		listenerRegistry.addMessageListener(listener);
+	}
+
+	public void removeListener(MessageListener<? super Client> listener) {
+		listenerRegistry.removeMessageListener(listener);
+	}
+
+	/**
+	 * Sets the speed at which {@link #update(long)} plays the demo.
+	 * 
+	 * @param speed
+	 *            Factor of the recorded pace, 1 by default
+	 */
+	public void setSpeed(double speed) {
+		this.speed = speed;
+	}
+
+	public double getSpeed() {
+		return speed;
+	}
+
+	public int getKeyframeInterval() {
+		return keyframeInterval;
+	}
+
+	/**
+	 * Gets the number of ticks in the demo, including the ticks that were
+	 * dropped while recording.
+	 * 
+	 * @return Number of ticks
+	 */
+	public int getNumTicks() {
+		return numTicks;
+	}
+
+	/**
+	 * Gets the last tick that was played.
+	 * 
+	 * @return The tick or -1 if no tick has been played yet
+	 */
+	public int getTick() {
+		return tick;
+	}
+
+	/**
+	 * Gets the playing time, which is the time since the start of the
+	 * recording.
+	 * 
+	 * @return Time in nanoseconds
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Moves back to the start of the demo, without delivering anything.
+	 */
+	public void rewind() {
+		nextOffset = DemoRecorder.HEADER_SIZE;
+		tick = -1;
+		time = 0;
+	}
+
+	/**
+	 * Advances the playing time and delivers every tick that was recorded
+	 * before it.
+	 * 
+	 * @param elapsed
+	 *            Elapsed real time in nanoseconds, which is multiplied by the
+	 *            speed
+	 * @return The number of delivered ticks
+	 */
+	public int update(long elapsed) throws IOException {
+		time += (long) (elapsed * speed);
+
+		int delivered = 0;
+		while (nextOffset < end
+				&& data.map(nextOffset, DemoRecorder.RECORD_HEADER_SIZE)
+						.getLong(4) <= time) {
+			long playing = time;
+			next();
+			time = playing; // do not jump to the time of the tick
+			delivered++;
+		}
+
+		return delivered;
+	}
+
+	/**
+	 * Delivers the next tick.
+	 * 
+	 * @return The message of the tick or {@code null} at the end of the demo
+	 */
+	public T next() throws IOException {
+		if (nextOffset >= end) {
+			return null;
+		}
+
+		nextOffset = read(nextOffset);
+		return deliver();
+	}
+
+	/**
+	 * Jumps to a tick and delivers it. If the tick was dropped while
+	 * recording, the tick before it is delivered.
+	 * 
+	 * @param target
+	 *            The tick
+	 * @return The message of the tick or {@code null} if there is no tick at
+	 *         or before it
+	 */
+	public T seek(int target) throws IOException {
+		long offset = -1;
+		for (int i = Math.min(target, numTicks - 1); i >= 0 && offset < 0; i--) {
+			offset = index.map(8L * i, 8).getLong() - 1;
+		}
+
+		if (offset < 0) {
+			rewind();
+			return null;
+		}
+
+		/* Apply the deltas from the keyframe of the tick */
+		long position = data.map(offset, DemoRecorder.RECORD_HEADER_SIZE)
+				.getLong(12);
+		while (position <= offset) {
+			position = read(position);
+		}
+
+		nextOffset = position;
+		return deliver();
+	}
+
+	/**
+	 * Reads a record and applies it to the current message.
+	 * 
+	 * @return The offset of the next record
+	 */
+	private long read(long offset) throws IOException {
+		ByteBuffer header = data.map(offset, DemoRecorder.RECORD_HEADER_SIZE);
+		int recordTick = header.getInt();
+		long recordTime = header.getLong();
+		header.getLong(); // keyframe
+		byte codecId = header.get();
+		int length = header.getInt();
+		int size = header.getInt();
+
+		ByteBuffer record = data.map(offset, DemoRecorder.RECORD_HEADER_SIZE
+				+ size);
+		record.position(DemoRecorder.RECORD_HEADER_SIZE);
+		record.limit(DemoRecorder.RECORD_HEADER_SIZE + size);
+		ByteBuffer payload = record.slice();
+
+		if (codecId == DemoRecorder.KEYFRAME) {
+			current = MessageSerialization.ensureCapacity(current, length);
+			current.clear();
+			current.put(payload);
+		} else {
+			DeltaCodec codec = DeltaCodecs.get(codecId);
+			if (codec == null) {
+				throw new IOException("Unknown delta codec " + codecId
+						+ ", make sure it is registered");
+			}
+
+			scratch = MessageSerialization.ensureCapacity(scratch, length);
+			scratch.clear();
+			scratch.limit(length);
+			current.flip();
+			codec.decode(current, payload, scratch);
+
+			ByteBuffer swap = current;
+			current = scratch;
+			scratch = swap;
+		}
+
+		current.position(length);
+		current.limit(current.capacity());
+		tick = recordTick;
+		time = recordTime;
+		return offset + DemoRecorder.RECORD_HEADER_SIZE + size;
+	}
+
+	/**
+	 * Deserializes the current message and delivers it to the listeners.
+	 */
+	@SuppressWarnings("unchecked")
+	private T deliver() throws IOException {
+		ByteBuffer serialized = current.duplicate();
+		serialized.flip();
+		T message = (T) Serializer.readClassAndObject(serialized);
+		listenerRegistry.messageReceived(null, message);
+		return message;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			data.close();
+		} finally {
+			index.close();
+		}
+	}
+}
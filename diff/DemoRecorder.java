@@ -0,0 +1,412 @@
+package diff;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the messages of a {@link ServerChannel} to a demo file, for replays
+ * and reviews. Set it with {@link ServerChannel#setRecorder} and play the
+ * file with a {@link DemoPlayer}.
+ * <p>
+ * The file is append-only and written in batches through its channel; the
+ * player reads it through memory-mapped windows. Every dispatched message is
+ * a tick, which is stored as a delta of the previous
+ * tick with the smallest of the registered {@link DeltaCodec}s, or as a full
+ * keyframe every {@code keyframeInterval} ticks. An index file next to the
+ * demo, with the extension {@code .idx}, holds the offset of every tick, and
+ * every tick holds the offset of its keyframe, so that a player finds the
+ * keyframe of any tick in constant time.
+ * <p>
+ * The dispatching thread only copies the serialized message into a queue.
+ * The deltas are generated and written in batches on a background thread.
+ * If the writer falls behind by more than the queue capacity, ticks are
+ * dropped and the next tick that is written is a keyframe.
+ * <p>
+ * The header holds the end of the written records and the number of ticks,
+ * which are updated after every batch. A demo of a recorder that crashed or
+ * was not closed can therefore be played up to its last written batch.
+ * <p>
+ * File format, in big-endian order: a header of a magic number, the format
+ * version, the keyframe interval, the end offset of the records and the
+ * number of ticks, followed by records of the tick number,
+ * the time since the start of the recording in nanoseconds, the offset of
+ * the keyframe, the codec id or -1 for a keyframe, the length of the
+ * serialized message, the size of the data and the data itself.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class DemoRecorder implements Closeable {
+	protected static final Logger log = Logger.getLogger(DemoRecorder.class
+			.getName());
+	static final int MAGIC = 0x514D444D; // QMDM
+	static final int FORMAT_VERSION = 2;
+	static final int HEADER_SIZE = 24;
+	/** Offset of the end offset and the number of ticks in the header */
+	static final int PROGRESS_OFFSET = 12;
+	/** Size of the header of a record */
+	static final int RECORD_HEADER_SIZE = 29;
+	static final byte KEYFRAME = -1;
+	/** Maximum number of ticks that are written at once */
+	private static final int BATCH_SIZE = 64;
+	private static final Tick END = new Tick(-1, 0, new byte[0]);
+	private final MappedFile data;
+	private final MappedFile index;
+	private final int keyframeInterval;
+	private final BlockingQueue<Tick> queue;
+	private final Thread writer;
+	private final long startTime;
+	private final AtomicLong written;
+	private final AtomicLong dropped;
+	private volatile boolean closed;
+	private boolean finished;
+	private int nextTick;
+
+	/* State of the writer thread */
+	private final List<DeltaCodec> codecs;
+	private long position;
+	private ByteBuffer records; // records that are not written yet
+	private long recordsStart;
+	private ByteBuffer indexEntries; // index entries that are not written yet
+	private int indexStart;
+	private final ByteBuffer progress;
+	private long keyframe;
+	private int lastTick;
+	private byte[] previous;
+	private ByteBuffer encodeBuffer;
+	private ByteBuffer bestBuffer;
+	private DeltaCodec bestCodec;
+
+	/**
+	 * Creates a recorder that keeps up to 256 ticks in its queue.
+	 * 
+	 * @param file
+	 *            The demo file, which is overwritten
+	 * @param keyframeInterval
+	 *            Number of ticks between keyframes
+	 */
+	public DemoRecorder(File file, int keyframeInterval) throws IOException {
+		this(file, keyframeInterval, 256);
+	}
+
+	/**
+	 * Creates a recorder.
+	 * 
+	 * @param file
+	 *            The demo file, which is overwritten
+	 * @param keyframeInterval
+	 *            Number of ticks between keyframes. A longer interval makes
+	 *            the demo smaller, but seeking slower.
+	 * @param queueCapacity
+	 *            Number of ticks that can wait to be written
+	 */
+	public DemoRecorder(File file, int keyframeInterval, int queueCapacity)
+			throws IOException {
+		if (keyframeInterval <= 0) {
+			throw new IllegalArgumentException(
+					"The keyframe interval should be positive");
+		}
+
+		this.keyframeInterval = keyframeInterval;
+		data = new MappedFile(file, true);
+		index = new MappedFile(getIndexFile(file), true);
+		queue = new ArrayBlockingQueue<>(queueCapacity);
+		codecs = DeltaCodecs.getAll();
+		written = new AtomicLong();
+		dropped = new AtomicLong();
+		encodeBuffer = ByteBuffer.allocate(4096);
+		bestBuffer = ByteBuffer.allocate(4096);
+		records = ByteBuffer.allocate(64 << 10);
+		indexEntries = ByteBuffer.allocate(8 * BATCH_SIZE);
+		progress = ByteBuffer.allocate(12);
+		lastTick = -1;
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(FORMAT_VERSION);
+		header.putInt(keyframeInterval);
+		header.putLong(HEADER_SIZE);
+		header.putInt(0);
+		header.flip();
+		data.write(0, header);
+		position = HEADER_SIZE;
+		recordsStart = HEADER_SIZE;
+
+		startTime = System.nanoTime();
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "DemoRecorder " + file.getName());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Gets the index file of a demo.
+	 * 
+	 * @param file
+	 *            The demo file
+	 * @return The index file
+	 */
+	public static File getIndexFile(File file) {
+		return new File(file.getPath() + ".idx");
+	}
+
+	/**
+	 * Records the message of a tick. Only copies the message, the rest is
+	 * done on the writer thread. Should be called by one thread at a time.
+	 * 
+	 * @param serialized
+	 *            The serialized message, from its position to its limit,
+	 *            which is not changed
+	 * @return True if the tick is queued, false if it is dropped because the
+	 *         writer falls behind or the recorder is closed
+	 */
+	public boolean record(ByteBuffer serialized) {
+		long time = System.nanoTime() - startTime;
+		int tick = nextTick++;
+		if (closed) {
+			return false;
+		}
+
+		byte[] copy = new byte[serialized.remaining()];
+		serialized.duplicate().get(copy);
+
+		if (!queue.offer(new Tick(tick, time, copy))) {
+			dropped.incrementAndGet();
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes the queued ticks in batches, until the recorder is closed.
+	 */
+	private void write() {
+		List<Tick> batch = new ArrayList<>(BATCH_SIZE);
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch, BATCH_SIZE - 1);
+
+				for (Tick tick : batch) {
+					if (tick == END) {
+						flush();
+						return;
+					}
+
+					write(tick);
+				}
+
+				flush();
+				batch.clear();
+			}
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Could not write demo, stopping recording",
+					e);
+			closed = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write(Tick tick) throws IOException {
+		ByteBuffer message = ByteBuffer.wrap(tick.message);
+		byte codec = KEYFRAME;
+		ByteBuffer payload = message;
+
+		/* A tick after a dropped one has no baseline */
+		if (tick.tick % keyframeInterval != 0 && lastTick == tick.tick - 1) {
+			ByteBuffer delta = encode(ByteBuffer.wrap(previous), message);
+			if (delta != null) {
+				codec = bestCodec.getId();
+				payload = delta;
+			}
+		}
+
+		if (codec == KEYFRAME) {
+			keyframe = position;
+		}
+
+		int size = payload.remaining();
+		if (records.remaining() < RECORD_HEADER_SIZE + size) {
+			flushRecords();
+			records = MessageSerialization.ensureCapacity(records,
+					RECORD_HEADER_SIZE + size);
+		}
+
+		records.putInt(tick.tick);
+		records.putLong(tick.time);
+		records.putLong(keyframe);
+		records.put(codec);
+		records.putInt(tick.message.length);
+		records.putInt(size);
+		records.put(payload);
+
+		/* Dropped ticks are left as a hole in the index, which reads as 0 */
+		if (!indexEntries.hasRemaining()
+				|| tick.tick != indexStart + indexEntries.position() / 8) {
+			flushIndex();
+		}
+
+		if (indexEntries.position() == 0) {
+			indexStart = tick.tick;
+		}
+
+		/* The offset is stored plus one, so that 0 marks a dropped tick */
+		indexEntries.putLong(position + 1);
+
+		position += RECORD_HEADER_SIZE + size;
+		previous = tick.message;
+		lastTick = tick.tick;
+		written.incrementAndGet();
+	}
+
+	/**
+	 * Writes the records and index entries of a batch, and then the new end
+	 * of the records to the header, so that the header never points past the
+	 * written data.
+	 */
+	private void flush() throws IOException {
+		flushRecords();
+		flushIndex();
+
+		progress.clear();
+		progress.putLong(position);
+		progress.putInt(lastTick + 1);
+		progress.flip();
+		data.write(PROGRESS_OFFSET, progress);
+	}
+
+	private void flushRecords() throws IOException {
+		records.flip();
+		data.write(recordsStart, records);
+		records.clear();
+		recordsStart = position;
+	}
+
+	private void flushIndex() throws IOException {
+		indexEntries.flip();
+		index.write(8L * indexStart, indexEntries);
+		indexEntries.clear();
+	}
+
+	/**
+	 * Encodes the smallest delta of all codecs and keeps its codec.
+	 * 
+	 * @return The delta or {@code null} if no delta is smaller than the
+	 *         message
+	 */
+	private ByteBuffer encode(ByteBuffer baseline, ByteBuffer message) {
+		int messageSize = message.remaining();
+		encodeBuffer = MessageSerialization.ensureCapacity(encodeBuffer,
+				messageSize);
+		bestBuffer = MessageSerialization.ensureCapacity(bestBuffer,
+				messageSize);
+		bestCodec = null;
+
+		for (DeltaCodec codec : codecs) {
+			encodeBuffer.clear();
+			encodeBuffer.limit(messageSize);
+
+			try {
+				codec.encode(baseline, message, encodeBuffer);
+			} catch (BufferOverflowException e) {
+				continue; // not smaller than the message
+			}
+
+			if (bestCodec == null
+					|| encodeBuffer.position() < bestBuffer.position()) {
+				ByteBuffer swap = bestBuffer;
+				bestBuffer = encodeBuffer;
+				encodeBuffer = swap;
+				bestCodec = codec;
+			}
+		}
+
+		if (bestCodec == null) {
+			return null;
+		}
+
+		bestBuffer.flip();
+		return bestBuffer;
+	}
+
+	/**
+	 * Gets the number of ticks that were written to the file.
+	 * 
+	 * @return Number of ticks
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * Gets the number of ticks that were dropped because the writer fell
+	 * behind.
+	 * 
+	 * @return Number of ticks
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Writes the remaining ticks and closes the files. Ticks that are
+	 * recorded afterwards are dropped.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (finished) {
+			return;
+		}
+
+		closed = true;
+		try {
+			if (writer.isAlive()) {
+				queue.put(END);
+			}
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing the demo", e);
+		}
+
+		finished = true;
+		try {
+			data.finish();
+			index.finish();
+		} finally {
+			data.close();
+			index.close();
+		}
+	}
+
+	/**
+	 * A serialized message that waits to be written.
+	 */
+	private static class Tick {
+		private final int tick;
+		private final long time;
+		private final byte[] message;
+
+		public Tick(int tick, long time, byte[] message) {
+			this.tick = tick;
+			this.time = time;
+			this.message = message;
+		}
+	}
+}
@@ -16,11 +16,58 @@ public class DiffClassRegistration {
 	 * is called before creation of the server and the client and that the
 	 * position in the code relative to other {@link Serializer.registerClass}
 	 * calls is the same.
+	 * <p>
+	 * Also registers the default {@link DeltaCodec}s. Custom codecs should be
+	 * registered in {@link DeltaCodecs} on both sides as well.
 	 */
 	public static void registerClasses() {
-		Serializer
-				.registerClass(DiffMessage.class, new DiffMessageSerializer());
-		Serializer.registerClass(AckMessage.class);
+		registerClasses(null, 0);
+	}
+
+	/**
+	 * Registers the messages that are required for the snapshot protocol and
+	 * compresses the payload of delta messages. The server and the client
+	 * should be registered with the same compressor.
+	 * 
+	 * @param compressor
+	 *            Compressor for delta messages or {@code null} for no
+	 *            compression
+	 * @param threshold
+	 *            Minimum payload size in bytes for which compression is tried.
+	 *            Payloads are only compressed if that makes them smaller.
+	 * @see #registerClasses()
+	 */
+	public static void registerClasses(DeltaCompressor compressor,
+			int threshold) {
+		registerClasses(compressor, threshold, false);
+	}
+
+	/**
+	 * Registers the messages that are required for the snapshot protocol,
+	 * optionally reading delta messages without copying their data. Zero-copy
+	 * reading is only useful on the client, see {@link DiffMessageSerializer}.
+	 * 
+	 * @param compressor
+	 *            Compressor for delta messages or {@code null} for no
+	 *            compression
+	 * @param threshold
+	 *            Minimum payload size in bytes for which compression is tried
+	 * @param zeroCopy
+	 *            True if received delta messages are views of the packet
+	 * @see #registerClasses(DeltaCompressor, int)
+	 */
+	public static void registerClasses(DeltaCompressor compressor,
+			int threshold, boolean zeroCopy) {
+		DeltaCodecs.registerDefaults();
+
+		Serializer.registerClass(DiffMessage.class, new DiffMessageSerializer(
+				compressor, threshold, zeroCopy));
+		Serializer.registerClass(AckMessage.class, new AckMessageSerializer());
 		Serializer.registerClass(LabeledMessage.class);
+		Serializer.registerClass(FragmentMessage.class,
+				new FragmentMessageSerializer());
+		Serializer.registerClass(BundleMessage.class,
+				new BundleMessageSerializer());
+		Serializer.registerClass(BaselineMessage.class);
 	}
 }
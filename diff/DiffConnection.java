@@ -1,20 +1,25 @@
 package diff;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.jme3.network.AbstractMessage;
-import com.jme3.network.Message;
-import com.jme3.network.base.MessageProtocol;
 
 /**
- * The server-side handler of generating delta messages for one connection. It
- * keeps track of a list of snapshots in a cyclic array and registers the last
- * snapshot that was successfully received by the client.
+ * The server-side state of one connection. It registers the last snapshot that
+ * was sent to and successfully received by the client, and which of the last
+ * 64 snapshots that were sent have been received. The snapshots
+ * themselves are kept in a {@link SnapshotStore} and the delta messages are
+ * generated by a {@link DeltaCache}, which are both shared by all connections.
+ * <p>
+ * Threading: {@link #registerSent(short)} and {@link #getBaseline} are called
+ * by the thread that dispatches the messages, while
+ * {@link #registerAck(short, int)} is called by the network thread. The
+ * acknowledged label only moves forward and is updated without locking, so
+ * acknowledgments never block the dispatching thread.
  * 
  * @author Ben Ruijl
  * @see #ServerDiffHandler
@@ -24,136 +29,323 @@ import com.jme3.network.base.MessageProtocol;
 public class DiffConnection<T extends AbstractMessage> {
 	protected static final Logger log = Logger.getLogger(DiffConnection.class
 			.getName());
-	private final short numSnapshots;
-	private final List<T> snapshots;
-	private short curPos; // position in cyclic array
-	private short ackPos;
+	private static final int LAG_WINDOW = 64;
+	private final short[] sentLabels; // the last labels that were sent
+	private final Object[] sentViews; // the views they were projected to
+	private final long[] sentTimes;
+	private final AtomicIntegerArray received; // send number + 1 if received
+	private volatile int numSent;
+	private final AtomicInteger ackPos;
+	private final AtomicLong numAcks;
+	private volatile long rtt;
+	private volatile RateController rateController;
+	private volatile short baselineVersion;
 
-	public DiffConnection(short numSnapshots) {
-		this.numSnapshots = numSnapshots;
-		snapshots = new ArrayList<>(numSnapshots);
+	public DiffConnection() {
+		sentLabels = new short[LAG_WINDOW];
+		sentViews = new Object[LAG_WINDOW];
+		sentTimes = new long[LAG_WINDOW];
+		received = new AtomicIntegerArray(LAG_WINDOW);
+		numSent = 0;
+		ackPos = new AtomicInteger(-1);
+		numAcks = new AtomicLong();
+		rtt = -1;
+		baselineVersion = -1;
+	}
 
-		for (int i = 0; i < numSnapshots; i++) {
-			snapshots.add(null);
-		}
+	/**
+	 * Registers that a message with the given label is sent to the client.
+	 * 
+	 * @param label
+	 *            Label of the message
+	 */
+	public void registerSent(short label) {
+		registerSent(label, null);
+	}
 
-		curPos = 0;
-		ackPos = -1;
+	/**
+	 * Registers that a message with the given label is sent to the client,
+	 * projected to the given view. See {@link ViewProjection}.
+	 * 
+	 * @param label
+	 *            Label of the message
+	 * @param view
+	 *            View of the message or {@code null} if there is no projection
+	 */
+	public void registerSent(short label, Object view) {
+		sentTimes[numSent & (LAG_WINDOW - 1)] = System.nanoTime();
+		sentLabels[numSent & (LAG_WINDOW - 1)] = label;
+		sentViews[numSent & (LAG_WINDOW - 1)] = view;
+		numSent++;
 	}
 
 	/**
-	 * Adds a new message to the snapshot list and either returns the full
-	 * message or a delta message if the latter is possible.
+	 * Gets the label of the message that the next delta message should be
+	 * generated from.
 	 * 
-	 * @param message
-	 *            Message to add to snapshot list
-	 * @return {@code message} or a delta message
-	 */
-	public Message generateSnapshot(T message) {
-		short oldPos = curPos;
-		snapshots.set((short) (oldPos % numSnapshots), message);
-		curPos++;
-
-		// only allow positive positions
-		if (curPos < 0) {
-			curPos = 0;
+	 * @param store
+	 *            Snapshot store that contains the serialized messages
+	 * @return The label of the last received message or -1 if there is none
+	 *         or it is too old to be in the store
+	 */
+	public short getBaseline(SnapshotStore store) {
+		short ack = (short) ackPos.get();
+		if (ack < 0 || !store.contains(ack)) {
+			return -1;
 		}
 
-		if (ackPos < 0) {
-			return new LabeledMessage(oldPos, message);
+		return ack;
+	}
+
+	/**
+	 * Gets the label of the message that the next delta message should be
+	 * generated from, if the client received it in the given view. The views
+	 * of a tick share its label, so after a client moves to another view, its
+	 * acknowledged message is only a baseline if it was sent in that view
+	 * too.
+	 * 
+	 * @param store
+	 *            Snapshot store of the view
+	 * @param view
+	 *            View of the next message or {@code null} if there is no
+	 *            projection
+	 * @return The label of the last received message or -1 if there is none,
+	 *         it is too old to be in the store or it was sent in another view
+	 */
+	public short getBaseline(SnapshotStore store, Object view) {
+		short ack = getBaseline(store);
+		if (ack < 0) {
+			return -1;
 		}
 
-		/* Is the last received message too old? Send a full one */
-		if (oldPos - ackPos > numSnapshots
-				|| (ackPos - oldPos > Short.MAX_VALUE / 2 && Short.MAX_VALUE
-						- ackPos + oldPos > numSnapshots)) {
-			return new LabeledMessage(oldPos, message);
+		int sent = numSent;
+		for (int i = 1; i <= Math.min(sent, LAG_WINDOW); i++) {
+			int index = (sent - i) & (LAG_WINDOW - 1);
+			if (sentLabels[index] == ack) {
+				Object sentView = sentViews[index];
+				boolean sameView = sentView == null ? view == null : sentView
+						.equals(view);
+				return sameView ? ack : -1;
+			}
 		}
 
-		T oldMessage = snapshots.get(ackPos % numSnapshots);
-		return new LabeledMessage(oldPos, generateDelta(message, oldMessage,
-				ackPos));
+		/* The view of older messages is unknown, which only matters with views */
+		return view == null ? ack : -1;
 	}
 
 	/**
-	 * Gets the number of messages the server is lagging behind
+	 * Gets the version of the static baseline that was sent to the client,
+	 * see {@link ServerChannel#setBaseline}.
+	 * 
+	 * @return The version or -1 if no baseline was sent
+	 */
+	public short getBaselineVersion() {
+		return baselineVersion;
+	}
+
+	public void setBaselineVersion(short baselineVersion) {
+		this.baselineVersion = baselineVersion;
+	}
+
+	/**
+	 * Gets the number of messages the server is lagging behind. The labels of
+	 * the messages that are sent to a connection are not necessarily
+	 * consecutive, so the messages that are sent after the acknowledged one
+	 * are counted, up to a maximum of 64.
 	 * 
 	 * @return Number of messages left behind
 	 */
 	public int getLag() {
-		if (curPos >= ackPos) {
-			return curPos - ackPos;
+		int ack = ackPos.get();
+		int sent = numSent;
+		int lag = 0;
+
+		while (lag < Math.min(sent, LAG_WINDOW)
+				&& sentLabels[(sent - 1 - lag) & (LAG_WINDOW - 1)] != ack) {
+			lag++;
 		}
 
-		return Short.MAX_VALUE - ackPos + curPos;
+		return lag;
 	}
 
+	/**
+	 * Registers that the client received the message with the given label.
+	 * Safe to call from any thread.
+	 * 
+	 * @param id
+	 *            Label of the received message
+	 */
 	public void registerAck(short id) {
-		// because the array is cyclic, the id could be in front of the old
-		// ackPos,
-		// so we check if the difference between the two is very large ( > 4
-		// minutes at
-		// 60 fps).
-		if (id > ackPos || ackPos - id > Short.MAX_VALUE / 2) {
-			log.log(Level.FINER, "Client received message " + id);
-			ackPos = id;
-			return;
+		registerAck(id, 0);
+	}
+
+	/**
+	 * Registers a cumulative acknowledgment: the client received the message
+	 * with the given label and the messages in the bitfield before it. The
+	 * newest label only moves forward, so acknowledgments that arrive out of
+	 * order only mark the labels they contain as received. Safe to call from
+	 * any thread.
+	 * 
+	 * @param id
+	 *            Newest label the client received
+	 * @param bitfield
+	 *            Bitfield of the received labels before it, see
+	 *            {@link AckMessage#getReceived()}
+	 */
+	public void registerAck(short id, int bitfield) {
+		markReceived(id, bitfield);
+
+		while (true) {
+			int ack = ackPos.get();
+
+			// because the array is cyclic, the id could be in front of the old
+			// ackPos, so we check if the difference between the two is very
+			// large ( > 4 minutes at 60 fps).
+			if (id <= ack && ack - id <= Short.MAX_VALUE / 2) {
+				if (log.isLoggable(Level.FINER)) {
+					log.log(Level.FINER, "Client received old message " + id);
+				}
+				return;
+			}
+
+			if (ackPos.compareAndSet(ack, id)) {
+				if (log.isLoggable(Level.FINER)) {
+					log.log(Level.FINER, "Client received message " + id);
+				}
+
+				registerRtt(id);
+				return;
+			}
 		}
+	}
+
+	/**
+	 * Marks the messages that were sent and that are in the acknowledgment
+	 * as received, counting every message once.
+	 */
+	private void markReceived(short id, int bitfield) {
+		int sent = numSent;
+		for (int i = 1; i <= Math.min(sent, LAG_WINDOW); i++) {
+			int index = (sent - i) & (LAG_WINDOW - 1);
+			int distance = AckMessage.distance(id, sentLabels[index]);
 
-		log.log(Level.FINER, "Client received old message " + id);
+			if (distance == 0 || distance <= AckMessage.WINDOW
+					&& (bitfield >>> (distance - 1) & 1) != 0) {
+				int number = sent - i + 1;
+				int old = received.get(index);
+				if (old != number && received.compareAndSet(index, old, number)) {
+					numAcks.incrementAndGet();
+				}
+			}
+		}
 	}
 
 	/**
-	 * Returns a delta message from message and prevMessage or just message if
-	 * that happens to be smaller.
+	 * Checks if the client received the message with the given label, if it
+	 * is one of the last 64 messages that were sent.
 	 * 
-	 * @param message
-	 *            Message to send
-	 * @param prevMessage
-	 *            Previous message
-	 * @return
-	 */
-	public Message generateDelta(T message, T prevMessage, short prevID) {
-		// TODO: skip size?
-		ByteBuffer old = MessageProtocol.messageToBuffer(prevMessage, null);
-		ByteBuffer buffer = MessageProtocol.messageToBuffer(message, null);
-
-		int intBound = (int) (Math.ceil(buffer.remaining() / 4)) * 4;
-		old.limit(intBound);
-		buffer.limit(intBound); // set buffers to be the same size
-
-		IntBuffer diffInts = IntBuffer.allocate(buffer.limit()); // great
-																	// overestimation
-
-		// check block of size int
-		int numBits = intBound / 4;
-		int numBytes = (numBits - 1) / 8 + 1;
-		byte[] flag = new byte[numBytes];
-
-		// also works if old and new are not the same size, but less efficiently
-		int i = 0;
-		while (buffer.remaining() >= 4) {
-			int val = buffer.getInt();
-			if (old.remaining() < 4 || val != old.getInt()) {
-				diffInts.put(val);
-				flag[i / 8] |= 1 << (i % 8);
-				// System.out.println("Int " + i + " changed.");
+	 * @param label
+	 *            Label of the message
+	 * @return True if the message was acknowledged
+	 */
+	public boolean isReceived(short label) {
+		int sent = numSent;
+		for (int i = 1; i <= Math.min(sent, LAG_WINDOW); i++) {
+			int index = (sent - i) & (LAG_WINDOW - 1);
+			if (sentLabels[index] == label) {
+				return received.get(index) == sent - i + 1;
 			}
-			i++;
 		}
 
-		diffInts.flip();
+		return false;
+	}
 
-		/* Check what is smaller, delta message or original buffer */
-		// TODO: fix numbers to be more accurate
-		if (diffInts.remaining() * 4 + 8 < buffer.limit()) {
-			int[] b = new int[diffInts.remaining()];
-			diffInts.get(b, 0, b.length);
+	/**
+	 * Updates the smoothed round-trip time with the time since the
+	 * acknowledged message was sent, if it is one of the last messages.
+	 */
+	private void registerRtt(short id) {
+		int sent = numSent;
+		for (int i = 1; i <= Math.min(sent, LAG_WINDOW); i++) {
+			int index = (sent - i) & (LAG_WINDOW - 1);
+			if (sentLabels[index] == id) {
+				long sample = System.nanoTime() - sentTimes[index];
+				if (sample >= 0) {
+					long old = rtt;
+					rtt = old < 0 ? sample : old + (sample - old) / 8;
+				}
+				return;
+			}
+		}
+	}
 
-			return new DiffMessage(prevID, flag, b);
-		} else {
-			return message;
+	/**
+	 * Gets the label of the last acknowledged message.
+	 * 
+	 * @return The label or -1 if no message has been acknowledged yet
+	 */
+	public short getAck() {
+		return (short) ackPos.get();
+	}
+
+	/**
+	 * Gets the number of messages that were sent to the connection.
+	 * 
+	 * @return Number of messages
+	 */
+	public long getSent() {
+		return numSent;
+	}
+
+	/**
+	 * Gets the number of sent messages that were acknowledged.
+	 * 
+	 * @return Number of acknowledged messages
+	 */
+	public long getAcknowledged() {
+		return numAcks.get();
+	}
+
+	/**
+	 * Gets the fraction of the messages that were not acknowledged, not
+	 * counting the messages after the last acknowledged one, which may still
+	 * be underway.
+	 * 
+	 * @return Loss rate between 0 and 1
+	 */
+	public double getLossRate() {
+		long settled = numSent - getLag();
+		if (settled <= 0) {
+			return 0;
 		}
+
+		return Math.max(0, 1 - (double) numAcks.get() / settled);
+	}
+
+	/**
+	 * Gets the round-trip time, from sending a message to receiving its
+	 * acknowledgment, smoothed over the last acknowledgments.
+	 * 
+	 * @return Round-trip time in nanoseconds or -1 if no message has been
+	 *         acknowledged yet
+	 */
+	public long getRtt() {
+		return rtt;
+	}
+
+	/**
+	 * Gets the controller that decides when messages are sent to this
+	 * connection.
+	 * 
+	 * @return The rate controller or {@code null} if a message is sent every
+	 *         tick
+	 */
+	public RateController getRateController() {
+		return rateController;
+	}
+
+	public void setRateController(RateController rateController) {
+		this.rateController = rateController;
 	}
 
 }
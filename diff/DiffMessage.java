@@ -1,42 +1,109 @@
 package diff;
 
+import java.nio.ByteBuffer;
+
 import com.jme3.network.AbstractMessage;
 import com.jme3.network.serializing.Serializable;
 
 /**
  * This message is used to send the byte-level difference of two messages to the
- * client.
+ * client. The difference is encoded by the {@link DeltaCodec} with the id in
+ * the message. On the client, the data may be a view of the received packet,
+ * see {@link DiffMessageSerializer}.
+ * <p>
+ * The delta is generated from the message with the label in the message id,
+ * or, if the id is negative, from a version of the static baseline of the
+ * channel, see {@link ServerChannel#setBaseline}.
  * 
  * @author Ben Ruijl
  * 
  */
 @Serializable
 public class DiffMessage extends AbstractMessage {
+	/** Message id that refers to no message at all */
+	public static final short NONE = -1;
 	private short messageId; // ID of the message the diff is from
-	private byte[] flag;
-	private int[] data;
+	private byte codec;
+	private int length; // length of the new message
+	private ByteBuffer data;
 
 	public DiffMessage() {
 		super(false);
 	}
 
-	public DiffMessage(short messageId, byte[] flag, int[] data) {
+	public DiffMessage(short messageId, byte codec, int length,
+			ByteBuffer data) {
 		super(false);
 		this.messageId = messageId;
+		this.codec = codec;
+		this.length = length;
 		this.data = data;
-		this.flag = flag;
 	}
-	
+
+	/**
+	 * Gets the message id that refers to a version of the static baseline.
+	 * 
+	 * @param version
+	 *            Version of the baseline, at least 0
+	 * @return A negative message id below {@link #NONE}
+	 */
+	public static short getBaselineId(short version) {
+		return (short) (-2 - version);
+	}
+
+	/**
+	 * Checks if a message id refers to a version of the static baseline.
+	 * 
+	 * @param messageId
+	 *            Message id
+	 * @return True if the id refers to the static baseline, false if it is
+	 *         the label of a message or {@link #NONE}
+	 */
+	public static boolean isBaselineId(short messageId) {
+		return messageId < NONE;
+	}
+
+	/**
+	 * Gets the version of the static baseline a message id refers to.
+	 * 
+	 * @param messageId
+	 *            Message id for which {@link #isBaselineId(short)} holds
+	 * @return The version of the baseline
+	 */
+	public static short getBaselineVersion(short messageId) {
+		return (short) (-2 - messageId);
+	}
+
 	public short getMessageId() {
 		return messageId;
 	}
 
-	public int[] getData() {
-		return data;
+	/**
+	 * Gets the id of the codec that encoded the delta.
+	 * 
+	 * @return Codec id
+	 */
+	public byte getCodec() {
+		return codec;
 	}
 
-	public byte[] getFlag() {
-		return flag;
+	/**
+	 * Gets the length of the serialized message that is the result of applying
+	 * the delta.
+	 * 
+	 * @return Length in bytes
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Gets the encoded delta, from position 0 to the limit.
+	 * 
+	 * @return Encoded delta
+	 */
+	public ByteBuffer getData() {
+		return data;
 	}
 
 }
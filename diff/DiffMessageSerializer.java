@@ -1,49 +1,182 @@
 package diff;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
 import com.jme3.network.serializing.Serializer;
 
 /**
- * Serializes a delta message efficiently.
+ * Serializes a delta message efficiently. If a {@link DeltaCompressor} is set,
+ * payloads of at least the threshold size are compressed, as long as that
+ * makes them smaller. Compressed payloads are marked by the highest bit of the
+ * codec id.
+ * <p>
+ * In zero-copy mode, the data of a received delta message is a view of the
+ * received packet instead of a copy, so reading a delta does not allocate
+ * any arrays. The view is only valid while the message is being dispatched,
+ * because the network layer reuses its buffers for the next packets, which is
+ * how the {@link ClientDiffHandler} uses it. Compressed payloads are always
+ * decompressed into a new array.
  * 
  * @author Ben Ruijl
  * 
  */
 @SuppressWarnings("unchecked")
 public class DiffMessageSerializer extends Serializer {
+	private static final int COMPRESSED = 0x80;
+
+	private final DeltaCompressor compressor;
+	private final int threshold;
+	private final boolean zeroCopy;
+	private final ThreadLocal<ByteBuffer> compressBuffers;
+
+	public DiffMessageSerializer() {
+		this(null, 0);
+	}
+
+	/**
+	 * Creates a serializer that compresses the payload of delta messages.
+	 * 
+	 * @param compressor
+	 *            Compressor to use or {@code null} for no compression
+	 * @param threshold
+	 *            Minimum payload size in bytes to try compression for
+	 */
+	public DiffMessageSerializer(DeltaCompressor compressor, int threshold) {
+		this(compressor, threshold, false);
+	}
+
+	/**
+	 * Creates a serializer that compresses the payload of delta messages and
+	 * optionally reads them without copying.
+	 * 
+	 * @param compressor
+	 *            Compressor to use or {@code null} for no compression
+	 * @param threshold
+	 *            Minimum payload size in bytes to try compression for
+	 * @param zeroCopy
+	 *            True if the data of received delta messages should be a
+	 *            view of the received packet
+	 */
+	public DiffMessageSerializer(DeltaCompressor compressor, int threshold,
+			boolean zeroCopy) {
+		this.compressor = compressor;
+		this.threshold = threshold;
+		this.zeroCopy = zeroCopy;
+
+		compressBuffers = new ThreadLocal<ByteBuffer>() {
+			@Override
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocate(4096);
+			}
+		};
+	}
 
 	@Override
 	public <T> T readObject(ByteBuffer data, Class<T> c) throws IOException {
 		short messageID = data.getShort();
-		int flagSize = data.getShort();
+		byte codec = data.get();
+		int length = Varint.get(data);
+		int size = Varint.get(data);
 
-		byte[] flags = new byte[flagSize];
-		data.get(flags, 0, flagSize);
+		/* The sizes are allocated by the client, so check them first */
+		if (length < 0 || length > MessageSerialization.MAX_SIZE || size < 0
+				|| size > MessageSerialization.MAX_SIZE) {
+			throw new IOException("Invalid delta of " + size
+					+ " bytes for a message of " + length + " bytes");
+		}
 
-		int intCount = 0;
-		for (int i = 0; i < 8 * flagSize; i++) {
-			if ((flags[i / 8] & (1 << (i % 8))) != 0) {
-				intCount++;
+		ByteBuffer delta;
+		if ((codec & COMPRESSED) != 0) {
+			if (compressor == null) {
+				throw new IOException("Received a compressed delta, "
+						+ "but no compressor is registered");
 			}
-		}
 
-		int[] val = new int[intCount];
-		data.asIntBuffer().get(val, 0, intCount);
+			codec &= ~COMPRESSED;
+			int compressedSize = Varint.get(data);
+			if (compressedSize < 0 || compressedSize > data.remaining()) {
+				throw new IOException("Invalid compressed delta of "
+						+ compressedSize + " bytes");
+			}
 
-		return (T) new DiffMessage(messageID, flags, val);
+			ByteBuffer compressed = data.slice();
+			compressed.limit(compressedSize);
+			delta = ByteBuffer.allocate(size);
+			try {
+				compressor.decompress(compressed, delta);
+			} catch (RuntimeException e) {
+				/* A corrupt payload can make a decoder read past its input */
+				throw new IOException("Invalid compressed delta of "
+						+ compressedSize + " bytes", e);
+			}
+			data.position(data.position() + compressedSize);
+		} else if (size > data.remaining()) {
+			throw new IOException("Invalid delta of " + size + " bytes");
+		} else if (zeroCopy) {
+			delta = data.slice();
+			delta.limit(size);
+			data.position(data.position() + size);
+		} else {
+			byte[] copy = new byte[size];
+			data.get(copy, 0, size);
+			delta = ByteBuffer.wrap(copy);
+		}
+
+		delta.rewind();
+		return (T) new DiffMessage(messageID, codec, length, delta);
 	}
 
 	@Override
 	public void writeObject(ByteBuffer buffer, Object object)
 			throws IOException {
 		DiffMessage diff = (DiffMessage) object;
+		ByteBuffer delta = diff.getData().duplicate();
+		delta.rewind();
+
+		ByteBuffer compressed = compress(delta);
+
 		buffer.putShort(diff.getMessageId());
-		buffer.putShort((short) diff.getFlag().length);
-		buffer.put(diff.getFlag());
-		buffer.asIntBuffer().put(diff.getData());
-		buffer.position(buffer.position() + diff.getData().length * 4);
+		buffer.put((byte) (diff.getCodec() | (compressed != null ? COMPRESSED
+				: 0)));
+		Varint.put(buffer, diff.getLength());
+		Varint.put(buffer, delta.remaining());
+
+		if (compressed != null) {
+			Varint.put(buffer, compressed.remaining());
+			buffer.put(compressed);
+		} else {
+			buffer.put(delta);
+		}
+	}
+
+	/**
+	 * Compresses the delta if that pays off.
+	 * 
+	 * @return The compressed delta or {@code null} if it is not compressed
+	 */
+	private ByteBuffer compress(ByteBuffer delta) {
+		if (compressor == null || delta.remaining() < threshold) {
+			return null;
+		}
+
+		ByteBuffer target = MessageSerialization.ensureCapacity(
+				compressBuffers.get(), delta.remaining());
+		compressBuffers.set(target);
+		target.clear();
+
+		/* Compression should save at least the byte of the extra length */
+		target.limit(Math.max(0, delta.remaining() - 2));
+
+		try {
+			compressor.compress(delta, target);
+		} catch (BufferOverflowException e) {
+			return null;
+		}
+
+		target.flip();
+		return target;
 	}
 
 }
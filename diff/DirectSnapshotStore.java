@@ -0,0 +1,166 @@
+package diff;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jme3.network.Message;
+
+/**
+ * A snapshot store that keeps all snapshots in one direct (off-heap) buffer
+ * that is allocated up front. The buffer is divided into slots of equal size,
+ * so the memory usage is fixed and does not depend on the complexity of the
+ * messages. Messages that are larger than a slot are not stored; they can
+ * still be sent in full, but cannot be used as a baseline for delta messages.
+ * <p>
+ * The store is not thread-safe for writing. {@link #get(short)} may be called
+ * concurrently, as long as no snapshots are stored at the same time.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class DirectSnapshotStore implements SnapshotStore {
+	protected static final Logger log = Logger
+			.getLogger(DirectSnapshotStore.class.getName());
+	private final short numSnapshots;
+	private final int slotCapacity;
+	private final ByteBuffer memory;
+	private final ByteBuffer writeView;
+	private final ByteBuffer readView;
+	private final int[] lengths;
+	private final short[] labels;
+	private final ByteBuffer scratch;
+
+	/**
+	 * Creates a store with a fixed amount of off-heap memory.
+	 * 
+	 * @param numSnapshots
+	 *            Number of snapshots in the store
+	 * @param maxBytes
+	 *            Maximum number of bytes used for all snapshots together
+	 */
+	public DirectSnapshotStore(short numSnapshots, int maxBytes) {
+		this.numSnapshots = numSnapshots;
+		slotCapacity = maxBytes / numSnapshots / 4 * 4;
+
+		if (slotCapacity <= 0) {
+			throw new IllegalArgumentException("Cannot fit " + numSnapshots
+					+ " snapshots in " + maxBytes + " bytes");
+		}
+
+		memory = ByteBuffer.allocateDirect(slotCapacity * numSnapshots);
+		writeView = memory.duplicate();
+		readView = memory.duplicate();
+		lengths = new int[numSnapshots];
+		labels = new short[numSnapshots];
+		scratch = ByteBuffer.allocate(slotCapacity);
+
+		for (int i = 0; i < numSnapshots; i++) {
+			labels[i] = -1;
+		}
+	}
+
+	@Override
+	public boolean store(short label, Message message) {
+		try {
+			MessageSerialization.serializeInto(message, scratch);
+		} catch (BufferOverflowException e) {
+			log.log(Level.WARNING, "Snapshot " + label
+					+ " does not fit in a slot of " + slotCapacity + " bytes");
+			return false;
+		}
+
+		return store(label, scratch);
+	}
+
+	/**
+	 * Copies the serialized message into its slot. Does not allocate.
+	 */
+	@Override
+	public boolean store(short label, ByteBuffer serialized) {
+		int index = label % numSnapshots;
+		int length = serialized.remaining();
+		int paddedLength = (length + 3) / 4 * 4;
+
+		if (paddedLength > slotCapacity) {
+			log.log(Level.WARNING, "Snapshot " + label + " of " + length
+					+ " bytes does not fit in a slot of " + slotCapacity
+					+ " bytes");
+			return false;
+		}
+
+		writeView.limit(index * slotCapacity + paddedLength);
+		writeView.position(index * slotCapacity);
+		writeView.put(serialized);
+		while (writeView.hasRemaining()) {
+			writeView.put((byte) 0);
+		}
+
+		lengths[index] = length;
+		labels[index] = label;
+		return true;
+	}
+
+	@Override
+	public ByteBuffer get(short label) {
+		if (!contains(label)) {
+			return null;
+		}
+
+		int index = label % numSnapshots;
+		ByteBuffer view = memory.duplicate();
+		view.limit(index * slotCapacity + (lengths[index] + 3) / 4 * 4);
+		view.position(index * slotCapacity);
+
+		ByteBuffer slot = view.slice();
+		slot.limit(lengths[index]);
+		return slot.asReadOnlyBuffer();
+	}
+
+	@Override
+	public int read(short label, ByteBuffer target) {
+		if (!contains(label)) {
+			return -1;
+		}
+
+		int index = label % numSnapshots;
+		readView.limit(index * slotCapacity + (lengths[index] + 3) / 4 * 4);
+		readView.position(index * slotCapacity);
+		target.put(readView);
+		return lengths[index];
+	}
+
+	@Override
+	public int length(short label) {
+		return contains(label) ? lengths[label % numSnapshots] : -1;
+	}
+
+	@Override
+	public boolean contains(short label) {
+		return label >= 0 && labels[label % numSnapshots] == label;
+	}
+
+	@Override
+	public short getNumSnapshots() {
+		return numSnapshots;
+	}
+
+	/**
+	 * Gets the maximum size of a serialized message in this store.
+	 * 
+	 * @return Slot size in bytes
+	 */
+	public int getSlotCapacity() {
+		return slotCapacity;
+	}
+
+	/**
+	 * Gets the reserved memory, both off-heap and for the serialization
+	 * buffer on the heap.
+	 */
+	@Override
+	public long getMemoryUsage() {
+		return memory.capacity() + scratch.capacity();
+	}
+}
@@ -0,0 +1,323 @@
+package diff;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jme3.network.Filter;
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+import com.jme3.network.Server;
+
+/**
+ * Generates and sends the messages of the ticks of a
+ * {@link ServerDiffHandler} on a background thread, see
+ * {@link ServerDiffHandler#setPipelined(int)}.
+ * <p>
+ * Every connection has its own queue of pending ticks, which never holds
+ * more than the capacity. The dispatching thread never blocks: when the
+ * queue of a connection is full, its oldest unsent tick is dropped for that
+ * connection only. The channels of the dropped tick that the next tick does
+ * not have are carried over to it, so a connection never misses the state of
+ * a channel. Dropping takes constant time per connection plus the number of
+ * channels of the dropped tick. Ticks that are sent to no connection are
+ * still generated, so that they are labeled and recorded, and have a queue
+ * of their own.
+ * <p>
+ * The thread sends the oldest pending tick of every connection in rounds.
+ * Connections with the same pending tick share its messages.
+ *
+ * @author Ben Ruijl
+ *
+ */
+class DispatchPipeline {
+	protected static final Logger log = Logger.getLogger(DispatchPipeline.class
+			.getName());
+	/** Time that {@link #stop()} waits for the queued ticks to be sent */
+	private static final long STOP_TIMEOUT = 5000;
+	private static final Comparator<Tick> ORDER = new Comparator<Tick>() {
+		@Override
+		public int compare(Tick a, Tick b) {
+			return Long.compare(a.sequence, b.sequence);
+		}
+	};
+	private final ServerDiffHandler<?> handler;
+	private final int queueCapacity;
+	private final ReentrantLock lock;
+	private final Condition pending;
+	/* Guarded by the lock */
+	private final Map<HostedConnection, Deque<Tick>> queues;
+	private final Deque<Tick> unreceived;
+	private long nextSequence;
+	private boolean stopping;
+	private final Thread thread;
+
+	DispatchPipeline(ServerDiffHandler<?> handler, int queueCapacity) {
+		this.handler = handler;
+		this.queueCapacity = queueCapacity;
+		lock = new ReentrantLock();
+		pending = lock.newCondition();
+		queues = new HashMap<>();
+		unreceived = new ArrayDeque<>(queueCapacity);
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				process();
+			}
+		}, "DispatchPipeline");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues a tick for every connection in the filter. If the queue of a
+	 * connection is full, its oldest tick is dropped for that connection.
+	 */
+	void submit(Server server, Filter<? super HostedConnection> filter,
+			List<ServerChannel<?>> dispatched, List<Message> messages,
+			long submitTime) {
+		List<HostedConnection> receivers = new ArrayList<>();
+		for (HostedConnection connection : server.getConnections()) {
+			if (filter.apply(connection)) {
+				receivers.add(connection);
+			}
+		}
+
+		lock.lock();
+		try {
+			Tick tick = new Tick(nextSequence++, server, dispatched, messages,
+					submitTime);
+
+			if (receivers.isEmpty()) {
+				if (unreceived.size() >= queueCapacity) {
+					registerDropped(unreceived.pollFirst());
+				}
+
+				unreceived.offerLast(tick);
+			}
+
+			for (HostedConnection connection : receivers) {
+				Deque<Tick> queue = queues.get(connection);
+				if (queue == null) {
+					queue = new ArrayDeque<>(queueCapacity);
+					queues.put(connection, queue);
+				}
+
+				Tick queued = tick;
+				if (queue.size() >= queueCapacity) {
+					Tick dropped = queue.pollFirst();
+					registerDropped(dropped);
+
+					/* The next tick receives the channels it does not have */
+					if (queue.isEmpty()) {
+						queued = tick.carry(dropped);
+					} else {
+						queue.offerFirst(queue.pollFirst().carry(dropped));
+					}
+				}
+
+				queue.offerLast(queued);
+			}
+
+			pending.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static void registerDropped(Tick tick) {
+		for (ServerChannel<?> channel : tick.dispatched) {
+			channel.getMetrics().registerDroppedTick();
+		}
+	}
+
+	private void process() {
+		try {
+			while (true) {
+				Map<Tick, List<HostedConnection>> round = takeRound();
+				if (round == null) {
+					return;
+				}
+
+				List<Tick> ticks = new ArrayList<>(round.keySet());
+				Collections.sort(ticks, ORDER);
+				for (Tick tick : ticks) {
+					try {
+						handler.send(tick.server, round.get(tick),
+								tick.dispatched, tick.messages,
+								tick.submitTime);
+					} catch (RuntimeException e) {
+						log.log(Level.SEVERE, "Could not send tick", e);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits for pending ticks and takes the oldest pending tick of every
+	 * connection, and the ticks without connections.
+	 *
+	 * @return The connections of every tick or {@code null} if the pipeline
+	 *         is stopped and every tick is sent
+	 */
+	private Map<Tick, List<HostedConnection>> takeRound()
+			throws InterruptedException {
+		lock.lock();
+		try {
+			while (queues.isEmpty() && unreceived.isEmpty()) {
+				if (stopping) {
+					return null;
+				}
+
+				pending.await();
+			}
+
+			Map<Tick, List<HostedConnection>> round = new LinkedHashMap<>();
+			for (Tick tick : unreceived) {
+				round.put(tick, new ArrayList<HostedConnection>(0));
+			}
+			unreceived.clear();
+
+			Iterator<Map.Entry<HostedConnection, Deque<Tick>>> iterator = queues
+					.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<HostedConnection, Deque<Tick>> entry = iterator
+						.next();
+				Tick tick = entry.getValue().pollFirst();
+				if (entry.getValue().isEmpty()) {
+					iterator.remove();
+				}
+
+				List<HostedConnection> connections = round.get(tick);
+				if (connections == null) {
+					connections = new ArrayList<>();
+					round.put(tick, connections);
+				}
+
+				connections.add(entry.getKey());
+			}
+
+			return round;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sends the queued ticks and stops the thread. If the ticks are not sent
+	 * within {@link #STOP_TIMEOUT} milliseconds, for example because the
+	 * server blocks, the remaining ticks are dropped and the thread is
+	 * interrupted.
+	 */
+	void stop() {
+		lock.lock();
+		try {
+			stopping = true;
+			pending.signal();
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			thread.join(STOP_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (thread.isAlive()) {
+			log.log(Level.WARNING,
+					"Pipeline did not send the queued ticks in time");
+			lock.lock();
+			try {
+				queues.clear();
+				unreceived.clear();
+			} finally {
+				lock.unlock();
+			}
+
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * The messages of one tick that wait to be sent. Connections that are
+	 * sent the same tick share it, unless the channels of a dropped tick are
+	 * carried over to it.
+	 */
+	private static class Tick {
+		private final long sequence;
+		private final Server server;
+		private final List<ServerChannel<?>> dispatched;
+		private final List<Message> messages;
+		private final long submitTime;
+		/* One bit per channel id, to carry channels in linear time */
+		private final long[] channelIds;
+
+		public Tick(long sequence, Server server,
+				List<ServerChannel<?>> dispatched, List<Message> messages,
+				long submitTime) {
+			this.sequence = sequence;
+			this.server = server;
+			this.dispatched = dispatched;
+			this.messages = messages;
+			this.submitTime = submitTime;
+			channelIds = new long[4];
+			for (ServerChannel<?> channel : dispatched) {
+				int id = channel.getId() & 0xFF;
+				channelIds[id >>> 6] |= 1L << id;
+			}
+		}
+
+		private boolean hasChannel(ServerChannel<?> channel) {
+			int id = channel.getId() & 0xFF;
+			return (channelIds[id >>> 6] & 1L << id) != 0;
+		}
+
+		/**
+		 * Adds the channels of an older tick that this tick does not have.
+		 *
+		 * @return This tick if it has all channels, or else a copy with the
+		 *         channels of the older tick
+		 */
+		public Tick carry(Tick older) {
+			List<ServerChannel<?>> carriedChannels = null;
+			List<Message> carriedMessages = null;
+
+			for (int i = 0; i < older.dispatched.size(); i++) {
+				ServerChannel<?> channel = older.dispatched.get(i);
+				if (hasChannel(channel)) {
+					continue;
+				}
+
+				if (carriedChannels == null) {
+					carriedChannels = new ArrayList<>(dispatched);
+					carriedMessages = new ArrayList<>(messages);
+				}
+
+				carriedChannels.add(channel);
+				carriedMessages.add(older.messages.get(i));
+			}
+
+			if (carriedChannels == null) {
+				return this;
+			}
+
+			return new Tick(sequence, server, carriedChannels,
+					carriedMessages, submitTime);
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package diff;
+
+/**
+ * An object in the game state that is identified by a key, such as a player or
+ * a projectile. Entities are serialized with the serializer of their class,
+ * so they have to be registered like messages.
+ * 
+ * @author Ben Ruijl
+ * @see EntityMessage
+ */
+public interface Entity {
+
+	/**
+	 * Gets the key of the entity, which must be unique within a message and
+	 * should stay the same for the lifetime of the entity.
+	 * 
+	 * @return Entity id
+	 */
+	int getEntityId();
+}
@@ -0,0 +1,311 @@
+package diff;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A structured delta format for messages that are serialized with an
+ * {@link EntityMessageSerializer}. The entities of the message and the
+ * baseline are matched by id, and the delta consists of records for the
+ * entities that are removed, added or changed. Unchanged entities are not
+ * sent at all, and a changed entity is sent as a {@link XorRunLengthCodec}
+ * delta of its own previous state, so only its changed fields cost bytes.
+ * <p>
+ * The delta consists of the difference of the message header, the entity
+ * records and the difference of the fields after the entity section. Every
+ * record starts with a {@link Varint} tag, of which the lowest two bits are
+ * the type and the rest is the number of baseline entities that are copied
+ * before the record. A tag of 0 ends the records and copies the remaining
+ * baseline entities.
+ * <ul>
+ * <li>Removed: the next baseline entity is skipped.</li>
+ * <li>Changed: the length of the entity and the delta of the next baseline
+ * entity.</li>
+ * <li>Added: the difference with the previous id (zigzag encoded), the length
+ * of the entity and the entity.</li>
+ * </ul>
+ * Messages without a valid entity section are rejected in the same way as
+ * deltas that are too large, so this codec can safely be tried for any
+ * message.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class EntityDeltaCodec extends AbstractDeltaCodec {
+	public static final byte ID = 5;
+	/** The class id that precedes the entity section */
+	private static final int HEADER = 2;
+	private static final int END = 0;
+	private static final int REMOVED = 1;
+	private static final int CHANGED = 2;
+	private static final int ADDED = 3;
+
+	private final XorRunLengthCodec fieldCodec = new XorRunLengthCodec();
+	private final ThreadLocal<Section[]> sections = new ThreadLocal<Section[]>() {
+		@Override
+		protected Section[] initialValue() {
+			return new Section[] { new Section(), new Section() };
+		}
+	};
+
+	public EntityDeltaCodec() {
+		super(ID);
+	}
+
+	/**
+	 * The entities in a serialized message. Offsets are relative to the
+	 * position of the buffer and point to the serialized entity, after its id
+	 * and length.
+	 */
+	private static class Section {
+		int count;
+		int end;
+		int[] ids = new int[64];
+		int[] offsets = new int[64];
+		int[] lengths = new int[64];
+
+		/**
+		 * Reads the entity section of a serialized message.
+		 * 
+		 * @return False if the message does not have a valid entity section
+		 */
+		boolean parse(ByteBuffer buffer) {
+			int start = buffer.position();
+			int size = buffer.remaining();
+			if (size < HEADER + 4) {
+				return false;
+			}
+
+			count = buffer.getInt(start + HEADER);
+			if (count < 0 || count > (size - HEADER - 4) / 6) {
+				return false;
+			}
+
+			if (ids.length < count) {
+				ids = new int[count];
+				offsets = new int[count];
+				lengths = new int[count];
+			}
+
+			int offset = HEADER + 4;
+			for (int i = 0; i < count; i++) {
+				if (offset + 6 > size) {
+					return false;
+				}
+
+				ids[i] = buffer.getInt(start + offset);
+				lengths[i] = buffer.getShort(start + offset + 4) & 0xFFFF;
+				offsets[i] = offset + 6;
+				offset += 6 + lengths[i];
+
+				if (offset > size || (i > 0 && ids[i] <= ids[i - 1])) {
+					return false;
+				}
+			}
+
+			end = offset;
+			return true;
+		}
+	}
+
+	@Override
+	public void encode(ByteBuffer baseline, ByteBuffer message,
+			ByteBuffer target) {
+		Section[] parsed = sections.get();
+		Section old = parsed[0];
+		Section current = parsed[1];
+
+		if (!old.parse(baseline) || !current.parse(message)) {
+			throw new BufferOverflowException();
+		}
+
+		encodeRange(baseline, 0, HEADER, message, 0, HEADER, target);
+
+		int i = 0;
+		int j = 0;
+		int copied = 0;
+		int lastId = 0;
+		while (i < old.count || j < current.count) {
+			if (j == current.count
+					|| (i < old.count && old.ids[i] < current.ids[j])) {
+				Varint.put(target, copied << 2 | REMOVED);
+				copied = 0;
+				i++;
+			} else if (i == old.count || current.ids[j] < old.ids[i]) {
+				Varint.put(target, copied << 2 | ADDED);
+				Varint.put(target, Varint.zigZag(current.ids[j] - lastId));
+				Varint.put(target, current.lengths[j]);
+				for (int k = 0; k < current.lengths[j]; k++) {
+					target.put(message.get(message.position()
+							+ current.offsets[j] + k));
+				}
+
+				copied = 0;
+				lastId = current.ids[j];
+				j++;
+			} else {
+				if (isEqual(baseline, old.offsets[i], old.lengths[i], message,
+						current.offsets[j], current.lengths[j])) {
+					copied++;
+				} else {
+					Varint.put(target, copied << 2 | CHANGED);
+					Varint.put(target, current.lengths[j]);
+					encodeRange(baseline, old.offsets[i], old.offsets[i]
+							+ old.lengths[i], message, current.offsets[j],
+							current.offsets[j] + current.lengths[j], target);
+					copied = 0;
+				}
+
+				lastId = current.ids[j];
+				i++;
+				j++;
+			}
+		}
+
+		Varint.put(target, END);
+		encodeRange(baseline, old.end, baseline.remaining(), message,
+				current.end, message.remaining(), target);
+	}
+
+	private static boolean isEqual(ByteBuffer a, int aOffset, int aLength,
+			ByteBuffer b, int bOffset, int bLength) {
+		if (aLength != bLength) {
+			return false;
+		}
+
+		for (int k = 0; k < aLength; k++) {
+			if (a.get(a.position() + aOffset + k) != b.get(b.position()
+					+ bOffset + k)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Encodes the difference of a range of the message with a range of the
+	 * baseline. The ranges are relative to the positions of the buffers,
+	 * which are restored afterwards.
+	 */
+	private void encodeRange(ByteBuffer baseline, int baselineFrom,
+			int baselineTo, ByteBuffer message, int messageFrom, int messageTo,
+			ByteBuffer target) {
+		int baselinePosition = baseline.position();
+		int baselineLimit = baseline.limit();
+		int messagePosition = message.position();
+		int messageLimit = message.limit();
+
+		baseline.limit(baselinePosition + baselineTo);
+		baseline.position(baselinePosition + baselineFrom);
+		message.limit(messagePosition + messageTo);
+		message.position(messagePosition + messageFrom);
+
+		try {
+			fieldCodec.encode(baseline, message, target);
+		} finally {
+			baseline.limit(baselineLimit);
+			baseline.position(baselinePosition);
+			message.limit(messageLimit);
+			message.position(messagePosition);
+		}
+	}
+
+	@Override
+	public void decode(ByteBuffer baseline, ByteBuffer delta, ByteBuffer target) {
+		Section old = sections.get()[0];
+		old.parse(baseline);
+
+		int start = target.position();
+		int base = baseline.position();
+		decodeRange(baseline, 0, HEADER, delta, target, HEADER);
+
+		int countPosition = target.position();
+		target.putInt(0);
+
+		int count = 0;
+		int i = 0;
+		int lastId = 0;
+		while (true) {
+			int tag = Varint.get(delta);
+			int type = tag & 3;
+
+			/* Copy the unchanged entities */
+			for (int copied = tag >>> 2; copied > 0; copied--, i++, count++) {
+				int length = old.lengths[i] + 6;
+				for (int k = 0; k < length; k++) {
+					target.put(baseline.get(base + old.offsets[i] - 6 + k));
+				}
+
+				lastId = old.ids[i];
+			}
+
+			if (type == END) {
+				break;
+			}
+
+			if (type == REMOVED) {
+				i++;
+				continue;
+			}
+
+			int id = type == ADDED ? lastId + Varint.unZigZag(Varint.get(delta))
+					: old.ids[i];
+			int length = Varint.get(delta);
+			target.putInt(id);
+			target.putShort((short) length);
+
+			if (type == ADDED) {
+				for (int k = 0; k < length; k++) {
+					target.put(delta.get());
+				}
+			} else {
+				decodeRange(baseline, old.offsets[i], old.offsets[i]
+						+ old.lengths[i], delta, target, length);
+				i++;
+			}
+
+			lastId = id;
+			count++;
+		}
+
+		/* Copy the entities after the last record */
+		for (; i < old.count; i++, count++) {
+			int length = old.lengths[i] + 6;
+			for (int k = 0; k < length; k++) {
+				target.put(baseline.get(base + old.offsets[i] - 6 + k));
+			}
+		}
+
+		target.putInt(countPosition, count);
+		decodeRange(baseline, old.end, baseline.remaining(), delta, target,
+				target.remaining());
+		target.position(start);
+	}
+
+	/**
+	 * Decodes a range of the given length at the position of the target, from
+	 * a range of the baseline. Afterwards, the position of the target is at
+	 * the end of the range.
+	 */
+	private void decodeRange(ByteBuffer baseline, int baselineFrom,
+			int baselineTo, ByteBuffer delta, ByteBuffer target, int length) {
+		int baselinePosition = baseline.position();
+		int baselineLimit = baseline.limit();
+		int targetLimit = target.limit();
+		int end = target.position() + length;
+
+		baseline.limit(baselinePosition + baselineTo);
+		baseline.position(baselinePosition + baselineFrom);
+		target.limit(end);
+
+		try {
+			fieldCodec.decode(baseline, delta, target);
+		} finally {
+			baseline.limit(baselineLimit);
+			baseline.position(baselinePosition);
+			target.limit(targetLimit);
+			target.position(end);
+		}
+	}
+}
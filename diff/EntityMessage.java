@@ -0,0 +1,36 @@
+package diff;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A message that consists of a collection of entities and possibly some other
+ * fields. Such a message can be serialized with an
+ * {@link EntityMessageSerializer}, which writes every entity as a separate
+ * record keyed by its id. The {@link EntityDeltaCodec} then sends the entities
+ * that are added, removed or changed since the baseline, instead of a byte
+ * level difference in which the removal of one entity changes everything that
+ * follows it.
+ * <p>
+ * The field that holds the entities should be {@code transient}, so that it is
+ * not serialized a second time with the other fields. Register the message
+ * with {@code Serializer.registerClass(cls, new EntityMessageSerializer())}.
+ * 
+ * @author Ben Ruijl
+ * 
+ * @param <E>
+ *            Entity type
+ */
+public interface EntityMessage<E extends Entity> {
+
+	Collection<E> getEntities();
+
+	/**
+	 * Sets the entities after the message is deserialized. They are sorted by
+	 * their id.
+	 * 
+	 * @param entities
+	 *            Entities of the message
+	 */
+	void setEntities(List<E> entities);
+}
@@ -0,0 +1,81 @@
+package diff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import com.jme3.network.serializing.Serializer;
+import com.jme3.network.serializing.serializers.FieldSerializer;
+
+/**
+ * Serializes an {@link EntityMessage} as an entity section followed by the
+ * other fields of the message. The entity section is the number of entities
+ * and, for every entity sorted by id, its id, the length of its serialized
+ * form as an unsigned short and the entity itself, serialized with its class.
+ * The {@link EntityDeltaCodec} relies on this layout.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+@SuppressWarnings({ "unchecked", "rawtypes" })
+public class EntityMessageSerializer extends FieldSerializer {
+	private static final Comparator<Entity> BY_ID = new Comparator<Entity>() {
+		@Override
+		public int compare(Entity a, Entity b) {
+			return Integer.compare(a.getEntityId(), b.getEntityId());
+		}
+	};
+
+	@Override
+	public <T> T readObject(ByteBuffer data, Class<T> c) throws IOException {
+		int count = data.getInt();
+		List<Entity> entities = new ArrayList<>(count);
+
+		for (int i = 0; i < count; i++) {
+			data.getInt(); // the id is part of the entity
+			data.getShort();
+			entities.add((Entity) Serializer.readClassAndObject(data));
+		}
+
+		T message = super.readObject(data, c);
+		((EntityMessage) message).setEntities(entities);
+		return message;
+	}
+
+	@Override
+	public void writeObject(ByteBuffer buffer, Object object)
+			throws IOException {
+		Collection<Entity> collection = ((EntityMessage) object).getEntities();
+		Entity[] entities = collection.toArray(new Entity[collection.size()]);
+		Arrays.sort(entities, BY_ID);
+
+		buffer.putInt(entities.length);
+		for (int i = 0; i < entities.length; i++) {
+			if (i > 0
+					&& entities[i].getEntityId() == entities[i - 1]
+							.getEntityId()) {
+				throw new IOException("Duplicate entity id "
+						+ entities[i].getEntityId());
+			}
+
+			buffer.putInt(entities[i].getEntityId());
+			int lengthPosition = buffer.position();
+			buffer.putShort((short) 0);
+			Serializer.writeClassAndObject(buffer, entities[i]);
+
+			int length = buffer.position() - lengthPosition - 2;
+			if (length > 0xFFFF) {
+				throw new IOException("Entity " + entities[i].getEntityId()
+						+ " is too large: " + length + " bytes");
+			}
+
+			buffer.putShort(lengthPosition, (short) length);
+		}
+
+		super.writeObject(buffer, object);
+	}
+}
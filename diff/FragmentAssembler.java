@@ -0,0 +1,184 @@
+package diff;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reassembles the fragments of labeled messages on the client. The number of
+ * messages that are reassembled at the same time and their size are bounded,
+ * so that lost fragments or a misbehaving server cannot make the client run
+ * out of memory. If a fragment of a new message arrives while all slots are
+ * in use, the message that received a fragment the longest time ago is
+ * dropped. The buffers of the slots are reused.
+ * <p>
+ * The assembler is not thread-safe.
+ * 
+ * @author Ben Ruijl
+ * @see Fragmenter
+ */
+public class FragmentAssembler {
+	protected static final Logger log = Logger
+			.getLogger(FragmentAssembler.class.getName());
+	public static final int DEFAULT_MAX_PENDING = 4;
+	public static final int DEFAULT_MAX_LENGTH = 1 << 22;
+
+	private final Slot[] slots;
+	private final int maxLength;
+	private long time;
+
+	/**
+	 * A message that is being reassembled.
+	 */
+	private static class Slot {
+		boolean active;
+		byte channel;
+		short label;
+		int count;
+		int totalLength;
+		int numReceived;
+		long lastUsed;
+		byte[] data = new byte[0];
+		final BitSet received = new BitSet();
+	}
+
+	public FragmentAssembler() {
+		this(DEFAULT_MAX_PENDING, DEFAULT_MAX_LENGTH);
+	}
+
+	/**
+	 * Creates an assembler with bounded memory usage.
+	 * 
+	 * @param maxPending
+	 *            Maximum number of messages that are reassembled at the same
+	 *            time
+	 * @param maxLength
+	 *            Maximum length of a serialized message in bytes
+	 */
+	public FragmentAssembler(int maxPending, int maxLength) {
+		this.maxLength = maxLength;
+		slots = new Slot[maxPending];
+		for (int i = 0; i < maxPending; i++) {
+			slots[i] = new Slot();
+		}
+	}
+
+	/**
+	 * Adds a fragment.
+	 * 
+	 * @param fragment
+	 *            The fragment
+	 * @return The serialized labeled message if this fragment completes it or
+	 *         {@code null} otherwise. The buffer is only valid until the next
+	 *         fragment is added.
+	 */
+	public ByteBuffer add(FragmentMessage fragment) {
+		if (fragment.getTotalLength() > maxLength) {
+			log.log(Level.WARNING, "Discarding message " + fragment.getLabel()
+					+ " of " + fragment.getTotalLength()
+					+ " bytes, the maximum is " + maxLength);
+			return null;
+		}
+
+		if (!isValid(fragment)) {
+			log.log(Level.WARNING, "Discarding invalid fragment "
+					+ fragment.getIndex() + " of " + fragment.getCount()
+					+ " of message " + fragment.getLabel());
+			return null;
+		}
+
+		Slot slot = getSlot(fragment);
+		slot.lastUsed = time++;
+
+		if (!slot.received.get(fragment.getIndex())) {
+			ByteBuffer data = fragment.getData().duplicate();
+			data.rewind();
+			data.get(slot.data, fragment.getOffset(), data.remaining());
+
+			slot.received.set(fragment.getIndex());
+			slot.numReceived++;
+		}
+
+		if (slot.numReceived < slot.count) {
+			return null;
+		}
+
+		slot.active = false;
+		return ByteBuffer.wrap(slot.data, 0, slot.totalLength);
+	}
+
+	/**
+	 * Checks that a fragment lies within its message and has the size that
+	 * follows from its header, so that it cannot be written outside the slot.
+	 */
+	private static boolean isValid(FragmentMessage fragment) {
+		int index = fragment.getIndex();
+		int count = fragment.getCount();
+		int totalLength = fragment.getTotalLength();
+		if (count <= 0 || index < 0 || index >= count || totalLength < count
+				|| fragment.getData() == null) {
+			return false;
+		}
+
+		long size = ((long) totalLength + count - 1) / count;
+		long offset = index * size;
+		return offset < totalLength
+				&& fragment.getData().limit() == Math.min(size, totalLength
+						- offset);
+	}
+
+	/**
+	 * Gets the slot of the message of the fragment, or starts a new one.
+	 */
+	private Slot getSlot(FragmentMessage fragment) {
+		Slot oldest = slots[0];
+		for (Slot slot : slots) {
+			if (slot.active && slot.label == fragment.getLabel()
+					&& slot.channel == fragment.getChannel()
+					&& slot.count == fragment.getCount()
+					&& slot.totalLength == fragment.getTotalLength()) {
+				return slot;
+			}
+
+			if (!slot.active) {
+				oldest = slot;
+			} else if (oldest.active && slot.lastUsed < oldest.lastUsed) {
+				oldest = slot;
+			}
+		}
+
+		if (oldest.active && log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Dropping incomplete message " + oldest.label
+					+ ", " + oldest.numReceived + " of " + oldest.count
+					+ " fragments received");
+		}
+
+		oldest.active = true;
+		oldest.channel = fragment.getChannel();
+		oldest.label = fragment.getLabel();
+		oldest.count = fragment.getCount();
+		oldest.totalLength = fragment.getTotalLength();
+		oldest.numReceived = 0;
+		oldest.received.clear();
+		if (oldest.data.length < oldest.totalLength) {
+			oldest.data = new byte[oldest.totalLength];
+		}
+
+		return oldest;
+	}
+
+	/**
+	 * Gets the number of bytes that are reserved for reassembly.
+	 * 
+	 * @return Reserved memory in bytes
+	 */
+	public long getMemoryUsage() {
+		long usage = 0;
+		for (Slot slot : slots) {
+			usage += slot.data.length;
+		}
+
+		return usage;
+	}
+}
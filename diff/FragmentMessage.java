@@ -0,0 +1,97 @@
+package diff;
+
+import java.nio.ByteBuffer;
+
+import com.jme3.network.AbstractMessage;
+import com.jme3.network.serializing.Serializable;
+
+/**
+ * A part of a labeled message that is too large to be sent in one datagram.
+ * The serialized labeled message is split into fragments of equal size, except
+ * for the last one, so the offset of a fragment follows from its index, the
+ * number of fragments and the total length.
+ * 
+ * @author Ben Ruijl
+ * @see Fragmenter
+ * @see FragmentAssembler
+ */
+@Serializable
+public class FragmentMessage extends AbstractMessage {
+	private byte channel;
+	private short label;
+	private int index;
+	private int count;
+	private int totalLength;
+	private ByteBuffer data;
+
+	public FragmentMessage() {
+		super(false);
+	}
+
+	public FragmentMessage(byte channel, short label, int index, int count,
+			int totalLength, ByteBuffer data) {
+		super(false);
+		this.channel = channel;
+		this.label = label;
+		this.index = index;
+		this.count = count;
+		this.totalLength = totalLength;
+		this.data = data;
+	}
+
+	/**
+	 * Gets the size of every fragment but the last.
+	 * 
+	 * @param totalLength
+	 *            Length of the serialized message
+	 * @param count
+	 *            Number of fragments
+	 * @return Fragment size in bytes
+	 */
+	public static int getFragmentSize(int totalLength, int count) {
+		return (totalLength + count - 1) / count;
+	}
+
+	public byte getChannel() {
+		return channel;
+	}
+
+	public short getLabel() {
+		return label;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the length of the serialized labeled message.
+	 * 
+	 * @return Length in bytes
+	 */
+	public int getTotalLength() {
+		return totalLength;
+	}
+
+	/**
+	 * Gets the offset of this fragment in the serialized labeled message.
+	 * 
+	 * @return Offset in bytes
+	 */
+	public int getOffset() {
+		return index * getFragmentSize(totalLength, count);
+	}
+
+	/**
+	 * Gets the bytes of this fragment, from position 0 to the limit.
+	 * 
+	 * @return Fragment data
+	 */
+	public ByteBuffer getData() {
+		return data;
+	}
+}
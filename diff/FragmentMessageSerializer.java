@@ -0,0 +1,57 @@
+package diff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.jme3.network.serializing.Serializer;
+
+/**
+ * Serializes a fragment with a compact header: the channel, the label, the
+ * index, the number of fragments and the total length. The length of the
+ * fragment itself follows from the header.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+@SuppressWarnings("unchecked")
+public class FragmentMessageSerializer extends Serializer {
+
+	@Override
+	public <T> T readObject(ByteBuffer data, Class<T> c) throws IOException {
+		byte channel = data.get();
+		short label = data.getShort();
+		int index = Varint.get(data);
+		int count = Varint.get(data);
+		int totalLength = Varint.get(data);
+
+		int size = count > 0 ? FragmentMessage.getFragmentSize(totalLength,
+				count) : 0;
+		if (count <= 0 || index < 0 || index >= count || totalLength < count
+				|| totalLength > MessageSerialization.MAX_SIZE
+				|| index * size >= totalLength) {
+			throw new IOException("Invalid fragment " + index + " of "
+					+ count + " for a message of " + totalLength + " bytes");
+		}
+
+		byte[] fragment = new byte[Math.min(size, totalLength - index * size)];
+		data.get(fragment);
+
+		return (T) new FragmentMessage(channel, label, index, count, totalLength,
+				ByteBuffer.wrap(fragment));
+	}
+
+	@Override
+	public void writeObject(ByteBuffer buffer, Object object)
+			throws IOException {
+		FragmentMessage fragment = (FragmentMessage) object;
+		ByteBuffer data = fragment.getData().duplicate();
+		data.rewind();
+
+		buffer.put(fragment.getChannel());
+		buffer.putShort(fragment.getLabel());
+		Varint.put(buffer, fragment.getIndex());
+		Varint.put(buffer, fragment.getCount());
+		Varint.put(buffer, fragment.getTotalLength());
+		buffer.put(data);
+	}
+}
@@ -0,0 +1,100 @@
+package diff;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.jme3.network.Message;
+
+/**
+ * Splits labeled messages that do not fit in one datagram into
+ * {@link FragmentMessage}s, so that a large snapshot does not depend on IP
+ * fragmentation, where the loss of one fragment loses the whole datagram. The
+ * fragments are reassembled by a {@link FragmentAssembler} on the client.
+ * <p>
+ * The fragment size should be chosen such that a fragment and its headers fit
+ * in the MTU of the network. Splitting may be done by several threads at the
+ * same time.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class Fragmenter {
+	/** Fragment size that fits in the common MTU of 1500 bytes */
+	public static final int DEFAULT_FRAGMENT_SIZE = 1200;
+
+	private final int fragmentSize;
+	private final ThreadLocal<ByteBuffer> buffers;
+
+	public Fragmenter() {
+		this(DEFAULT_FRAGMENT_SIZE);
+	}
+
+	/**
+	 * Creates a fragmenter with the given fragment size.
+	 * 
+	 * @param fragmentSize
+	 *            Maximum size of the data of a fragment in bytes, which is
+	 *            also the maximum size of a message that is not split
+	 */
+	public Fragmenter(int fragmentSize) {
+		if (fragmentSize < 16 || fragmentSize > Short.MAX_VALUE - 32) {
+			throw new IllegalArgumentException("Invalid fragment size "
+					+ fragmentSize);
+		}
+
+		this.fragmentSize = fragmentSize;
+		buffers = new ThreadLocal<ByteBuffer>() {
+			@Override
+			protected ByteBuffer initialValue() {
+				return ByteBuffer.allocate(4096);
+			}
+		};
+	}
+
+	public int getFragmentSize() {
+		return fragmentSize;
+	}
+
+	public List<Message> split(short label, Message message) {
+		return split((byte) 0, label, message);
+	}
+
+	/**
+	 * Serializes the labeled message and splits it into fragments of equal
+	 * size if it is larger than the fragment size.
+	 * 
+	 * @param channel
+	 *            Channel of the message
+	 * @param label
+	 *            Label of the message
+	 * @param message
+	 *            The labeled message
+	 * @return The fragments, or the message itself if it fits in one
+	 *         datagram
+	 */
+	public List<Message> split(byte channel, short label, Message message) {
+		ByteBuffer serialized = MessageSerialization.serialize(message,
+				buffers.get());
+		buffers.set(serialized);
+
+		int totalLength = serialized.remaining();
+		if (totalLength <= fragmentSize) {
+			return Collections.singletonList(message);
+		}
+
+		int count = (totalLength + fragmentSize - 1) / fragmentSize;
+		int size = FragmentMessage.getFragmentSize(totalLength, count);
+		List<Message> fragments = new ArrayList<>(count);
+
+		for (int i = 0; i < count; i++) {
+			byte[] data = new byte[Math.min(size, serialized.remaining())];
+			serialized.get(data);
+			fragments.add(new FragmentMessage(channel, label, i, count, totalLength,
+					ByteBuffer.wrap(data)));
+		}
+
+		return fragments;
+	}
+}
@@ -0,0 +1,78 @@
+package diff;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the byte values of the delta payloads that are compressed, so that a
+ * {@link HuffmanCompressor} can be trained on real traffic. The recorder wraps
+ * the compressor that is in use, so the messages on the wire do not change:
+ * register it on the server instead of the compressor, let it see the
+ * traffic of a typical game and pass {@link #getFrequencies()} to
+ * {@link HuffmanCompressor#train(long[])}.
+ * <p>
+ * Only the payloads that the {@link DiffMessageSerializer} tries to compress
+ * are counted, which are those of at least the threshold size.
+ *
+ * @author Ben Ruijl
+ *
+ */
+public class FrequencyRecorder implements DeltaCompressor {
+	private final DeltaCompressor compressor;
+	private final AtomicLongArray frequencies;
+
+	/**
+	 * Creates a recorder that compresses with the given compressor.
+	 *
+	 * @param compressor
+	 *            Compressor that is in use
+	 */
+	public FrequencyRecorder(DeltaCompressor compressor) {
+		this.compressor = compressor;
+		frequencies = new AtomicLongArray(256);
+	}
+
+	@Override
+	public void compress(ByteBuffer source, ByteBuffer target) {
+		int[] counts = new int[256];
+		for (int i = source.position(); i < source.limit(); i++) {
+			counts[source.get(i) & 0xFF]++;
+		}
+
+		for (int i = 0; i < 256; i++) {
+			if (counts[i] > 0) {
+				frequencies.addAndGet(i, counts[i]);
+			}
+		}
+
+		compressor.compress(source, target);
+	}
+
+	@Override
+	public void decompress(ByteBuffer source, ByteBuffer target) {
+		compressor.decompress(source, target);
+	}
+
+	/**
+	 * Gets the number of times every byte value was seen.
+	 *
+	 * @return Frequency of every byte value
+	 */
+	public long[] getFrequencies() {
+		long[] result = new long[256];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = frequencies.get(i);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Forgets the counted bytes.
+	 */
+	public void reset() {
+		for (int i = 0; i < 256; i++) {
+			frequencies.set(i, 0);
+		}
+	}
+}
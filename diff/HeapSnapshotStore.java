@@ -0,0 +1,112 @@
+package diff;
+
+import java.nio.ByteBuffer;
+
+import com.jme3.network.Message;
+
+/**
+ * A snapshot store that keeps every snapshot in its own byte array on the
+ * heap. The arrays grow with the largest message that is stored in a slot, so
+ * there is no limit on the message size.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class HeapSnapshotStore implements SnapshotStore {
+	private final short numSnapshots;
+	private final byte[][] slots;
+	private final int[] lengths;
+	private final short[] labels;
+	private ByteBuffer scratch;
+
+	public HeapSnapshotStore(short numSnapshots) {
+		this.numSnapshots = numSnapshots;
+		slots = new byte[numSnapshots][];
+		lengths = new int[numSnapshots];
+		labels = new short[numSnapshots];
+		scratch = ByteBuffer.allocate(4096);
+
+		for (int i = 0; i < numSnapshots; i++) {
+			labels[i] = -1;
+		}
+	}
+
+	@Override
+	public boolean store(short label, Message message) {
+		scratch = MessageSerialization.serialize(message, scratch);
+		return store(label, scratch);
+	}
+
+	/**
+	 * Stores the serialized message. Does not allocate if the slot is large
+	 * enough.
+	 */
+	@Override
+	public boolean store(short label, ByteBuffer serialized) {
+		int index = label % numSnapshots;
+		int length = serialized.remaining();
+		int paddedLength = (length + 3) / 4 * 4;
+
+		if (slots[index] == null || slots[index].length < paddedLength) {
+			slots[index] = new byte[paddedLength];
+		}
+
+		serialized.get(slots[index], 0, length);
+		for (int i = length; i < paddedLength; i++) {
+			slots[index][i] = 0;
+		}
+
+		lengths[index] = length;
+		labels[index] = label;
+		return true;
+	}
+
+	@Override
+	public ByteBuffer get(short label) {
+		if (!contains(label)) {
+			return null;
+		}
+
+		int index = label % numSnapshots;
+		return ByteBuffer.wrap(slots[index], 0, lengths[index])
+				.asReadOnlyBuffer();
+	}
+
+	@Override
+	public int read(short label, ByteBuffer target) {
+		if (!contains(label)) {
+			return -1;
+		}
+
+		int index = label % numSnapshots;
+		target.put(slots[index], 0, (lengths[index] + 3) / 4 * 4);
+		return lengths[index];
+	}
+
+	@Override
+	public int length(short label) {
+		return contains(label) ? lengths[label % numSnapshots] : -1;
+	}
+
+	@Override
+	public boolean contains(short label) {
+		return label >= 0 && labels[label % numSnapshots] == label;
+	}
+
+	@Override
+	public short getNumSnapshots() {
+		return numSnapshots;
+	}
+
+	@Override
+	public long getMemoryUsage() {
+		long usage = scratch.capacity();
+		for (byte[] slot : slots) {
+			if (slot != null) {
+				usage += slot.length;
+			}
+		}
+
+		return usage;
+	}
+}
@@ -0,0 +1,242 @@
+package diff;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Compresses payloads with a static Huffman code, like the final stage of the
+ * Quake 3 network protocol. The code is not sent with the messages, so the
+ * server and the client have to use the same code lengths.
+ * <p>
+ * The default code favors zeros and small values, which are common in delta
+ * messages. A better code can be trained from recorded traffic with
+ * {@link #train(long[])}, with the bytes of real payloads counted by a
+ * {@link FrequencyRecorder}, and shipped to the clients as the array of
+ * {@link #getCodeLengths()}.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class HuffmanCompressor implements DeltaCompressor {
+	private static final int MAX_CODE_LENGTH = 15;
+
+	private final byte[] codeLengths;
+	private final int[] codes;
+	/* Canonical decoding tables, indexed by code length */
+	private final int[] firstCode;
+	private final int[] firstSymbol;
+	private final int[] numCodes;
+	private final int[] symbols;
+
+	/**
+	 * Creates a compressor with the default code.
+	 */
+	public HuffmanCompressor() {
+		this(defaultCodeLengths());
+	}
+
+	/**
+	 * Creates a compressor with the given code lengths, for example from a
+	 * trained compressor.
+	 * 
+	 * @param codeLengths
+	 *            Length of the code of every byte value, between 1 and 15
+	 */
+	public HuffmanCompressor(byte[] codeLengths) {
+		if (codeLengths.length != 256) {
+			throw new IllegalArgumentException(
+					"Expected 256 code lengths, got " + codeLengths.length);
+		}
+
+		this.codeLengths = codeLengths.clone();
+		codes = new int[256];
+		firstCode = new int[MAX_CODE_LENGTH + 2];
+		firstSymbol = new int[MAX_CODE_LENGTH + 2];
+		numCodes = new int[MAX_CODE_LENGTH + 2];
+		symbols = new int[256];
+
+		for (byte length : codeLengths) {
+			if (length < 1 || length > MAX_CODE_LENGTH) {
+				throw new IllegalArgumentException("Invalid code length "
+						+ length);
+			}
+			numCodes[length]++;
+		}
+
+		/* Assign canonical codes: shorter codes first, then by value */
+		int code = 0;
+		int symbol = 0;
+		for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+			firstCode[length] = code;
+			firstSymbol[length] = symbol;
+
+			for (int value = 0; value < 256; value++) {
+				if (codeLengths[value] == length) {
+					codes[value] = code++;
+					symbols[symbol++] = value;
+				}
+			}
+
+			code <<= 1;
+		}
+	}
+
+	/**
+	 * Creates a compressor with a code that is optimal for the given byte
+	 * frequencies.
+	 * 
+	 * @param frequencies
+	 *            Number of occurrences of every byte value in typical payloads
+	 * @return The compressor
+	 */
+	public static HuffmanCompressor train(long[] frequencies) {
+		return new HuffmanCompressor(buildCodeLengths(frequencies));
+	}
+
+	/**
+	 * Gets the code lengths, which are required to create the same
+	 * compressor on the client.
+	 * 
+	 * @return Length of the code of every byte value
+	 */
+	public byte[] getCodeLengths() {
+		return codeLengths.clone();
+	}
+
+	private static byte[] defaultCodeLengths() {
+		long[] frequencies = new long[256];
+		for (int i = 0; i < 256; i++) {
+			frequencies[i] = 4;
+		}
+
+		frequencies[0] = 1000;
+		for (int i = 1; i < 16; i++) {
+			frequencies[i] = 40;
+			frequencies[256 - i] = 20;
+		}
+
+		return buildCodeLengths(frequencies);
+	}
+
+	/**
+	 * Builds a Huffman tree and returns the depth of every leaf. If the tree
+	 * is too deep, the frequencies are flattened until it fits.
+	 */
+	private static byte[] buildCodeLengths(long[] frequencies) {
+		long[] weights = new long[256];
+		for (int i = 0; i < 256; i++) {
+			// every value needs a code, even if it was never seen
+			weights[i] = Math.max(frequencies[i], 0) + 1;
+		}
+
+		while (true) {
+			byte[] lengths = huffmanLengths(weights);
+
+			int max = 0;
+			for (byte length : lengths) {
+				max = Math.max(max, length);
+			}
+
+			if (max <= MAX_CODE_LENGTH) {
+				return lengths;
+			}
+
+			for (int i = 0; i < 256; i++) {
+				weights[i] = weights[i] / 2 + 1;
+			}
+		}
+	}
+
+	private static byte[] huffmanLengths(long[] weights) {
+		int[] parent = new int[511];
+		final long[] nodeWeights = Arrays.copyOf(weights, 511);
+		PriorityQueue<Integer> queue = new PriorityQueue<>(256,
+				new Comparator<Integer>() {
+					@Override
+					public int compare(Integer a, Integer b) {
+						int cmp = Long.compare(nodeWeights[a], nodeWeights[b]);
+						return cmp != 0 ? cmp : Integer.compare(a, b);
+					}
+				});
+
+		for (int i = 0; i < 256; i++) {
+			queue.add(i);
+		}
+
+		int next = 256;
+		while (queue.size() > 1) {
+			int a = queue.poll();
+			int b = queue.poll();
+			nodeWeights[next] = nodeWeights[a] + nodeWeights[b];
+			parent[a] = next;
+			parent[b] = next;
+			queue.add(next++);
+		}
+
+		byte[] lengths = new byte[256];
+		for (int i = 0; i < 256; i++) {
+			int depth = 0;
+			for (int node = i; node != next - 1; node = parent[node]) {
+				depth++;
+			}
+			lengths[i] = (byte) Math.min(depth, Byte.MAX_VALUE);
+		}
+
+		return lengths;
+	}
+
+	@Override
+	public void compress(ByteBuffer source, ByteBuffer target) {
+		long bits = 0;
+		int numBits = 0;
+
+		for (int i = source.position(); i < source.limit(); i++) {
+			int value = source.get(i) & 0xFF;
+			bits = (bits << codeLengths[value]) | codes[value];
+			numBits += codeLengths[value];
+
+			while (numBits >= 8) {
+				numBits -= 8;
+				target.put((byte) (bits >>> numBits));
+			}
+		}
+
+		if (numBits > 0) {
+			target.put((byte) (bits << (8 - numBits)));
+		}
+	}
+
+	@Override
+	public void decompress(ByteBuffer source, ByteBuffer target) {
+		int bits = 0;
+		int numBits = 0;
+
+		while (target.hasRemaining()) {
+			int code = 0;
+			int length = 0;
+
+			while (true) {
+				if (numBits == 0) {
+					bits = source.get() & 0xFF;
+					numBits = 8;
+				}
+
+				numBits--;
+				code = (code << 1) | ((bits >>> numBits) & 1);
+				length++;
+
+				int index = code - firstCode[length];
+				if (index < numCodes[length]) {
+					target.put((byte) symbols[firstSymbol[length] + index]);
+					break;
+				}
+
+				if (length == MAX_CODE_LENGTH) {
+					throw new IllegalArgumentException("Invalid Huffman code");
+				}
+			}
+		}
+	}
+}
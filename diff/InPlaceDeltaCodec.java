@@ -0,0 +1,33 @@
+package diff;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A codec whose deltas only overwrite the changed bytes, so they can be
+ * applied to a copy of the baseline in place. The client then copies the
+ * baseline once, straight from its snapshot store, and touches only the
+ * changed positions, instead of copying it again in
+ * {@link DeltaCodec#decode}.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public interface InPlaceDeltaCodec extends DeltaCodec {
+
+	/**
+	 * Applies a delta to the baseline in the target. The target contains the
+	 * baseline, extended with zeros, from its position to its limit, which is
+	 * set to the length of the new message by the caller. The position of the
+	 * target is not changed.
+	 * 
+	 * @param delta
+	 *            Delta, read from its position to its limit
+	 * @param target
+	 *            Buffer that contains the baseline and receives the new
+	 *            message
+	 * @throws java.nio.BufferUnderflowException
+	 *             If the delta is shorter than it claims to be, in which case
+	 *             the target may be partially modified
+	 */
+	void apply(ByteBuffer delta, ByteBuffer target);
+}
@@ -0,0 +1,83 @@
+package diff;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The original delta format of quakemonkey. The message is compared in blocks
+ * of four bytes and the delta consists of a bitmask of the changed blocks,
+ * followed by their new values. Works well if changes are spread out over
+ * whole ints, such as floats in a gamestate.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class IntBitmaskCodec extends AbstractDeltaCodec implements
+		InPlaceDeltaCodec {
+	public static final byte ID = 0;
+
+	public IntBitmaskCodec() {
+		super(ID);
+	}
+
+	@Override
+	public void encode(ByteBuffer baseline, ByteBuffer message,
+			ByteBuffer target) {
+		int numInts = (message.remaining() + 3) / 4;
+		int flagStart = target.position();
+
+		// reserve space for the flags
+		for (int i = 0; i < (numInts + 7) / 8; i++) {
+			target.put((byte) 0);
+		}
+
+		/* Skip to every region of changes and only compare that region */
+		int length = message.remaining();
+		int i = nextChangedInt(baseline, message, 0);
+		while (i < numInts) {
+			int end = (endOfChanges(baseline, message, i * 4) + 3) / 4;
+			for (; i < end; i++) {
+				int val = getInt(message, i * 4);
+				if (val != getMessageInt(baseline, i, length)) {
+					target.putInt(val);
+					target.put(flagStart + i / 8,
+							(byte) (target.get(flagStart + i / 8) | 1 << (i % 8)));
+				}
+			}
+
+			i = nextChangedInt(baseline, message, end);
+		}
+	}
+
+	@Override
+	public void decode(ByteBuffer baseline, ByteBuffer delta, ByteBuffer target) {
+		copyBaseline(baseline, target);
+		apply(delta, target);
+	}
+
+	@Override
+	public void apply(ByteBuffer delta, ByteBuffer target) {
+		int numInts = (target.remaining() + 3) / 4;
+		int flagStart = delta.position();
+		int numFlags = (numInts + 7) / 8;
+
+		/* Check the length before anything is written */
+		if (delta.remaining() - numFlags < countFlags(delta, flagStart,
+				numFlags) * 4) {
+			throw new BufferUnderflowException();
+		}
+
+		delta.position(flagStart + numFlags);
+
+		/* Scan the flags 64 at a time */
+		for (int i = 0; i < numFlags; i += 8) {
+			long flags = getFlags(delta, flagStart + i,
+					Math.min(8, numFlags - i));
+			while (flags != 0) {
+				int bit = Long.numberOfTrailingZeros(flags);
+				putInt(target, (i * 8 + bit) * 4, delta.getInt());
+				flags &= flags - 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package diff;
+
+/**
+ * Blends two states of type {@code T}, so that a {@link JitterBuffer} can
+ * sample the state at any time between two received messages. Typically
+ * positions are interpolated linearly, orientations with a slerp and discrete
+ * values such as names are taken from the nearest state.
+ * 
+ * @author Ben Ruijl
+ * 
+ * @param <T>
+ *            Message type
+ */
+public interface Interpolator<T> {
+
+	/**
+	 * Blends two states. An alpha of 0 gives {@code from} and an alpha of 1
+	 * gives {@code to}. An alpha larger than 1 asks for an extrapolation
+	 * beyond {@code to}, which happens when the newer state has not arrived
+	 * yet. The states must not be modified.
+	 * 
+	 * @param from
+	 *            The older state
+	 * @param to
+	 *            The newer state
+	 * @param alpha
+	 *            Position between the states, at least 0
+	 * @return The blended state
+	 */
+	T interpolate(T from, T to, float alpha);
+}
@@ -0,0 +1,405 @@
+package diff;
+
+import java.util.Arrays;
+
+/**
+ * A buffer of received states that is sampled at render time, to get smooth
+ * motion from messages that arrive at irregular times. The state is shown a
+ * small delay in the past, and is interpolated between the two received
+ * states around that time with an {@link Interpolator}. If the next state
+ * has not arrived yet, the state is extrapolated for a bounded time.
+ * <p>
+ * Every labeled message carries the time at which the server dispatched it,
+ * see {@link LabeledMessage#getTime()}, so states are placed at the right
+ * time even when ticks are skipped by a rate limit, dropped by a pipeline or
+ * dispatched at an irregular rate. The buffer measures the transit time of
+ * every message and adapts the delay to the jitter: the delay
+ * is one tick plus a percentile of the jitter of the recent messages, so that
+ * both states around the render time have usually arrived. The delay changes
+ * gradually, by speeding up or slowing down the render time by at most a
+ * fraction {@value #MAX_DRIFT}, so the motion stays smooth while the delay
+ * adapts.
+ * <p>
+ * Unlike the listeners of a {@link ClientDiffHandler}, the buffer also keeps
+ * messages that arrive out of order, because they may still be in the future
+ * of the render time. Set it with {@link ClientChannel#setJitterBuffer} and
+ * call {@link #getStateAt(long)} once per frame.
+ * <p>
+ * Thread safe: states are added by the network thread and sampled by the
+ * render thread.
+ * 
+ * @author Ben Ruijl
+ * 
+ * @param <T>
+ *            Message type
+ */
+public class JitterBuffer<T> {
+	/** Maximum fraction by which the render time is sped up or slowed down */
+	public static final double MAX_DRIFT = 0.1;
+	/** Number of recent transit times the jitter is measured over */
+	private static final int WINDOW = 64;
+	private final Interpolator<T> interpolator;
+	private final long interval;
+	private final Object[] states;
+	private final long[] indices;
+	private final long[] times; // send times in nanoseconds, unwrapped
+	private final long[] transits;
+	private final long[] jitters;
+	private int numTransits;
+	private int transitPos;
+	private long newest;
+	private short newestLabel;
+	private long newestTime;
+	private short newestSendTime;
+	private long minTransit;
+	private long jitter;
+	private long latency;
+	private long lastRenderTime;
+	private long lastSample;
+	private double percentile;
+	private long maxExtrapolation;
+	private long late;
+	private long extrapolated;
+
+	/**
+	 * Creates a buffer that keeps the last 32 states.
+	 * 
+	 * @param interpolator
+	 *            Blends two states
+	 * @param tickRate
+	 *            Number of messages the server sends per second, which sets
+	 *            the minimum delay of one tick and the default extrapolation
+	 */
+	public JitterBuffer(Interpolator<T> interpolator, int tickRate) {
+		this(interpolator, tickRate, 32);
+	}
+
+	/**
+	 * Creates a buffer.
+	 * 
+	 * @param interpolator
+	 *            Blends two states
+	 * @param tickRate
+	 *            Number of messages the server sends per second, which sets
+	 *            the minimum delay of one tick and the default extrapolation
+	 * @param capacity
+	 *            Number of states that are kept, which bounds the delay to
+	 *            this number of ticks
+	 */
+	public JitterBuffer(Interpolator<T> interpolator, int tickRate,
+			int capacity) {
+		if (tickRate <= 0 || capacity < 2) {
+			throw new IllegalArgumentException(
+					"The tick rate should be positive and the capacity at least 2");
+		}
+
+		this.interpolator = interpolator;
+		interval = 1000000000L / tickRate;
+		states = new Object[capacity];
+		indices = new long[capacity];
+		times = new long[capacity];
+		transits = new long[WINDOW];
+		jitters = new long[WINDOW];
+		percentile = 0.95;
+		maxExtrapolation = 2 * interval;
+		clear();
+	}
+
+	/**
+	 * Removes all states, for example after a reconnect.
+	 */
+	public synchronized void clear() {
+		Arrays.fill(states, null);
+		Arrays.fill(indices, Long.MIN_VALUE);
+		numTransits = 0;
+		transitPos = 0;
+		newest = Long.MIN_VALUE;
+		lastRenderTime = Long.MIN_VALUE;
+		lastSample = Long.MIN_VALUE;
+		jitter = 0;
+	}
+
+	/**
+	 * Sets the percentile of the jitter that the delay covers. A higher
+	 * percentile means fewer extrapolations, but a longer delay.
+	 * 
+	 * @param percentile
+	 *            Percentile between 0 and 1, 0.95 by default
+	 */
+	public synchronized void setPercentile(double percentile) {
+		if (percentile < 0 || percentile > 1) {
+			throw new IllegalArgumentException("Percentile should be between 0 and 1");
+		}
+
+		this.percentile = percentile;
+	}
+
+	public synchronized double getPercentile() {
+		return percentile;
+	}
+
+	/**
+	 * Sets how far the state is extrapolated beyond the newest state, after
+	 * which it is frozen until a newer state arrives.
+	 * 
+	 * @param nanos
+	 *            Maximum extrapolation, two ticks by default
+	 */
+	public synchronized void setMaxExtrapolation(long nanos) {
+		maxExtrapolation = nanos;
+	}
+
+	public synchronized long getMaxExtrapolation() {
+		return maxExtrapolation;
+	}
+
+	/**
+	 * Adds a received state.
+	 * 
+	 * @param label
+	 *            Label of the message
+	 * @param sendTime
+	 *            Time at which the server dispatched the message, see
+	 *            {@link LabeledMessage#getTime()}
+	 * @param state
+	 *            The state
+	 * @param arrivalTime
+	 *            Time of arrival, from {@link System#nanoTime()}
+	 * @return True if the state is stored, false if it is a duplicate or
+	 *         older than the states in the buffer
+	 */
+	public synchronized boolean add(short label, short sendTime, T state,
+			long arrivalTime) {
+		long index;
+		long time;
+		if (newest == Long.MIN_VALUE) {
+			index = label;
+			time = (sendTime & 0xFFFF) * 1000000L;
+		} else {
+			/* Unwrap the label relative to the newest one */
+			int distance = AckMessage.distance(label, newestLabel);
+			if (distance > Short.MAX_VALUE / 2) {
+				distance -= Short.MAX_VALUE + 1;
+			}
+
+			index = newest + distance;
+			if (index <= newest - states.length) {
+				return false;
+			}
+
+			/* Unwrap the send time relative to the newest one as well */
+			int millis = (sendTime - newestSendTime) & 0xFFFF;
+			if (millis > Short.MAX_VALUE) {
+				millis -= 0x10000;
+			}
+
+			time = newestTime + millis * 1000000L;
+		}
+
+		int slot = (int) Math.floorMod(index, (long) states.length);
+		if (indices[slot] == index) {
+			return false; // duplicate
+		}
+
+		states[slot] = state;
+		indices[slot] = index;
+		times[slot] = time;
+		if (index > newest) {
+			newest = index;
+			newestLabel = label;
+			newestTime = time;
+			newestSendTime = sendTime;
+		}
+
+		if (time < lastSample) {
+			late++;
+		}
+
+		registerTransit(arrivalTime - time);
+		return true;
+	}
+
+	/**
+	 * Registers the time between the sending and the arrival of a message, up
+	 * to a constant offset between the clocks, and updates the target delay.
+	 */
+	private void registerTransit(long transit) {
+		transits[transitPos] = transit;
+		transitPos = (transitPos + 1) % WINDOW;
+		if (numTransits < WINDOW) {
+			numTransits++;
+		}
+
+		/* The fastest message of the window has no jitter */
+		minTransit = Long.MAX_VALUE;
+		for (int i = 0; i < numTransits; i++) {
+			minTransit = Math.min(minTransit, transits[i]);
+		}
+
+		for (int i = 0; i < numTransits; i++) {
+			jitters[i] = transits[i] - minTransit;
+		}
+
+		Arrays.sort(jitters, 0, numTransits);
+		jitter = jitters[(int) Math.round(percentile * (numTransits - 1))];
+
+		if (lastRenderTime == Long.MIN_VALUE) {
+			latency = getTargetLatency();
+		}
+	}
+
+	/**
+	 * Gets the time between the sending of a state and its display that the
+	 * buffer adapts to, including the clock offset.
+	 */
+	private long getTargetLatency() {
+		return minTransit + interval + jitter;
+	}
+
+	/**
+	 * Gets the state at the given render time, which lies the current delay
+	 * in the past.
+	 * 
+	 * @param renderTime
+	 *            Time of the frame, from {@link System#nanoTime()}
+	 * @return The interpolated or extrapolated state, or {@code null} if no
+	 *         state has been received yet
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized T getStateAt(long renderTime) {
+		if (newest == Long.MIN_VALUE) {
+			return null;
+		}
+
+		/* Move the delay gradually towards the target */
+		if (lastRenderTime != Long.MIN_VALUE && renderTime > lastRenderTime) {
+			long step = (long) ((renderTime - lastRenderTime) * MAX_DRIFT);
+			long difference = getTargetLatency() - latency;
+			latency += Math.max(-step, Math.min(step, difference));
+		}
+		lastRenderTime = renderTime;
+
+		long sample = renderTime - latency;
+		lastSample = sample;
+
+		if (sample >= newestTime) {
+			/* Extrapolate from the two newest states */
+			T to = (T) states[slot(newest)];
+			long from = findOlder(newest);
+			if (from == Long.MIN_VALUE || times[slot(from)] >= newestTime) {
+				return to; // nothing to extrapolate from
+			}
+
+			extrapolated++;
+			long fromTime = times[slot(from)];
+			long limit = newestTime + maxExtrapolation;
+			double fraction = (double) (Math.min(sample, limit) - fromTime)
+					/ (newestTime - fromTime);
+			return interpolator.interpolate((T) states[slot(from)], to,
+					(float) fraction);
+		}
+
+		long to = findNewer(sample);
+		long from = findOlder(to);
+		if (from == Long.MIN_VALUE) {
+			return (T) states[slot(to)]; // older than the buffer
+		}
+
+		long fromTime = times[slot(from)];
+		double fraction = (double) (sample - fromTime)
+				/ (times[slot(to)] - fromTime);
+		return interpolator.interpolate((T) states[slot(from)],
+				(T) states[slot(to)], (float) fraction);
+	}
+
+	/**
+	 * Gets the state at the current time.
+	 * 
+	 * @return The state or {@code null} if no state has been received yet
+	 */
+	public T getState() {
+		return getStateAt(System.nanoTime());
+	}
+
+	private int slot(long index) {
+		return (int) Math.floorMod(index, (long) states.length);
+	}
+
+	/**
+	 * Gets the newest stored index before the given index.
+	 * 
+	 * @return The index or {@link Long#MIN_VALUE} if there is none
+	 */
+	private long findOlder(long index) {
+		long oldest = newest - states.length;
+		for (long i = Math.min(index, newest + 1) - 1; i > oldest; i--) {
+			if (indices[slot(i)] == i) {
+				return i;
+			}
+		}
+
+		return Long.MIN_VALUE;
+	}
+
+	/**
+	 * Gets the oldest stored index that was sent after the given time, which
+	 * exists if the time is before the newest state.
+	 */
+	private long findNewer(long time) {
+		for (long i = newest - states.length + 1; i < newest; i++) {
+			if (indices[slot(i)] == i && times[slot(i)] > time) {
+				return i;
+			}
+		}
+
+		return newest;
+	}
+
+	/**
+	 * Gets the delay that is currently added to the transit time of the
+	 * fastest messages.
+	 * 
+	 * @return The delay in nanoseconds
+	 */
+	public synchronized long getDelay() {
+		return newest == Long.MIN_VALUE ? 0 : latency - minTransit;
+	}
+
+	/**
+	 * Gets the delay that the buffer adapts to: one tick plus the jitter.
+	 * 
+	 * @return The target delay in nanoseconds
+	 */
+	public synchronized long getTargetDelay() {
+		return newest == Long.MIN_VALUE ? 0 : interval + jitter;
+	}
+
+	/**
+	 * Gets the percentile of the jitter of the recent messages.
+	 * 
+	 * @return The jitter in nanoseconds
+	 */
+	public synchronized long getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * Gets the number of states that arrived after the render time had passed
+	 * them.
+	 * 
+	 * @return Number of late states
+	 */
+	public synchronized long getLateStates() {
+		return late;
+	}
+
+	/**
+	 * Gets the number of samples that had to be extrapolated, because the
+	 * newer state had not arrived yet.
+	 * 
+	 * @return Number of extrapolated samples
+	 */
+	public synchronized long getExtrapolations() {
+		return extrapolated;
+	}
+}
@@ -5,14 +5,18 @@ import com.jme3.network.Message;
 import com.jme3.network.serializing.Serializable;
 
 /**
- * A message containing another message with an identifier.
+ * A message containing another message with an identifier. The channel tells
+ * which stream of snapshots the message belongs to, see
+ * {@link ServerChannel}.
  * 
  * @author Ben Ruijl
  * 
  */
 @Serializable
 public class LabeledMessage extends AbstractMessage {
+	private byte channel;
 	private short label;
+	private short time;
 	private Message message;
 
 	/* Required */
@@ -22,15 +26,54 @@ public class LabeledMessage extends AbstractMessage {
 	}
 
 	public LabeledMessage(short label, Message message) {
+		this((byte) 0, label, message);
+	}
+
+	public LabeledMessage(byte channel, short label, Message message) {
+		this(channel, label, (short) 0, message);
+	}
+
+	/**
+	 * Creates a labeled message that carries the time of its tick.
+	 * 
+	 * @param channel
+	 *            Channel of the message
+	 * @param label
+	 *            Label of the message
+	 * @param time
+	 *            Time at which the tick was dispatched, see {@link #getTime()}
+	 * @param message
+	 *            The message
+	 */
+	public LabeledMessage(byte channel, short label, short time,
+			Message message) {
 		super(false);
+		this.channel = channel;
 		this.label = label;
+		this.time = time;
 		this.message = message;
 	}
 
+	public byte getChannel() {
+		return channel;
+	}
+
 	public short getLabel() {
 		return label;
 	}
 
+	/**
+	 * Gets the time at which the server dispatched the tick of this message,
+	 * in milliseconds of the server clock. The time wraps around every 65.5
+	 * seconds, so only the differences between recent messages are
+	 * meaningful, which is what a {@link JitterBuffer} needs.
+	 * 
+	 * @return The time in milliseconds, modulo 2^16
+	 */
+	public short getTime() {
+		return time;
+	}
+
 	public Message getMessage() {
 		return message;
 	}
@@ -0,0 +1,133 @@
+package diff;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds. Every power of two is divided into
+ * four buckets, so percentiles are accurate to within 25%. Recording is
+ * lock-free and does not allocate, so it can always stay on.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKETS = 4;
+	private final AtomicLongArray buckets;
+	private final AtomicLong count;
+	private final AtomicLong sum;
+	private final AtomicLong max;
+
+	public LatencyHistogram() {
+		buckets = new AtomicLongArray(SUB_BUCKETS * 63);
+		count = new AtomicLong();
+		sum = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	private static int getBucket(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) Math.max(nanos, 0);
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (exponent - 2) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Gets the largest duration that falls in a bucket.
+	 */
+	private static long getUpperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + 2;
+		long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+	}
+
+	/**
+	 * Records a duration.
+	 * 
+	 * @param nanos
+	 *            Duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		buckets.incrementAndGet(getBucket(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+
+		long current = max.get();
+		while (nanos > current && !max.compareAndSet(current, nanos)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the average duration.
+	 * 
+	 * @return Mean in nanoseconds, or 0 if nothing is recorded
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets the duration below which the given fraction of the recorded
+	 * durations falls.
+	 * 
+	 * @param fraction
+	 *            Fraction between 0 and 1, for example 0.99
+	 * @return Upper bound of the percentile in nanoseconds, or 0 if nothing
+	 *         is recorded
+	 */
+	public long getPercentile(double fraction) {
+		long total = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			total += buckets.get(i);
+		}
+
+		long threshold = (long) Math.ceil(total * fraction);
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= threshold && seen > 0) {
+				return Math.min(getUpperBound(i), max.get());
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Gets a summary of the histogram in microseconds.
+	 * 
+	 * @return Latency summary
+	 */
+	public LatencyStats getStats() {
+		return new LatencyStats(getCount(), getMean() / 1e3,
+				getPercentile(0.5) / 1e3, getPercentile(0.99) / 1e3,
+				getMax() / 1e3);
+	}
+
+	public void reset() {
+		for (int i = 0; i < buckets.length(); i++) {
+			buckets.set(i, 0);
+		}
+
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+}
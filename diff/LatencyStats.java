@@ -0,0 +1,51 @@
+package diff;
+
+/**
+ * A summary of a {@link LatencyHistogram}, as it is exposed through JMX.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class LatencyStats {
+	private final long count;
+	private final double meanMicros;
+	private final double medianMicros;
+	private final double p99Micros;
+	private final double maxMicros;
+
+	public LatencyStats(long count, double meanMicros, double medianMicros,
+			double p99Micros, double maxMicros) {
+		this.count = count;
+		this.meanMicros = meanMicros;
+		this.medianMicros = medianMicros;
+		this.p99Micros = p99Micros;
+		this.maxMicros = maxMicros;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMeanMicros() {
+		return meanMicros;
+	}
+
+	public double getMedianMicros() {
+		return medianMicros;
+	}
+
+	public double getP99Micros() {
+		return p99Micros;
+	}
+
+	public double getMaxMicros() {
+		return maxMicros;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d samples, mean %.1f us, median %.1f us, p99 %.1f us, max %.1f us",
+				count, meanMicros, medianMicros, p99Micros, maxMicros);
+	}
+}
@@ -0,0 +1,104 @@
+package diff;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses payloads with a fast LZ77 variant, which replaces repeated byte
+ * sequences by references to an earlier occurrence. This works well for
+ * payloads that contain repeated structures, such as many entities with
+ * similar changes.
+ * <p>
+ * The compressed data is a sequence of literal runs and matches: a
+ * {@link Varint} with the number of literals, the literals, and then a
+ * {@link Varint} with the distance and one with the length minus four of the
+ * match. The last sequence only consists of literals.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class LzCompressor implements DeltaCompressor {
+	private static final int MIN_MATCH = 4;
+	private static final int HASH_BITS = 12;
+
+	private final ThreadLocal<int[]> hashTables = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1 << HASH_BITS];
+		}
+	};
+
+	private static int hash(int value) {
+		return (value * 0x9E3779B1) >>> (32 - HASH_BITS);
+	}
+
+	@Override
+	public void compress(ByteBuffer source, ByteBuffer target) {
+		int[] table = hashTables.get();
+		int start = source.position();
+		int end = source.limit();
+
+		// positions are stored plus one, so that 0 means empty
+		for (int i = 0; i < table.length; i++) {
+			table[i] = 0;
+		}
+
+		int literalStart = start;
+		int i = start;
+		while (i + MIN_MATCH <= end) {
+			int value = source.getInt(i);
+			int h = hash(value);
+			int candidate = table[h] - 1;
+			table[h] = i + 1;
+
+			if (candidate < 0 || source.getInt(candidate) != value) {
+				i++;
+				continue;
+			}
+
+			int length = MIN_MATCH;
+			while (i + length < end
+					&& source.get(candidate + length) == source.get(i + length)) {
+				length++;
+			}
+
+			writeLiterals(source, literalStart, i, target);
+			Varint.put(target, i - candidate);
+			Varint.put(target, length - MIN_MATCH);
+
+			i += length;
+			literalStart = i;
+		}
+
+		writeLiterals(source, literalStart, end, target);
+	}
+
+	private static void writeLiterals(ByteBuffer source, int from, int to,
+			ByteBuffer target) {
+		Varint.put(target, to - from);
+		for (int i = from; i < to; i++) {
+			target.put(source.get(i));
+		}
+	}
+
+	@Override
+	public void decompress(ByteBuffer source, ByteBuffer target) {
+		while (true) {
+			int literals = Varint.get(source);
+			for (int i = 0; i < literals; i++) {
+				target.put(source.get());
+			}
+
+			if (!target.hasRemaining()) {
+				return;
+			}
+
+			int distance = Varint.get(source);
+			int length = Varint.get(source) + MIN_MATCH;
+
+			// byte by byte, because the match can overlap with itself
+			for (int i = 0; i < length; i++) {
+				target.put(target.get(target.position() - distance));
+			}
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package diff;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file of the {@link DemoRecorder} and the {@link DemoPlayer}. A file that
+ * is read is accessed through a memory-mapped window, which is moved when a
+ * range outside of it is requested. A file that is written is written
+ * through its channel instead, so that it only ever holds written data: a
+ * mapping beyond the end would grow the file with padding, and a mapped file
+ * cannot be truncated on every platform.
+ * <p>
+ * Not thread-safe.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+class MappedFile implements Closeable {
+	/** Size of the mapped window, unless a larger range is requested */
+	private static final int WINDOW_SIZE = 16 << 20;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final boolean writable;
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	/**
+	 * Opens a file.
+	 * 
+	 * @param path
+	 *            The file
+	 * @param writable
+	 *            True to create or overwrite the file, false to read it
+	 */
+	MappedFile(File path, boolean writable) throws IOException {
+		this.writable = writable;
+		file = new RandomAccessFile(path, writable ? "rw" : "r");
+		channel = file.getChannel();
+		if (writable) {
+			channel.truncate(0);
+		}
+	}
+
+	/**
+	 * Gets a read-only view of a range of the file, which is valid until the
+	 * next call. Position 0 of the view is the start of the range.
+	 * 
+	 * @param offset
+	 *            Offset of the range in the file
+	 * @param size
+	 *            Size of the range
+	 * @return A view of at least the given size
+	 * @throws EOFException
+	 *             If the file is shorter than the range
+	 */
+	ByteBuffer map(long offset, int size) throws IOException {
+		if (writable) {
+			throw new IllegalStateException(
+					"A file that is written is not mapped");
+		}
+
+		if (window == null || offset < windowStart
+				|| offset + size > windowStart + window.capacity()) {
+			long length = Math.min(Math.max(WINDOW_SIZE, size),
+					channel.size() - offset);
+			if (length < size) {
+				throw new EOFException("Range " + offset + "+" + size
+						+ " is beyond the end of the file");
+			}
+
+			window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			windowStart = offset;
+		}
+
+		ByteBuffer view = window.duplicate();
+		view.position((int) (offset - windowStart));
+		return view.slice();
+	}
+
+	/**
+	 * Writes a buffer, from its position to its limit, at an offset in the
+	 * file. Writing beyond the end grows the file.
+	 * 
+	 * @param offset
+	 *            Offset in the file
+	 * @param source
+	 *            The data, which is consumed
+	 */
+	void write(long offset, ByteBuffer source) throws IOException {
+		while (source.hasRemaining()) {
+			offset += channel.write(source, offset);
+		}
+	}
+
+	long size() throws IOException {
+		return channel.size();
+	}
+
+	/**
+	 * Writes the file to the storage device.
+	 */
+	void finish() throws IOException {
+		channel.force(true);
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		file.close();
+	}
+}
@@ -0,0 +1,96 @@
+package diff;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import com.jme3.network.Message;
+import com.jme3.network.serializing.Serializer;
+
+/**
+ * Serializes messages into buffers that grow with the message, so that there
+ * is no limit on the size of a snapshot. A serialized message consists of its
+ * class id and its fields, as written by
+ * {@link Serializer#writeClassAndObject}.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class MessageSerialization {
+	/** The largest message that is serialized, in bytes */
+	public static final int MAX_SIZE = 1 << 24;
+
+	private MessageSerialization() {
+	}
+
+	/**
+	 * Serializes the message from the start of the buffer. If the buffer is
+	 * too small, a buffer of twice the size is tried, up to
+	 * {@link #MAX_SIZE}. Keep the returned buffer to serialize the next
+	 * message without allocating.
+	 * 
+	 * @param message
+	 *            Message to serialize
+	 * @param buffer
+	 *            Buffer to try first
+	 * @return The buffer that contains the message, from its position to its
+	 *         limit. This is either the given buffer or a larger one.
+	 * @throws BufferOverflowException
+	 *             If the message is larger than {@link #MAX_SIZE}
+	 */
+	public static ByteBuffer serialize(Message message, ByteBuffer buffer) {
+		while (true) {
+			try {
+				serializeInto(message, buffer);
+				return buffer;
+			} catch (BufferOverflowException e) {
+				if (buffer.capacity() >= MAX_SIZE) {
+					throw e;
+				}
+
+				buffer = ByteBuffer.allocate(Math.min(MAX_SIZE,
+						buffer.capacity() * 2));
+			}
+		}
+	}
+
+	/**
+	 * Serializes the message from the start of the buffer, without growing
+	 * it.
+	 * 
+	 * @param message
+	 *            Message to serialize
+	 * @param buffer
+	 *            Buffer to serialize into, which is flipped afterwards
+	 * @throws BufferOverflowException
+	 *             If the message does not fit in the buffer
+	 */
+	public static void serializeInto(Message message, ByteBuffer buffer) {
+		buffer.clear();
+
+		try {
+			Serializer.writeClassAndObject(buffer, message);
+		} catch (IOException e) {
+			throw new RuntimeException("Error serializing message", e);
+		}
+
+		buffer.flip();
+	}
+
+	/**
+	 * Makes sure that a buffer has at least the given capacity.
+	 * 
+	 * @param buffer
+	 *            Current buffer
+	 * @param capacity
+	 *            Required capacity
+	 * @return The given buffer, or a new buffer if it was too small
+	 */
+	public static ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity) {
+		if (buffer.capacity() >= capacity) {
+			return buffer;
+		}
+
+		return ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+	}
+}
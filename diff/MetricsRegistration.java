@@ -0,0 +1,43 @@
+package diff;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers metrics with the platform MBean server.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+class MetricsRegistration {
+	private static final String DOMAIN = "quakemonkey";
+
+	private MetricsRegistration() {
+	}
+
+	static ObjectName register(Object metrics, String type, String name) {
+		try {
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type
+					+ ",name=" + ObjectName.quote(name));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(metrics, objectName);
+			return objectName;
+		} catch (JMException e) {
+			throw new IllegalStateException("Could not register metrics "
+					+ name, e);
+		}
+	}
+
+	static void unregister(ObjectName objectName) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					objectName);
+		} catch (JMException e) {
+			throw new IllegalStateException("Could not unregister metrics "
+					+ objectName, e);
+		}
+	}
+}
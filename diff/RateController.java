@@ -0,0 +1,182 @@
+package diff;
+
+/**
+ * Decides when a message is sent to a connection, similar to the
+ * {@code snaps} and {@code rate} settings of Quake. A connection receives at
+ * most {@code snapshotRate} messages per second and, on average, at most
+ * {@code bytesPerSecond} bytes per second. Ticks in between are skipped for
+ * the connection; the next message is a delta of the last acknowledged
+ * baseline, so skipping never breaks the delta chain.
+ * <p>
+ * The next message is scheduled from the deadline of the previous one, not
+ * from the time it was actually sent, and a tick that is up to half a tick
+ * early is not skipped. Jitter in the tick times therefore does not lower
+ * the rate that a connection receives.
+ * <p>
+ * On top of the limits, the interval between messages adapts to congestion.
+ * If more messages are unacknowledged than the round-trip time explains, the
+ * interval is increased multiplicatively, and when the lag is back to normal
+ * it slowly recovers to the configured rate. A client on a bad connection
+ * thus receives fewer deltas, instead of falling so far behind that it only
+ * receives full messages.
+ * <p>
+ * Threading: {@link #shouldSend} and {@link #registerSent} are called by the
+ * dispatching thread. The limits can be changed from any thread.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class RateController {
+	private static final long SECOND = 1000000000L;
+	/** The slowest rate the interval adapts to */
+	private static final long MAX_INTERVAL = SECOND;
+	private static final double BACKOFF = 1.5;
+	private static final double RECOVERY = 0.1;
+
+	private volatile int snapshotRate;
+	private volatile int bytesPerSecond;
+	private double interval; // adaptive interval between messages in ns
+	private long nextSendTime;
+	private boolean started;
+	private boolean ticked;
+	private long lastTick;
+	private double tickInterval; // smoothed interval between ticks in ns
+
+	/**
+	 * Creates a controller that does not limit the rate.
+	 */
+	public RateController() {
+		this(0, 0);
+	}
+
+	/**
+	 * Creates a controller with the given limits.
+	 * 
+	 * @param snapshotRate
+	 *            Maximum number of messages per second or 0 for no limit
+	 * @param bytesPerSecond
+	 *            Bandwidth budget in bytes per second or 0 for no limit
+	 */
+	public RateController(int snapshotRate, int bytesPerSecond) {
+		this.snapshotRate = snapshotRate;
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	private long getMinInterval() {
+		int rate = snapshotRate;
+		return rate > 0 ? SECOND / rate : 0;
+	}
+
+	/**
+	 * Checks if a message should be sent to the connection in this tick, and
+	 * adapts the send interval to the lag of the connection.
+	 * 
+	 * @param now
+	 *            Current time in nanoseconds
+	 * @param lag
+	 *            Number of messages that are not acknowledged
+	 * @param rtt
+	 *            Smoothed round-trip time in nanoseconds or -1 if it is not
+	 *            known yet
+	 * @return True if a message should be sent
+	 */
+	public boolean shouldSend(long now, int lag, long rtt) {
+		if (ticked) {
+			long elapsed = now - lastTick;
+			tickInterval = tickInterval == 0 ? elapsed : tickInterval
+					+ (elapsed - tickInterval) * 0.125;
+		}
+		lastTick = now;
+		ticked = true;
+
+		if (!started) {
+			return true;
+		}
+
+		/* A tick that is slightly early would otherwise cost a whole tick */
+		if (now - nextSendTime + (long) (tickInterval / 2) < 0) {
+			return false;
+		}
+
+		/* Messages that are in flight for one round trip are not congestion */
+		long minInterval = getMinInterval();
+		double currentInterval = Math.max(interval, minInterval);
+		int expectedLag = 2 + (rtt > 0 && currentInterval > 0 ? (int) (rtt / currentInterval)
+				: 0);
+
+		if (rtt > 0 && lag > 2 * expectedLag) {
+			interval = Math.min(MAX_INTERVAL,
+					Math.max(currentInterval, SECOND / 100) * BACKOFF);
+		} else {
+			interval = currentInterval - (currentInterval - minInterval)
+					* RECOVERY;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Registers that a message is sent and schedules the next one.
+	 * 
+	 * @param now
+	 *            Current time in nanoseconds
+	 * @param bytes
+	 *            Size of the message in bytes
+	 */
+	public void registerSent(long now, int bytes) {
+		long wait = (long) Math.max(interval, getMinInterval());
+
+		int budget = bytesPerSecond;
+		if (budget > 0) {
+			wait = Math.max(wait, bytes * SECOND / budget);
+		}
+
+		/*
+		 * Advance from the previous deadline, so that the schedule does not
+		 * drift with the jitter of the ticks, but never build up more than
+		 * one interval of credit after a pause
+		 */
+		nextSendTime = started ? Math.max(nextSendTime + wait, now - wait)
+				: now + wait;
+		started = true;
+	}
+
+	public int getSnapshotRate() {
+		return snapshotRate;
+	}
+
+	/**
+	 * Sets the maximum number of messages per second.
+	 * 
+	 * @param snapshotRate
+	 *            Messages per second or 0 for no limit
+	 */
+	public void setSnapshotRate(int snapshotRate) {
+		this.snapshotRate = snapshotRate;
+	}
+
+	public int getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * Sets the bandwidth budget.
+	 * 
+	 * @param bytesPerSecond
+	 *            Bytes per second or 0 for no limit
+	 */
+	public void setBytesPerSecond(int bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Gets the current interval between messages, which is at least the
+	 * interval of the snapshot rate and grows when the connection is
+	 * congested.
+	 * 
+	 * @return Interval in nanoseconds
+	 */
+	public long getInterval() {
+		return (long) Math.max(interval, getMinInterval());
+	}
+}
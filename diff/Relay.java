@@ -0,0 +1,236 @@
+package diff;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.jme3.network.AbstractMessage;
+import com.jme3.network.Client;
+import com.jme3.network.Filters;
+import com.jme3.network.Message;
+import com.jme3.network.MessageListener;
+import com.jme3.network.Server;
+
+/**
+ * Receives the messages of a server as a client and serves them again to its
+ * own clients, for example spectators. The server only sends to the relays,
+ * each relay diffs the state for its own clients, and relays can be chained,
+ * so the audience can be spread over processes and machines.
+ * <p>
+ * Upstream, the relay is a {@link ClientDiffHandler} that rebuilds the state
+ * of every channel. Downstream, it is a {@link ServerDiffHandler} with the
+ * same channels, whose rate limits, projection, recorder and so on can be set
+ * as on any server. The static baselines of the upstream server are
+ * published downstream as well.
+ * <p>
+ * Call {@link #update()} at the tick rate of the relay, for example from its
+ * own loop. Every update dispatches the newest state of every channel that
+ * is older than the delay to all downstream clients, in one tick, so states
+ * that the relay receives in between are skipped. A delay keeps spectators
+ * behind the players, so that they cannot be used to cheat.
+ * <p>
+ * Messages are received on the network thread of the upstream client and
+ * dispatched on the thread that calls {@link #update()}.
+ * 
+ * @author Ben Ruijl
+ * 
+ * @param <T>
+ *            Message type of channel 0
+ */
+public class Relay<T extends AbstractMessage> {
+	private final Server server;
+	private final ClientDiffHandler<T> upstream;
+	private final ServerDiffHandler<T> downstream;
+	/** Received messages that wait for an update, in order of arrival */
+	private final Deque<Received> incoming;
+	/** Messages that wait for the delay, in order of arrival */
+	private final Deque<Received> delayed;
+	private final List<Message> latest;
+	private volatile long delay;
+	private long forwarded;
+
+	/**
+	 * Creates a relay. Start the client after the relay is created, so that
+	 * no message is missed.
+	 * 
+	 * @param client
+	 *            Client that is connected to the upstream server or relay
+	 * @param server
+	 *            Server of the downstream clients
+	 * @param cls
+	 *            Message type of channel 0
+	 * @param numSnapshots
+	 *            Number of messages in the history of every channel, both
+	 *            upstream and downstream
+	 */
+	public Relay(Client client, Server server, Class<T> cls,
+			short numSnapshots) {
+		this.server = server;
+		incoming = new ArrayDeque<>();
+		delayed = new ArrayDeque<>();
+		latest = new ArrayList<>();
+		upstream = new ClientDiffHandler<>(client, cls, numSnapshots);
+		downstream = new ServerDiffHandler<>(server, numSnapshots);
+		listen(upstream.getDefaultChannel());
+
+		upstream.addBaselineListener(new MessageListener<Client>() {
+			@Override
+			public void messageReceived(Client source, Message m) {
+				receive(new Received((BaselineMessage) m));
+			}
+		});
+	}
+
+	/**
+	 * Adds a channel on both sides. The channels should be added in the same
+	 * order as on the upstream server.
+	 * 
+	 * @param cls
+	 *            Message type of the channel
+	 * @param numSnapshots
+	 *            Number of messages in the history of the channel
+	 */
+	public synchronized <U extends AbstractMessage> void addChannel(
+			Class<U> cls, short numSnapshots) {
+		downstream.addChannel(numSnapshots);
+		listen(upstream.addChannel(cls, numSnapshots));
+	}
+
+	private void listen(final ClientChannel<?> channel) {
+		channel.addListener(new MessageListener<Client>() {
+			@Override
+			public void messageReceived(Client source, Message m) {
+				receive(new Received(channel.getId(), m));
+			}
+		});
+	}
+
+	private synchronized void receive(Received received) {
+		incoming.add(received);
+	}
+
+	/**
+	 * Sets the time that a state is held back before it is sent downstream.
+	 * 
+	 * @param nanos
+	 *            Delay in nanoseconds, 0 by default
+	 */
+	public void setDelay(long nanos) {
+		delay = nanos;
+	}
+
+	public long getDelay() {
+		return delay;
+	}
+
+	public ClientDiffHandler<T> getUpstream() {
+		return upstream;
+	}
+
+	public ServerDiffHandler<T> getDownstream() {
+		return downstream;
+	}
+
+	/**
+	 * Gets the number of states that were dispatched downstream.
+	 * 
+	 * @return Number of states, counting one for every channel
+	 */
+	public synchronized long getForwarded() {
+		return forwarded;
+	}
+
+	/**
+	 * Dispatches the newest states that are older than the delay.
+	 */
+	public void update() {
+		update(System.nanoTime());
+	}
+
+	/**
+	 * Dispatches the newest states that are older than the delay. A state is
+	 * considered to arrive at the first update after it is received.
+	 * 
+	 * @param time
+	 *            Time of the update, from {@link System#nanoTime()} or any
+	 *            other clock that is used for all updates
+	 */
+	public synchronized void update(long time) {
+		for (Received received : incoming) {
+			received.time = time;
+			delayed.add(received);
+		}
+
+		incoming.clear();
+
+		/* Keep the newest state per channel */
+		latest.clear();
+		long currentDelay = delay;
+		while (!delayed.isEmpty()
+				&& time - delayed.peek().time >= currentDelay) {
+			Received received = delayed.poll();
+			if (received.baseline != null) {
+				publishBaseline(received.baseline);
+				continue;
+			}
+
+			while (latest.size() <= received.channel) {
+				latest.add(null);
+			}
+
+			latest.set(received.channel, received.message);
+		}
+
+		if (!latest.isEmpty() && server.hasConnections()) {
+			downstream.dispatchMessages(server,
+					Filters.in(server.getConnections()),
+					latest.toArray(new Message[latest.size()]));
+
+			for (Message message : latest) {
+				if (message != null) {
+					forwarded++;
+				}
+			}
+		}
+	}
+
+	private void publishBaseline(BaselineMessage baseline) {
+		if (baseline.getChannel() < downstream.getNumChannels()) {
+			publishBaseline(downstream.getChannel(baseline.getChannel()),
+					baseline.getMessage());
+		}
+	}
+
+	/**
+	 * Sets the baseline of a downstream channel, which has the message type
+	 * of the upstream channel that the baseline was received on.
+	 */
+	@SuppressWarnings("unchecked")
+	private <U extends AbstractMessage> void publishBaseline(
+			ServerChannel<U> channel, Message message) {
+		channel.setBaseline(server, (U) message);
+	}
+
+	/**
+	 * A state or baseline that was received from upstream.
+	 */
+	private static class Received {
+		private final byte channel;
+		private final Message message;
+		private final BaselineMessage baseline;
+		private long time;
+
+		public Received(byte channel, Message message) {
+			this.channel = channel;
+			this.message = message;
+			this.baseline = null;
+		}
+
+		public Received(BaselineMessage baseline) {
+			this.channel = baseline.getChannel();
+			this.message = null;
+			this.baseline = baseline;
+		}
+	}
+}
@@ -0,0 +1,570 @@
+package diff;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.jme3.network.AbstractMessage;
+import com.jme3.network.Filter;
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+import com.jme3.network.Server;
+
+/**
+ * A stream of messages of type {@code T} that a {@link ServerDiffHandler}
+ * sends to its clients. Every channel has its own labels, history, delta
+ * cache and acknowledged baselines, so the channels are diffed independently
+ * and can have a different history size. They share the connections, the
+ * rate limits, the acknowledgments and, when they are dispatched together
+ * with {@link ServerDiffHandler#dispatchMessages}, the datagrams of the
+ * handler.
+ * <p>
+ * Channel 0 has the message type of the handler and is created with it. More
+ * channels are added with {@link ServerDiffHandler#addChannel}. The client
+ * should add its channels in the same order, so that the ids match.
+ * <p>
+ * A channel can have a static baseline, see {@link #setBaseline}, which
+ * replaces full messages by deltas for new connections and connections whose
+ * acknowledged message is no longer in the history.
+ * 
+ * @author Ben Ruijl
+ * 
+ * @param <T>
+ *            Message type
+ */
+public class ServerChannel<T extends AbstractMessage> {
+	/** Upper bound of the size of the headers of a labeled message */
+	private static final int HEADER_SIZE = 32;
+	/**
+	 * Size of the fragments of a static baseline. They are sent reliably, so
+	 * they only have to fit in a jME message, not in a datagram.
+	 */
+	private static final int BASELINE_FRAGMENT_SIZE = 16 << 10;
+	private static final Fragmenter BASELINE_FRAGMENTER = new Fragmenter(
+			BASELINE_FRAGMENT_SIZE);
+	private final ServerDiffHandler<?> handler;
+	private final byte id;
+	private final SnapshotStore snapshotStore;
+	private final DeltaCache<T> deltaCache;
+	private final ConcurrentMap<HostedConnection, DiffConnection<T>> connectionSnapshots;
+	/** The history of every view, used by the dispatching thread only */
+	private final Map<Object, ViewStore> viewStores;
+	private final ServerMetrics metrics;
+	private short curLabel;
+	private volatile ViewProjection<T, Object> projection;
+	private volatile SnapshotStore baselineStore;
+	private volatile List<Message> baselineFragments;
+	private volatile short baselineVersion;
+	private volatile DemoRecorder recorder;
+	private ByteBuffer recordBuffer;
+
+	ServerChannel(ServerDiffHandler<?> handler, byte id,
+			SnapshotStore snapshotStore) {
+		this.handler = handler;
+		this.id = id;
+		this.snapshotStore = snapshotStore;
+		deltaCache = new DeltaCache<>();
+		connectionSnapshots = new ConcurrentHashMap<>();
+		viewStores = new HashMap<>();
+		metrics = new ServerMetrics(deltaCache, connectionSnapshots);
+		curLabel = 0;
+		baselineVersion = -1;
+	}
+
+	public byte getId() {
+		return id;
+	}
+
+	/**
+	 * Dispatches a message of this channel only. See
+	 * {@link ServerDiffHandler#dispatchMessage}.
+	 * 
+	 * @param server
+	 *            The server that should send the message
+	 * @param filter
+	 *            Connections to send the message to
+	 * @param message
+	 *            The message to be sent
+	 */
+	public void dispatchMessage(Server server,
+			Filter<? super HostedConnection> filter, T message) {
+		handler.dispatch(server, filter,
+				Collections.<ServerChannel<?>> singletonList(this),
+				Collections.<Message> singletonList(message));
+	}
+
+	/**
+	 * Publishes a static baseline, such as the state at the start of a map.
+	 * The baseline is sent reliably to every connection, now and when it
+	 * connects, and cached by the client. Connections that have no
+	 * acknowledged message in the history then receive a delta of the
+	 * baseline instead of a full message, so that many clients joining at
+	 * once do not cause a burst of full messages.
+	 * <p>
+	 * Every call publishes a new version, and a delta only refers to the
+	 * version the connection was sent. A delta that arrives before its
+	 * baseline is not acknowledged, so the connection receives deltas of the
+	 * baseline until it has it. A baseline that is larger than a jME message
+	 * is split into fragments that are sent reliably. Should be called by the
+	 * thread that dispatches the messages.
+	 * 
+	 * @param server
+	 *            The server that should send the baseline
+	 * @param baseline
+	 *            The baseline, typically the first message of a map
+	 * @throws java.nio.BufferOverflowException
+	 *             If the baseline is larger than
+	 *             {@link MessageSerialization#MAX_SIZE}, in which case nothing
+	 *             is changed
+	 */
+	public synchronized void setBaseline(Server server, T baseline) {
+		short version = (short) (baselineVersion + 1);
+		if (version > Short.MAX_VALUE - 2 || version < 0) {
+			version = 0; // keep the message id of the baseline negative
+		}
+
+		/* Split first, so that a baseline that cannot be sent changes nothing */
+		List<Message> fragments = BASELINE_FRAGMENTER.split(id,
+				DiffMessage.getBaselineId(version), new BaselineMessage(id,
+						version, baseline));
+		for (Message fragment : fragments) {
+			fragment.setReliable(true);
+		}
+
+		/* A new store, so that the encoders never see a partial baseline */
+		SnapshotStore store = new HeapSnapshotStore((short) 1);
+		store.store(version, baseline);
+		baselineStore = store;
+		baselineFragments = fragments;
+		baselineVersion = version;
+
+		for (Message fragment : fragments) {
+			server.broadcast(fragment);
+		}
+
+		for (HostedConnection connection : server.getConnections()) {
+			DiffConnection<T> diffConnection = findDiffConnection(connection);
+			if (diffConnection != null) {
+				diffConnection.setBaselineVersion(version);
+			}
+		}
+	}
+
+	/**
+	 * Sends the current static baseline to a new connection, if there is
+	 * one.
+	 */
+	synchronized void sendBaseline(HostedConnection connection) {
+		short version = baselineVersion;
+		DiffConnection<T> diffConnection = findDiffConnection(connection);
+		if (version < 0 || diffConnection == null) {
+			return;
+		}
+
+		for (Message fragment : baselineFragments) {
+			connection.send(fragment);
+		}
+
+		diffConnection.setBaselineVersion(version);
+	}
+
+	/**
+	 * Gets the version of the static baseline.
+	 * 
+	 * @return The version or -1 if no baseline is published
+	 */
+	public short getBaselineVersion() {
+		return baselineVersion;
+	}
+
+	/**
+	 * Creates the state of a new connection on this channel, if it does not
+	 * exist yet. Only called when the connection is added, so that a
+	 * connection that is removed while a tick is dispatched is not added
+	 * again.
+	 */
+	void add(HostedConnection connection) {
+		DiffConnection<T> diffConnection = new DiffConnection<>();
+		if (id == 0) {
+			// channel 0 holds the rate limits of the connection
+			diffConnection.setRateController(handler
+					.createDefaultRateController());
+		}
+
+		connectionSnapshots.putIfAbsent(connection, diffConnection);
+	}
+
+	/**
+	 * Gets the state of a connection on this channel.
+	 * 
+	 * @return The state or {@code null} if the connection has not been added
+	 *         or is removed
+	 */
+	DiffConnection<T> findDiffConnection(HostedConnection connection) {
+		return connectionSnapshots.get(connection);
+	}
+
+	Iterable<DiffConnection<T>> getDiffConnections() {
+		return connectionSnapshots.values();
+	}
+
+	void remove(HostedConnection connection) {
+		connectionSnapshots.remove(connection);
+	}
+
+	/**
+	 * Stores the message of this tick and groups the receivers by their view
+	 * and the baseline they acknowledged.
+	 * 
+	 * @param receivers
+	 *            Connections that receive a message this tick
+	 * @param tickMessage
+	 *            Message of this channel
+	 * @param time
+	 *            Time at which the tick was dispatched, which the labeled
+	 *            messages carry
+	 * @return The groups, which share their message
+	 */
+	@SuppressWarnings("unchecked")
+	List<Group> group(List<HostedConnection> receivers, Message tickMessage,
+			long time) {
+		T message = (T) tickMessage;
+		ViewProjection<T, Object> currentProjection = projection;
+
+		/* Group the connections by their view */
+		Map<Object, List<HostedConnection>> views = new LinkedHashMap<>();
+		for (HostedConnection connection : receivers) {
+			Object view = currentProjection == null ? null : currentProjection
+					.getView(connection);
+
+			if (!views.containsKey(view)) {
+				views.put(view, new ArrayList<HostedConnection>());
+			}
+
+			views.get(view).add(connection);
+		}
+
+		/* Every tick has one label, which all views share */
+		short label = curLabel;
+		curLabel++;
+
+		// only allow positive labels
+		if (curLabel < 0) {
+			curLabel = 0;
+		}
+
+		/*
+		 * Every view is stored in its own history, before any baseline is
+		 * looked up, so a baseline cannot be overwritten during the tick.
+		 */
+		List<Group> viewGroups = new ArrayList<>(views.size());
+		for (Object view : views.keySet()) {
+			T viewMessage = currentProjection == null ? message
+					: currentProjection.project(message, view);
+			SnapshotStore store = currentProjection == null ? snapshotStore
+					: getViewStore(view, label);
+			store.store(label, viewMessage);
+			viewGroups.add(new Group(viewGroups.size(), store, label,
+					(short) -1, viewMessage));
+		}
+
+		if (currentProjection == null) {
+			viewStores.clear();
+		} else {
+			removeViewStores(label);
+		}
+
+		/* Group the connections of every view by the baseline they acknowledged */
+		Map<Long, Group> groups = new LinkedHashMap<>();
+		int index = 0;
+		for (Map.Entry<Object, List<HostedConnection>> entry : views
+				.entrySet()) {
+			Object view = entry.getKey();
+			Group viewGroup = viewGroups.get(index++);
+
+			for (HostedConnection connection : entry.getValue()) {
+				DiffConnection<T> diffConnection = findDiffConnection(connection);
+				if (diffConnection == null) {
+					continue; // removed during this tick
+				}
+
+				short baseline = diffConnection.getBaseline(viewGroup.store,
+						view);
+				diffConnection.registerSent(label, view);
+
+				if (baseline >= 0) {
+					metrics.registerHistoryLookup(true);
+				} else if (diffConnection.getAck() >= 0) {
+					metrics.registerHistoryLookup(false);
+				}
+
+				/* Without a baseline in the history, use the static one */
+				short version = baselineVersion;
+				if (baseline < 0 && version >= 0
+						&& diffConnection.getBaselineVersion() == version) {
+					baseline = DiffMessage.getBaselineId(version);
+					metrics.registerBaselineLookup();
+				}
+
+				Long key = (long) viewGroup.view << 16 | baseline & 0xFFFF;
+				Group group = groups.get(key);
+				if (group == null) {
+					group = new Group(viewGroup.view, viewGroup.store, label,
+							baseline, viewGroup.message);
+					groups.put(key, group);
+				}
+
+				group.connections.add(connection);
+			}
+		}
+
+		deltaCache.startTick(time);
+		record(message, views.isEmpty() || currentProjection != null ? -1
+				: label);
+		return new ArrayList<>(groups.values());
+	}
+
+	/**
+	 * Gets the history of a view, which is created when the view is first
+	 * seen.
+	 * 
+	 * @param label
+	 *            Label of this tick
+	 */
+	private SnapshotStore getViewStore(Object view, short label) {
+		ViewStore viewStore = viewStores.get(view);
+		if (viewStore == null) {
+			viewStore = new ViewStore(new HeapSnapshotStore(
+					snapshotStore.getNumSnapshots()));
+			viewStores.put(view, viewStore);
+		}
+
+		viewStore.lastLabel = label;
+		return viewStore.store;
+	}
+
+	/**
+	 * Removes the histories of views that no connection had for as many ticks
+	 * as the history holds, because they cannot contain a baseline anymore.
+	 */
+	private void removeViewStores(short label) {
+		Iterator<ViewStore> iterator = viewStores.values().iterator();
+		while (iterator.hasNext()) {
+			ViewStore viewStore = iterator.next();
+			if (AckMessage.distance(label, viewStore.lastLabel) >= viewStore.store
+					.getNumSnapshots()) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Passes the message of this tick to the recorder, if there is one.
+	 * 
+	 * @param label
+	 *            Label under which the message is stored or -1 if it has to
+	 *            be serialized
+	 */
+	private void record(T message, short label) {
+		DemoRecorder currentRecorder = recorder;
+		if (currentRecorder == null) {
+			return;
+		}
+
+		ByteBuffer serialized = label < 0 ? null : snapshotStore.get(label);
+		if (serialized == null) {
+			if (recordBuffer == null) {
+				recordBuffer = ByteBuffer.allocate(4096);
+			}
+
+			recordBuffer = MessageSerialization.serialize(message,
+					recordBuffer);
+			serialized = recordBuffer;
+		}
+
+		currentRecorder.record(serialized);
+	}
+
+	/**
+	 * Sets a recorder that records every message that is dispatched on this
+	 * channel, before any projection. The recorder only copies the serialized
+	 * message on the dispatching thread. Without a projection, the message is
+	 * not serialized again.
+	 * 
+	 * @param recorder
+	 *            The recorder or {@code null} to stop recording, which does
+	 *            not close the recorder
+	 */
+	public void setRecorder(DemoRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	public DemoRecorder getRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * The history of a view and the last tick it was used in.
+	 */
+	private static class ViewStore {
+		private final SnapshotStore store;
+		private short lastLabel;
+
+		public ViewStore(SnapshotStore store) {
+			this.store = store;
+		}
+	}
+
+	/**
+	 * Connections that receive the same message and acknowledged the same
+	 * baseline.
+	 */
+	class Group {
+		private final int view; // index of the view in this tick
+		private final SnapshotStore store;
+		private final short label;
+		private final short baseline;
+		private final T message;
+		final List<HostedConnection> connections;
+		int bytes; // upper bound of the bytes sent to every connection
+
+		public Group(int view, SnapshotStore store, short label,
+				short baseline, T message) {
+			this.view = view;
+			this.store = store;
+			this.label = label;
+			this.baseline = baseline;
+			this.message = message;
+			connections = new ArrayList<>();
+		}
+
+		/**
+		 * Gets the labeled message for the group, split into fragments if it
+		 * is too large for one datagram.
+		 */
+		public List<Message> getMessages(Fragmenter fragmenter) {
+			Message snapshot = deltaCache.getSnapshot(id, view, label,
+					baseline, getSerializedBaseline(baseline), message, store,
+					connections.size());
+
+			int fragmentSize = fragmenter.getFragmentSize();
+			int size = estimateSize(snapshot);
+			if (size <= fragmentSize) {
+				bytes = size;
+				return Collections.singletonList(snapshot);
+			}
+
+			List<Message> messages = fragmenter.split(id, label, snapshot);
+			bytes = messages.size() * fragmentSize;
+			return messages;
+		}
+
+		/**
+		 * Gets the serialized message a delta message refers to.
+		 * 
+		 * @return The message or {@code null} if there is none
+		 */
+		private ByteBuffer getSerializedBaseline(short messageId) {
+			if (DiffMessage.isBaselineId(messageId)) {
+				return baselineStore.get(DiffMessage
+						.getBaselineVersion(messageId));
+			}
+
+			return messageId < 0 ? null : store.get(messageId);
+		}
+
+		/**
+		 * Gets an upper bound of the serialized size of the labeled message,
+		 * without serializing it.
+		 */
+		private int estimateSize(Message snapshot) {
+			Message content = ((LabeledMessage) snapshot).getMessage();
+			if (content instanceof DiffMessage) {
+				return HEADER_SIZE
+						+ ((DiffMessage) content).getData().limit();
+			}
+
+			int length = store.length(label);
+			return length < 0 ? Integer.MAX_VALUE : HEADER_SIZE + length;
+		}
+	}
+
+	/**
+	 * Sets the projection that narrows the message down to what a connection
+	 * can see. Connections with an equal view share the serialized message and
+	 * the delta messages. All views of a tick are sent with the label of the
+	 * tick, but every view has its own history, so a delta always refers to
+	 * the projection the client received and stays consistent when entities
+	 * enter or leave its view. When a client moves to another view, it
+	 * receives a full message, or a delta of the static baseline, until it
+	 * acknowledges a message of the new view.
+	 * <p>
+	 * The histories of the views have as many messages as the snapshot store
+	 * of the channel and are kept on the heap. A history is removed when no
+	 * connection had its view for that many ticks, so the memory grows with
+	 * the number of distinct views, not with the number of ticks.
+	 * 
+	 * @param projection
+	 *            The projection or {@code null} to send the same message to
+	 *            every connection (default)
+	 */
+	@SuppressWarnings("unchecked")
+	public void setProjection(ViewProjection<T, ?> projection) {
+		this.projection = (ViewProjection<T, Object>) projection;
+	}
+
+	public ViewProjection<T, ?> getProjection() {
+		return projection;
+	}
+
+	/**
+	 * Gets the store that keeps the history of serialized messages, for
+	 * example to inspect its memory usage.
+	 * 
+	 * @return The snapshot store
+	 */
+	public SnapshotStore getSnapshotStore() {
+		return snapshotStore;
+	}
+
+	/**
+	 * Gets the cache of messages that are shared by connections with the same
+	 * baseline. Its hit ratio shows how much delta generation is saved.
+	 * 
+	 * @return The delta cache
+	 */
+	public DeltaCache<T> getDeltaCache() {
+		return deltaCache;
+	}
+
+	/**
+	 * Gets the metrics of this channel, which can be exposed through JMX with
+	 * {@link ServerMetrics#register(String)}.
+	 * 
+	 * @return The channel metrics
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the lag in terms of how many messages of this channel sent to
+	 * the client haven't been acknowledged.
+	 * 
+	 * @param conn
+	 *            Connection to client
+	 * @return Connection lag or 0 if nothing has been sent to the connection
+	 *         yet
+	 */
+	public int getLag(HostedConnection conn) {
+		DiffConnection<T> diffConnection = connectionSnapshots.get(conn);
+		return diffConnection == null ? 0 : diffConnection.getLag();
+	}
+}
@@ -1,7 +1,15 @@
 package diff;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,11 +21,37 @@ import com.jme3.network.HostedConnection;
 import com.jme3.network.Message;
 import com.jme3.network.MessageListener;
 import com.jme3.network.Server;
+import com.jme3.network.base.MessageListenerRegistry;
 
 /**
  * Handles the dispatching of messages of type {@code T} to clients, using a
  * protocol of delta messages.
  * <p>
+ * The delta messages can optionally be generated in parallel, by setting an
+ * executor with {@link #setExecutor(ExecutorService)}. A
+ * {@link ViewProjection} can be set to send every client only the part of the
+ * state it can see. Messages that do not fit in one datagram are split into
+ * fragments, see {@link #setFragmentSize(int)}.
+ * <p>
+ * A handler can send several streams of messages of different types, each
+ * diffed on its own {@link ServerChannel}. Channel 0 has type {@code T}, more
+ * channels are added with {@link #addChannel}. All channels share one stream
+ * of acknowledgments, and small messages of different channels that are
+ * dispatched in the same tick with {@link #dispatchMessages} are bundled into
+ * one datagram.
+ * <p>
+ * A static baseline that is published with {@link #setBaseline} is cached by
+ * every client, so that new clients receive deltas instead of full messages.
+ * <p>
+ * Threading: {@link #dispatchMessage} should be called by one thread at a
+ * time, typically the game loop. With {@link #setPipelined(int)}, the
+ * messages are generated and sent on a background thread instead, which
+ * the caller stops with {@code setPipelined(0)} before closing the server.
+ * Acknowledgments and removed connections are processed on the network
+ * thread. The connections are kept in a concurrent map and acknowledgments
+ * are registered without locking, so the network thread never blocks the
+ * dispatching thread or vice versa.
+ * <p>
  * Important: make sure that you call
  * {@link DiffClassRegistration#registerClasses()} before starting the server.
  * 
@@ -31,23 +65,114 @@ public class ServerDiffHandler<T extends AbstractMessage> implements
 		MessageListener<HostedConnection>, ConnectionListener {
 	protected static final Logger log = Logger
 			.getLogger(ServerDiffHandler.class.getName());
-	private final short numHistory;
-	private final Map<HostedConnection, DiffConnection<T>> connectionSnapshots;
+	/** Maximum number of channels, because channel ids are bytes */
+	public static final int MAX_CHANNELS = 128;
+	private final Server server;
+	private final ServerChannel<T> defaultChannel;
+	private final List<ServerChannel<?>> channels;
+	private final MessageListenerRegistry<HostedConnection> listenerRegistry;
+	private volatile ExecutorService executor;
+	private volatile DispatchPipeline pipeline;
+	private volatile Fragmenter fragmenter;
+	private volatile int defaultSnapshotRate;
+	private volatile int defaultBytesPerSecond;
 
-	public ServerDiffHandler(Server server, short numHistory) {
-		this.numHistory = numHistory;
-		connectionSnapshots = new HashMap<>();
+	/**
+	 * Creates a handler that keeps the history of messages in the given
+	 * snapshot store. Use a {@link DirectSnapshotStore} to keep the history
+	 * off-heap, with a fixed memory usage.
+	 * 
+	 * @param server
+	 *            The server
+	 * @param snapshotStore
+	 *            Store for the history of messages
+	 */
+	public ServerDiffHandler(Server server, SnapshotStore snapshotStore) {
+		channels = new CopyOnWriteArrayList<>();
+		defaultChannel = new ServerChannel<>(this, (byte) 0, snapshotStore);
+		channels.add(defaultChannel);
+		listenerRegistry = new MessageListenerRegistry<>();
+		fragmenter = new Fragmenter();
+		this.server = server;
 
 		server.addMessageListener(this, AckMessage.class);
+		server.addConnectionListener(this);
+		addConnections(defaultChannel);
+	}
+
+	public ServerDiffHandler(Server server, short numHistory) {
+		this(server, new HeapSnapshotStore(numHistory));
 	}
 
 	public ServerDiffHandler(Server server) {
 		this(server, (short) 20);
 	}
 
+	/**
+	 * Adds a channel for messages of another type, with its own history. The
+	 * client should add its channels in the same order.
+	 * 
+	 * @param snapshotStore
+	 *            Store for the history of messages of the channel
+	 * @return The channel
+	 */
+	public synchronized <U extends AbstractMessage> ServerChannel<U> addChannel(
+			SnapshotStore snapshotStore) {
+		if (channels.size() >= MAX_CHANNELS) {
+			throw new IllegalStateException("A handler has at most "
+					+ MAX_CHANNELS + " channels");
+		}
+
+		ServerChannel<U> channel = new ServerChannel<>(this,
+				(byte) channels.size(), snapshotStore);
+		channels.add(channel);
+		addConnections(channel);
+		return channel;
+	}
+
+	/**
+	 * Adds the connections that the server already has to a new channel. A
+	 * connection that is removed in the meantime is removed again.
+	 */
+	private void addConnections(ServerChannel<?> channel) {
+		for (HostedConnection connection : server.getConnections()) {
+			channel.add(connection);
+			if (server.getConnection(connection.getId()) == null) {
+				channel.remove(connection);
+			}
+		}
+	}
+
+	public <U extends AbstractMessage> ServerChannel<U> addChannel(
+			short numHistory) {
+		return addChannel(new HeapSnapshotStore(numHistory));
+	}
+
+	public ServerChannel<T> getDefaultChannel() {
+		return defaultChannel;
+	}
+
+	/**
+	 * Gets a channel by its id.
+	 * 
+	 * @param id
+	 *            Channel id
+	 * @return The channel
+	 */
+	public ServerChannel<?> getChannel(int id) {
+		return channels.get(id);
+	}
+
+	public int getNumChannels() {
+		return channels.size();
+	}
+
 	/**
 	 * Dispatches a message to all clients in the filter. If it is more
-	 * efficient to send a delta message, this is sent instead.
+	 * efficient to send a delta message, this is sent instead. The message is
+	 * serialized only once per view, regardless of the number of clients, and
+	 * clients that receive the same view and acknowledged the same baseline
+	 * share the same delta message.
 	 * 
 	 * @param server
 	 *            The server that should send the message
@@ -56,18 +181,541 @@ public class ServerDiffHandler<T extends AbstractMessage> implements
 	 */
 	public void dispatchMessage(Server server,
 			Filter<? super HostedConnection> filter, T message) {
+		defaultChannel.dispatchMessage(server, filter, message);
+	}
+
+	/**
+	 * Dispatches the messages of several channels in one tick. The messages
+	 * that a client receives are bundled into as few datagrams as the
+	 * fragment size allows, and clients that receive the same messages share
+	 * the bundles.
+	 * 
+	 * @param server
+	 *            The server that should send the messages
+	 * @param filter
+	 *            Connections to send the messages to
+	 * @param messages
+	 *            The message of every channel, in the order of the channel
+	 *            ids, or {@code null} for a channel that has nothing to send
+	 *            this tick
+	 * @throws IllegalArgumentException
+	 *             If there are more messages than channels
+	 */
+	public void dispatchMessages(Server server,
+			Filter<? super HostedConnection> filter, Message... messages) {
+		if (messages.length > channels.size()) {
+			throw new IllegalArgumentException("Got " + messages.length
+					+ " messages, but the handler has only " + channels.size()
+					+ " channels");
+		}
+
+		List<ServerChannel<?>> dispatched = new ArrayList<>(messages.length);
+		List<Message> channelMessages = new ArrayList<>(messages.length);
+		for (int i = 0; i < messages.length; i++) {
+			if (messages[i] != null) {
+				dispatched.add(channels.get(i));
+				channelMessages.add(messages[i]);
+			}
+		}
+
+		dispatch(server, filter, dispatched, channelMessages);
+	}
+
+	/**
+	 * Dispatches one message per channel to the connections in the filter
+	 * that are not held back by their rate limits.
+	 */
+	void dispatch(Server server, Filter<? super HostedConnection> filter,
+			List<ServerChannel<?>> dispatched, List<Message> messages) {
+		long start = System.nanoTime();
+		DispatchPipeline currentPipeline = pipeline;
+		if (currentPipeline != null) {
+			currentPipeline.submit(server, filter, dispatched, messages, start);
+		} else {
+			send(server, filter, dispatched, messages, start);
+		}
+
+		long dispatchTime = System.nanoTime() - start;
+		for (ServerChannel<?> channel : dispatched) {
+			channel.getMetrics().registerDispatch(dispatchTime);
+		}
+	}
+
+	/**
+	 * Generates and sends the messages of a tick on the dispatching thread.
+	 * 
+	 * @param submitTime
+	 *            Time at which the tick was dispatched
+	 */
+	private void send(Server server, Filter<? super HostedConnection> filter,
+			List<ServerChannel<?>> dispatched, List<Message> messages,
+			long submitTime) {
+		List<HostedConnection> connections = new ArrayList<>();
 		for (HostedConnection connection : server.getConnections()) {
 			if (filter.apply(connection)) {
-				if (!connectionSnapshots.containsKey(connection)) {
-					connectionSnapshots.put(connection, new DiffConnection<T>(
-							numHistory));
+				connections.add(connection);
+			}
+		}
+
+		send(server, connections, dispatched, messages, submitTime);
+	}
+
+	/**
+	 * Generates and sends the messages of a tick to the connections that are
+	 * not held back by their rate limits, on the dispatching thread or on the
+	 * thread of the pipeline.
+	 * 
+	 * @param connections
+	 *            Connections that the tick is dispatched to
+	 * @param submitTime
+	 *            Time at which the tick was dispatched
+	 */
+	void send(Server server, List<HostedConnection> connections,
+			List<ServerChannel<?>> dispatched, List<Message> messages,
+			long submitTime) {
+		long now = System.nanoTime();
+		List<HostedConnection> receivers = new ArrayList<>(connections.size());
+		for (HostedConnection connection : connections) {
+			DiffConnection<T> diffConnection = findDiffConnection(connection);
+			if (diffConnection == null) {
+				continue; // not added yet or removed
+			}
+
+			RateController rateController = diffConnection.getRateController();
+			if (rateController != null
+					&& !rateController.shouldSend(now, diffConnection.getLag(),
+							diffConnection.getRtt())) {
+				continue; // skip this tick
+			}
+
+			receivers.add(connection);
+		}
+
+		List<ServerChannel<?>.Group> groups = new ArrayList<>();
+		for (int i = 0; i < dispatched.size(); i++) {
+			groups.addAll(dispatched.get(i).group(receivers, messages.get(i),
+					submitTime));
+		}
+
+		Fragmenter currentFragmenter = fragmenter;
+		List<List<Message>> newMessages = generateMessages(groups,
+				currentFragmenter);
+		long generated = System.nanoTime();
+
+		if (dispatched.size() == 1) {
+			/* Every group receives the same messages, which are serialized once */
+			for (int i = 0; i < groups.size(); i++) {
+				ServerChannel<?>.Group group = groups.get(i);
+				Filter<HostedConnection> groupFilter = Filters
+						.in(group.connections);
+				for (Message newMessage : newMessages.get(i)) {
+					server.broadcast(groupFilter, newMessage);
+				}
+
+				registerSent(group.connections, now, group.bytes);
+			}
+		} else {
+			sendBundled(server, groups, newMessages, now,
+					currentFragmenter.getFragmentSize());
+		}
+
+		long sent = System.nanoTime();
+		for (ServerChannel<?> channel : dispatched) {
+			channel.getMetrics().registerStages(now - submitTime,
+					generated - now, sent - generated);
+		}
+	}
+
+	/**
+	 * Sends the messages of several channels, bundling the messages of every
+	 * connection into datagrams of at most the fragment size. Connections
+	 * that receive the same bundle or message share it.
+	 */
+	private void sendBundled(Server server,
+			List<ServerChannel<?>.Group> groups,
+			List<List<Message>> newMessages, long now, int fragmentSize) {
+		Map<HostedConnection, Bundler> bundlers = new LinkedHashMap<>();
+		for (int i = 0; i < groups.size(); i++) {
+			ServerChannel<?>.Group group = groups.get(i);
+			List<Message> groupMessages = newMessages.get(i);
+
+			for (HostedConnection connection : group.connections) {
+				Bundler bundler = bundlers.get(connection);
+				if (bundler == null) {
+					bundler = new Bundler(fragmentSize);
+					bundlers.put(connection, bundler);
+				}
+
+				if (groupMessages.size() > 1) {
+					bundler.addUnbundled(groupMessages, group.bytes);
+				} else {
+					bundler.add(groupMessages.get(0), group.bytes);
+				}
+			}
+		}
+
+		/* Connections that receive the same datagram share it */
+		Map<List<Message>, List<HostedConnection>> receivers = new LinkedHashMap<>();
+		for (Map.Entry<HostedConnection, Bundler> entry : bundlers.entrySet()) {
+			Bundler bundler = entry.getValue();
+			for (List<Message> datagram : bundler.datagrams) {
+				List<HostedConnection> connections = receivers.get(datagram);
+				if (connections == null) {
+					connections = new ArrayList<>();
+					receivers.put(datagram, connections);
+				}
+
+				connections.add(entry.getKey());
+			}
+
+			registerSent(entry.getKey(), now, bundler.bytes);
+		}
+
+		for (Map.Entry<List<Message>, List<HostedConnection>> entry : receivers
+				.entrySet()) {
+			List<Message> datagram = entry.getKey();
+			Message message = datagram.size() == 1 ? datagram.get(0)
+					: new BundleMessage(datagram);
+			server.broadcast(Filters.in(entry.getValue()), message);
+		}
+	}
+
+	/**
+	 * Packs the messages of one connection into datagrams, in the order of
+	 * the channels. A datagram of more than one message is sent as a bundle.
+	 * Fragments are never bundled.
+	 */
+	private static class Bundler {
+		private final int fragmentSize;
+		private final List<List<Message>> datagrams;
+		private List<Message> current;
+		private int currentBytes;
+		private int bytes;
+
+		public Bundler(int fragmentSize) {
+			this.fragmentSize = fragmentSize;
+			datagrams = new ArrayList<>(4);
+		}
+
+		public void add(Message message, int size) {
+			bytes += size;
+			if (current == null || currentBytes + size > fragmentSize) {
+				current = new ArrayList<>(4);
+				currentBytes = 0;
+				datagrams.add(current);
+			}
+
+			current.add(message);
+			currentBytes += size;
+		}
+
+		public void addUnbundled(List<Message> messages, int size) {
+			bytes += size;
+			for (Message message : messages) {
+				datagrams.add(Collections.singletonList(message));
+			}
+		}
+	}
+
+	private void registerSent(List<HostedConnection> connections, long now,
+			int bytes) {
+		for (HostedConnection connection : connections) {
+			registerSent(connection, now, bytes);
+		}
+	}
+
+	private void registerSent(HostedConnection connection, long now, int bytes) {
+		DiffConnection<T> diffConnection = findDiffConnection(connection);
+		RateController rateController = diffConnection == null ? null
+				: diffConnection.getRateController();
+		if (rateController != null) {
+			rateController.registerSent(now, bytes);
+		}
+	}
+
+	/**
+	 * Gets the state of a connection on channel 0, which also holds its rate
+	 * limits and round-trip time.
+	 * 
+	 * @return The state or {@code null} if the connection has not been added
+	 *         or is removed
+	 */
+	private DiffConnection<T> findDiffConnection(HostedConnection connection) {
+		return defaultChannel.findDiffConnection(connection);
+	}
+
+	/**
+	 * Creates the rate controller of a new connection.
+	 */
+	RateController createDefaultRateController() {
+		return createRateController(defaultSnapshotRate, defaultBytesPerSecond);
+	}
+
+	private static RateController createRateController(int snapshotRate,
+			int bytesPerSecond) {
+		if (snapshotRate <= 0 && bytesPerSecond <= 0) {
+			return null;
+		}
+
+		return new RateController(snapshotRate, bytesPerSecond);
+	}
+
+	/**
+	 * Generates the message for every group of connections, either on the
+	 * calling thread or in parallel on the executor. The messages are returned
+	 * in the order of the groups, so the result is the same in both cases.
+	 */
+	private List<List<Message>> generateMessages(
+			List<ServerChannel<?>.Group> groups, final Fragmenter fragmenter) {
+		List<List<Message>> newMessages = new ArrayList<>(groups.size());
+		ExecutorService currentExecutor = executor;
+
+		if (currentExecutor == null || groups.size() < 2) {
+			for (ServerChannel<?>.Group group : groups) {
+				newMessages.add(group.getMessages(fragmenter));
+			}
+
+			return newMessages;
+		}
+
+		List<Callable<List<Message>>> tasks = new ArrayList<>(groups.size());
+		for (final ServerChannel<?>.Group group : groups) {
+			tasks.add(new Callable<List<Message>>() {
+				@Override
+				public List<Message> call() {
+					return group.getMessages(fragmenter);
 				}
+			});
+		}
 
-				Message newMessage = connectionSnapshots.get(connection)
-						.generateSnapshot(message);
-				server.broadcast(Filters.in(connection), newMessage);
+		try {
+			for (Future<List<Message>> future : currentExecutor
+					.invokeAll(tasks)) {
+				newMessages.add(future.get());
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"Interrupted while generating delta messages", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Could not generate delta message",
+					e.getCause());
+		}
+
+		return newMessages;
+	}
+
+	/**
+	 * Publishes a static baseline of channel 0. See
+	 * {@link ServerChannel#setBaseline}.
+	 * 
+	 * @param server
+	 *            The server that should send the baseline
+	 * @param baseline
+	 *            The baseline, typically the first message of a map
+	 */
+	public void setBaseline(Server server, T baseline) {
+		defaultChannel.setBaseline(server, baseline);
+	}
+
+	/**
+	 * Sets a recorder for the messages of channel 0. See
+	 * {@link ServerChannel#setRecorder}.
+	 * 
+	 * @param recorder
+	 *            The recorder or {@code null} to stop recording
+	 */
+	public void setRecorder(DemoRecorder recorder) {
+		defaultChannel.setRecorder(recorder);
+	}
+
+	public DemoRecorder getRecorder() {
+		return defaultChannel.getRecorder();
+	}
+
+	/**
+	 * Sets the projection of channel 0. See
+	 * {@link ServerChannel#setProjection(ViewProjection)}.
+	 * 
+	 * @param projection
+	 *            The projection or {@code null} to send the same message to
+	 *            every connection (default)
+	 */
+	public void setProjection(ViewProjection<T, ?> projection) {
+		defaultChannel.setProjection(projection);
+	}
+
+	public ViewProjection<T, ?> getProjection() {
+		return defaultChannel.getProjection();
+	}
+
+	/**
+	 * Sets the maximum size of a message that is sent in one datagram. Larger
+	 * messages are split into fragments of at most this size, which are
+	 * reassembled by the client. The default of
+	 * {@link Fragmenter#DEFAULT_FRAGMENT_SIZE} fits in the common MTU of 1500
+	 * bytes.
+	 * 
+	 * @param fragmentSize
+	 *            Maximum message size in bytes
+	 */
+	public void setFragmentSize(int fragmentSize) {
+		fragmenter = new Fragmenter(fragmentSize);
+	}
+
+	public int getFragmentSize() {
+		return fragmenter.getFragmentSize();
+	}
+
+	/**
+	 * Sets the rate limits of all connections, including the ones that
+	 * connect later. Ticks are skipped for a connection to stay within its
+	 * limits, and the rate is lowered further when the connection lags behind
+	 * more than its round-trip time explains. See {@link RateController}.
+	 * 
+	 * @param snapshotRate
+	 *            Maximum number of messages per second or 0 for no limit
+	 * @param bytesPerSecond
+	 *            Bandwidth budget in bytes per second or 0 for no limit
+	 */
+	public void setDefaultRate(int snapshotRate, int bytesPerSecond) {
+		defaultSnapshotRate = snapshotRate;
+		defaultBytesPerSecond = bytesPerSecond;
+
+		for (DiffConnection<T> diffConnection : defaultChannel
+				.getDiffConnections()) {
+			diffConnection.setRateController(createRateController(
+					snapshotRate, bytesPerSecond));
+		}
+	}
+
+	/**
+	 * Sets the rate limits of one connection, for example the rate the client
+	 * asked for. If both limits are 0, a message is sent to the connection
+	 * every tick.
+	 * 
+	 * @param conn
+	 *            Connection to client
+	 * @param snapshotRate
+	 *            Maximum number of messages per second or 0 for no limit
+	 * @param bytesPerSecond
+	 *            Bandwidth budget in bytes per second or 0 for no limit
+	 */
+	public void setRate(HostedConnection conn, int snapshotRate,
+			int bytesPerSecond) {
+		DiffConnection<T> diffConnection = findDiffConnection(conn);
+		if (diffConnection == null) {
+			log.log(Level.WARNING,
+					"Trying to set rate of connection that does not exist.");
+			return;
 		}
+
+		diffConnection.setRateController(createRateController(snapshotRate,
+				bytesPerSecond));
+	}
+
+	/**
+	 * Sets the executor on which the delta messages of a tick are generated in
+	 * parallel. Every group of connections that acknowledged the same baseline
+	 * is a separate task. {@link #dispatchMessage} waits for all tasks to
+	 * finish before the messages are sent, in the same order as in serial
+	 * mode. A {@link java.util.concurrent.ForkJoinPool} or an executor that
+	 * starts virtual threads are good choices.
+	 * 
+	 * @param executor
+	 *            The executor to use or {@code null} to generate the messages
+	 *            on the calling thread (default)
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Moves the generating and sending of messages to a background thread.
+	 * {@link #dispatchMessage} and {@link #dispatchMessages} then only queue
+	 * the messages and return immediately, so a spike in the number of
+	 * connections or the size of the state does not delay the game loop. The
+	 * dispatched messages should not be modified afterwards.
+	 * <p>
+	 * Every connection has its own queue, which never blocks the dispatching
+	 * thread. When the queue of a connection is full, its oldest unsent tick
+	 * is dropped for that connection only, and the channels of that tick that
+	 * the next tick does not have are carried over to it. Dropped ticks and
+	 * the time spent in every stage are in the {@link ServerMetrics} of the
+	 * channels. Settings such as the projection or rate limits apply from
+	 * the next tick that is generated.
+	 * <p>
+	 * The pipeline is not stopped when the server is closed, because jME does
+	 * not notify the handler of that. Call {@code setPipelined(0)} before
+	 * closing the server, so that the queued ticks are sent and the thread
+	 * ends. It waits at most 5 seconds for the queued ticks and then drops
+	 * them. Should be called from the dispatching thread.
+	 * 
+	 * @param queueCapacity
+	 *            Number of ticks that can wait to be generated for every
+	 *            connection, or 0 to stop
+	 *            the pipeline after the queued ticks are sent and dispatch on
+	 *            the calling thread again (default)
+	 */
+	public synchronized void setPipelined(int queueCapacity) {
+		if (pipeline != null) {
+			pipeline.stop();
+			pipeline = null;
+		}
+
+		if (queueCapacity > 0) {
+			pipeline = new DispatchPipeline(this, queueCapacity);
+		}
+	}
+
+	public boolean isPipelined() {
+		return pipeline != null;
+	}
+
+	/**
+	 * Gets the store that keeps the history of serialized messages, for
+	 * example to inspect its memory usage.
+	 * 
+	 * @return The snapshot store
+	 */
+	public SnapshotStore getSnapshotStore() {
+		return defaultChannel.getSnapshotStore();
+	}
+
+	/**
+	 * Gets the cache of messages that are shared by connections with the same
+	 * baseline. Its hit ratio shows how much delta generation is saved.
+	 * 
+	 * @return The delta cache
+	 */
+	public DeltaCache<T> getDeltaCache() {
+		return defaultChannel.getDeltaCache();
+	}
+
+	/**
+	 * Gets the metrics of channel 0, which can be exposed through JMX with
+	 * {@link ServerMetrics#register(String)}.
+	 * 
+	 * @return The server metrics
+	 */
+	public ServerMetrics getMetrics() {
+		return defaultChannel.getMetrics();
+	}
+
+	/**
+	 * Gets the smoothed round-trip time of a connection.
+	 * 
+	 * @param conn
+	 *            Connection to client
+	 * @return Round-trip time in nanoseconds or -1 if it is unknown
+	 */
+	public long getRtt(HostedConnection conn) {
+		DiffConnection<T> diffConnection = findDiffConnection(conn);
+		return diffConnection == null ? -1 : diffConnection.getRtt();
 	}
 
 	/**
@@ -80,32 +728,82 @@ public class ServerDiffHandler<T extends AbstractMessage> implements
 	 * @return Connection lag
 	 */
 	public int getLag(HostedConnection conn) {
-		if (!connectionSnapshots.containsKey(conn)) {
+		DiffConnection<T> diffConnection = findDiffConnection(conn);
+		if (diffConnection == null) {
 			log.log(Level.WARNING,
 					"Trying to get lag of connection that does not exist (yet).");
 			return 0;
 		}
 
-		return connectionSnapshots.get(conn).getLag();
+		return diffConnection.getLag();
+	}
+
+	/**
+	 * Adds a listener for the messages that clients piggyback on their
+	 * acknowledgments with {@link ClientDiffHandler#send(Message)}. These
+	 * messages are not delivered to the listeners of the server.
+	 * 
+	 * @param listener
+	 *            The listener
+	 * @param classes
+	 *            Message types to listen to, or none for all types
+	 */
+	public void addMessageListener(
+			MessageListener<? super HostedConnection> listener,
+			Class<?>... classes) {
+		if (classes.length == 0) {
+			listenerRegistry.addMessageListener(listener);
+		} else {
+			listenerRegistry.addMessageListener(listener, classes);
+		}
+	}
+
+	public void removeMessageListener(
+			MessageListener<? super HostedConnection> listener,
+			Class<?>... classes) {
+		if (classes.length == 0) {
+			listenerRegistry.removeMessageListener(listener);
+		} else {
+			listenerRegistry.removeMessageListener(listener, classes);
+		}
 	}
 
 	@Override
 	public void messageReceived(HostedConnection source, Message m) {
-		if (m instanceof AckMessage && connectionSnapshots.containsKey(source)) {
-			connectionSnapshots.get(source).registerAck(
-					((AckMessage) m).getId());
-		}
+		if (m instanceof AckMessage) {
+			AckMessage ack = (AckMessage) m;
+			int numChannels = Math.min(ack.getNumChannels(), channels.size());
+			for (int i = 0; i < numChannels; i++) {
+				DiffConnection<?> diffConnection = channels.get(i)
+						.findDiffConnection(source);
+				if (diffConnection != null && ack.getId(i) >= 0) {
+					diffConnection.registerAck(ack.getId(i),
+							ack.getReceived(i));
+				}
+			}
 
+			if (ack.getMessage() != null) {
+				listenerRegistry.messageReceived(source, ack.getMessage());
+			}
+		}
 	}
 
 	@Override
 	public void connectionAdded(Server server, HostedConnection conn) {
+		for (ServerChannel<?> channel : channels) {
+			channel.add(conn);
+		}
 
+		for (ServerChannel<?> channel : channels) {
+			channel.sendBaseline(conn);
+		}
 	}
 
 	@Override
 	public void connectionRemoved(Server server, HostedConnection conn) {
-		connectionSnapshots.remove(conn);
+		for (ServerChannel<?> channel : channels) {
+			channel.remove(conn);
+		}
 	}
 
 }
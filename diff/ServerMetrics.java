@@ -0,0 +1,240 @@
+package diff;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import com.jme3.network.HostedConnection;
+
+/**
+ * The metrics of a {@link ServerDiffHandler}: the round-trip time and loss
+ * rate per connection, the ratio of full and delta messages, the bytes
+ * before and after diffing, the time to encode deltas, the time spent in
+ * every stage of a tick, the hits and misses of the snapshot history and the
+ * use of the static baseline. All counters are updated without locking
+ * or allocating, so the metrics can stay on in production.
+ * <p>
+ * Call {@link #register(String)} to expose the metrics through JMX.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+	private final DeltaCache<?> deltaCache;
+	private final Map<HostedConnection, ? extends DiffConnection<?>> connections;
+	private final AtomicLong historyHits;
+	private final AtomicLong historyMisses;
+	private final AtomicLong baselineLookups;
+	private final AtomicLong droppedTicks;
+	private final LatencyHistogram dispatchLatency;
+	private final LatencyHistogram queueLatency;
+	private final LatencyHistogram generateLatency;
+	private final LatencyHistogram sendLatency;
+	private ObjectName objectName;
+
+	ServerMetrics(DeltaCache<?> deltaCache,
+			Map<HostedConnection, ? extends DiffConnection<?>> connections) {
+		this.deltaCache = deltaCache;
+		this.connections = connections;
+		historyHits = new AtomicLong();
+		historyMisses = new AtomicLong();
+		baselineLookups = new AtomicLong();
+		droppedTicks = new AtomicLong();
+		dispatchLatency = new LatencyHistogram();
+		queueLatency = new LatencyHistogram();
+		generateLatency = new LatencyHistogram();
+		sendLatency = new LatencyHistogram();
+	}
+
+	/**
+	 * Registers the lookup of the baseline of a connection that acknowledged
+	 * a message.
+	 * 
+	 * @param hit
+	 *            True if the baseline was in the history
+	 */
+	public void registerHistoryLookup(boolean hit) {
+		if (hit) {
+			historyHits.incrementAndGet();
+		} else {
+			historyMisses.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Registers that a connection without a baseline in the history receives
+	 * a delta of the static baseline.
+	 */
+	public void registerBaselineLookup() {
+		baselineLookups.incrementAndGet();
+	}
+
+	/**
+	 * Registers the time the dispatching thread spent on a tick.
+	 */
+	void registerDispatch(long nanos) {
+		dispatchLatency.record(nanos);
+	}
+
+	/**
+	 * Registers the time a tick spent in every stage of the pipeline.
+	 * 
+	 * @param queued
+	 *            Time between dispatching and generating
+	 * @param generate
+	 *            Time to group the receivers and generate the messages
+	 * @param send
+	 *            Time to pass the messages to the server
+	 */
+	void registerStages(long queued, long generate, long send) {
+		queueLatency.record(queued);
+		generateLatency.record(generate);
+		sendLatency.record(send);
+	}
+
+	/**
+	 * Registers a tick that was dropped for a connection because its queue in
+	 * the pipeline was full.
+	 */
+	void registerDroppedTick() {
+		droppedTicks.incrementAndGet();
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server, under
+	 * {@code quakemonkey:type=ServerDiffHandler,name=<name>}.
+	 * 
+	 * @param name
+	 *            Name of the handler
+	 */
+	public synchronized void register(String name) {
+		objectName = MetricsRegistration.register(this, "ServerDiffHandler",
+				name);
+	}
+
+	public synchronized void unregister() {
+		if (objectName != null) {
+			MetricsRegistration.unregister(objectName);
+			objectName = null;
+		}
+	}
+
+	@Override
+	public List<ConnectionStats> getConnections() {
+		List<ConnectionStats> stats = new ArrayList<>();
+		for (Map.Entry<HostedConnection, ? extends DiffConnection<?>> entry : connections
+				.entrySet()) {
+			HostedConnection connection = entry.getKey();
+			DiffConnection<?> diffConnection = entry.getValue();
+			long rtt = diffConnection.getRtt();
+
+			stats.add(new ConnectionStats(connection.getId(), connection
+					.getAddress(), rtt < 0 ? -1 : rtt / 1e6, diffConnection
+					.getLossRate(), diffConnection.getLag(), diffConnection
+					.getSent(), diffConnection.getAcknowledged()));
+		}
+
+		return stats;
+	}
+
+	@Override
+	public long getFullMessages() {
+		return deltaCache.getStatistics().getFullMessages();
+	}
+
+	@Override
+	public long getDeltaMessages() {
+		return deltaCache.getStatistics().getDeltaMessages();
+	}
+
+	@Override
+	public double getFullRatio() {
+		long full = getFullMessages();
+		long total = full + getDeltaMessages();
+		return total == 0 ? 0 : (double) full / total;
+	}
+
+	@Override
+	public double getDeltaRatio() {
+		return deltaCache.getStatistics().getDeltaRatio();
+	}
+
+	@Override
+	public long getBytesBeforeDiff() {
+		DeltaStatistics statistics = deltaCache.getStatistics();
+		return statistics.getFullBytes() + statistics.getReplacedBytes();
+	}
+
+	@Override
+	public long getBytesAfterDiff() {
+		DeltaStatistics statistics = deltaCache.getStatistics();
+		return statistics.getFullBytes() + statistics.getDeltaBytes();
+	}
+
+	@Override
+	public LatencyStats getEncodeLatency() {
+		return deltaCache.getEncodeLatency().getStats();
+	}
+
+	@Override
+	public LatencyStats getDispatchLatency() {
+		return dispatchLatency.getStats();
+	}
+
+	@Override
+	public LatencyStats getQueueLatency() {
+		return queueLatency.getStats();
+	}
+
+	@Override
+	public LatencyStats getGenerateLatency() {
+		return generateLatency.getStats();
+	}
+
+	@Override
+	public LatencyStats getSendLatency() {
+		return sendLatency.getStats();
+	}
+
+	@Override
+	public long getDroppedTicks() {
+		return droppedTicks.get();
+	}
+
+	@Override
+	public long getHistoryHits() {
+		return historyHits.get();
+	}
+
+	@Override
+	public long getHistoryMisses() {
+		return historyMisses.get();
+	}
+
+	@Override
+	public long getBaselineLookups() {
+		return baselineLookups.get();
+	}
+
+	@Override
+	public double getCacheHitRatio() {
+		return deltaCache.getHitRatio();
+	}
+
+	@Override
+	public void reset() {
+		deltaCache.getStatistics().reset();
+		deltaCache.resetStatistics();
+		historyHits.set(0);
+		historyMisses.set(0);
+		baselineLookups.set(0);
+		droppedTicks.set(0);
+		dispatchLatency.reset();
+		queueLatency.reset();
+		generateLatency.reset();
+		sendLatency.reset();
+	}
+}
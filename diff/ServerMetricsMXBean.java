@@ -0,0 +1,140 @@
+package diff;
+
+import java.util.List;
+
+/**
+ * The metrics of a {@link ServerDiffHandler}, as they are exposed through
+ * JMX.
+ * 
+ * @author Ben Ruijl
+ * @see ServerMetrics
+ */
+public interface ServerMetricsMXBean {
+
+	List<ConnectionStats> getConnections();
+
+	/**
+	 * Gets the number of full messages that were sent, counted once per
+	 * receiving connection.
+	 * 
+	 * @return Full messages
+	 */
+	long getFullMessages();
+
+	/**
+	 * Gets the number of deltas that were sent, counted once per receiving
+	 * connection.
+	 * 
+	 * @return Delta messages
+	 */
+	long getDeltaMessages();
+
+	/**
+	 * Gets the fraction of the sent messages that are full messages.
+	 * 
+	 * @return Full ratio between 0 and 1
+	 */
+	double getFullRatio();
+
+	/**
+	 * Gets the size of the deltas that were sent divided by the size of the
+	 * messages they replaced.
+	 * 
+	 * @return Delta ratio
+	 */
+	double getDeltaRatio();
+
+	/**
+	 * Gets the size of the sent messages if they were all sent in full,
+	 * summed over the receiving connections.
+	 * 
+	 * @return Size in bytes
+	 */
+	long getBytesBeforeDiff();
+
+	/**
+	 * Gets the size of the sent full and delta messages, summed over the
+	 * receiving connections.
+	 * 
+	 * @return Size in bytes
+	 */
+	long getBytesAfterDiff();
+
+	LatencyStats getEncodeLatency();
+
+	/**
+	 * Gets the time the dispatching thread spends on a tick. With a pipeline,
+	 * this is only the time to queue the tick.
+	 * 
+	 * @return Latency statistics
+	 */
+	LatencyStats getDispatchLatency();
+
+	/**
+	 * Gets the time a tick waits in the pipeline before its messages are
+	 * generated, which is close to 0 without a pipeline.
+	 * 
+	 * @return Latency statistics
+	 */
+	LatencyStats getQueueLatency();
+
+	/**
+	 * Gets the time to group the receivers of a tick and generate their full
+	 * and delta messages.
+	 * 
+	 * @return Latency statistics
+	 */
+	LatencyStats getGenerateLatency();
+
+	/**
+	 * Gets the time to pass the messages of a tick to the server.
+	 * 
+	 * @return Latency statistics
+	 */
+	LatencyStats getSendLatency();
+
+	/**
+	 * Gets the number of ticks that were dropped for a connection because its
+	 * queue in the pipeline was full. A tick that is dropped for several
+	 * connections is counted once for each.
+	 * 
+	 * @return Dropped ticks
+	 */
+	long getDroppedTicks();
+
+	/**
+	 * Gets the number of times the baseline a connection acknowledged was
+	 * still in the history.
+	 * 
+	 * @return History hits
+	 */
+	long getHistoryHits();
+
+	/**
+	 * Gets the number of times the baseline a connection acknowledged was no
+	 * longer in the history, so that a full message or a delta of the static
+	 * baseline had to be sent.
+	 * 
+	 * @return History misses
+	 */
+	long getHistoryMisses();
+
+	/**
+	 * Gets the number of times a connection without a baseline in the
+	 * history, such as a new connection, received a delta of the static
+	 * baseline instead of a full message.
+	 * 
+	 * @return Static baseline lookups
+	 */
+	long getBaselineLookups();
+
+	/**
+	 * Gets the fraction of the receivers that shared a delta message with
+	 * another receiver.
+	 * 
+	 * @return Cache hit ratio between 0 and 1
+	 */
+	double getCacheHitRatio();
+
+	void reset();
+}
@@ -0,0 +1,97 @@
+package diff;
+
+import java.nio.ByteBuffer;
+
+import com.jme3.network.Message;
+
+/**
+ * A cyclic store of serialized snapshots, indexed by label. Every message that
+ * is stored is serialized exactly once, so that all connections of a
+ * {@link ServerDiffHandler} can generate their deltas from the same bytes and
+ * a {@link ClientDiffHandler} can merge delta messages without serializing
+ * the old message again.
+ * <p>
+ * Messages are serialized with {@link MessageSerialization}, so they consist
+ * of their class id and fields. Each slot remembers the label it was written
+ * with, so a lookup of a label that has been overwritten by a newer snapshot
+ * returns {@code null} instead of the wrong data. Snapshots are padded with
+ * zeros to a multiple of four bytes, so that they can be compared int by int.
+ * 
+ * @author Ben Ruijl
+ * @see HeapSnapshotStore
+ * @see DirectSnapshotStore
+ */
+public interface SnapshotStore {
+
+	/**
+	 * Serializes the message and stores it under the given label, overwriting
+	 * the snapshot that was previously in its slot.
+	 * 
+	 * @param label
+	 *            Label of the message
+	 * @param message
+	 *            Message to store
+	 * @return True if the message is stored, false if it is too large for
+	 *         this store
+	 */
+	boolean store(short label, Message message);
+
+	/**
+	 * Stores the remaining bytes of an already serialized message under the
+	 * given label, overwriting the snapshot that was previously in its slot.
+	 * 
+	 * @param label
+	 *            Label of the message
+	 * @param serialized
+	 *            Serialized message
+	 * @return True if the message is stored, false if it is too large for
+	 *         this store
+	 */
+	boolean store(short label, ByteBuffer serialized);
+
+	/**
+	 * Gets the serialized message with the given label.
+	 * 
+	 * @param label
+	 *            Label of the message
+	 * @return A read-only view of the serialized message or {@code null} if
+	 *         the message is not in the store (anymore)
+	 */
+	ByteBuffer get(short label);
+
+	/**
+	 * Copies the serialized message with the given label, including the zero
+	 * padding to a multiple of four bytes, into the target buffer, starting at
+	 * its current position. Does not allocate.
+	 * 
+	 * @param label
+	 *            Label of the message
+	 * @param target
+	 *            Buffer to copy the message into
+	 * @return The length of the message or -1 if the message is not in the
+	 *         store (anymore)
+	 */
+	int read(short label, ByteBuffer target);
+
+	/**
+	 * Gets the length of the serialized message with the given label, without
+	 * the padding.
+	 * 
+	 * @param label
+	 *            Label of the message
+	 * @return The length of the message or -1 if the message is not in the
+	 *         store (anymore)
+	 */
+	int length(short label);
+
+	boolean contains(short label);
+
+	short getNumSnapshots();
+
+	/**
+	 * Gets the number of bytes that are currently reserved for the snapshots.
+	 * 
+	 * @return Reserved memory in bytes
+	 */
+	long getMemoryUsage();
+}
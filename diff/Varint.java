@@ -0,0 +1,84 @@
+package diff;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes variable-length integers, using seven bits per byte. Small
+ * values take fewer bytes, which makes them suitable for lengths and offsets
+ * in delta messages.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class Varint {
+
+	private Varint() {
+	}
+
+	/**
+	 * Writes a non-negative value.
+	 * 
+	 * @param buffer
+	 *            Buffer to write to
+	 * @param value
+	 *            Value to write
+	 */
+	public static void put(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Reads a non-negative value.
+	 * 
+	 * @param buffer
+	 *            Buffer to read from
+	 * @return The value
+	 */
+	public static int get(ByteBuffer buffer) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+
+		do {
+			b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		return value;
+	}
+
+	/**
+	 * Gets the number of bytes that are required to write a value.
+	 * 
+	 * @param value
+	 *            Value to write
+	 * @return Size in bytes
+	 */
+	public static int size(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+
+		return size;
+	}
+
+	/**
+	 * Maps signed values to non-negative values, so that values close to zero
+	 * are small.
+	 */
+	public static int zigZag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	public static int unZigZag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
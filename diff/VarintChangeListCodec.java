@@ -0,0 +1,68 @@
+package diff;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A delta format that lists the changed blocks of four bytes. Every change
+ * consists of the number of unchanged blocks before it and the difference
+ * between the new and the old value, both written as a {@link Varint}. Works
+ * well for few changes with small differences, such as counters and ids.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class VarintChangeListCodec extends AbstractDeltaCodec implements
+		InPlaceDeltaCodec {
+	public static final byte ID = 3;
+
+	public VarintChangeListCodec() {
+		super(ID);
+	}
+
+	@Override
+	public void encode(ByteBuffer baseline, ByteBuffer message,
+			ByteBuffer target) {
+		int length = message.remaining();
+		int numInts = (length + 3) / 4;
+		int last = -1;
+
+		/* Skip to every region of changes and only compare that region */
+		int i = nextChangedInt(baseline, message, 0);
+		while (i < numInts) {
+			int end = (endOfChanges(baseline, message, i * 4) + 3) / 4;
+			for (; i < end; i++) {
+				/* The client only has the baseline up to the message length */
+				int val = getInt(message, i * 4);
+				int old = getMessageInt(baseline, i, length);
+
+				if (val != old) {
+					// a gap is stored plus one, so that 0 can end the list
+					Varint.put(target, i - last);
+					Varint.put(target, Varint.zigZag(val - old));
+					last = i;
+				}
+			}
+
+			i = nextChangedInt(baseline, message, end);
+		}
+
+		Varint.put(target, 0);
+	}
+
+	@Override
+	public void decode(ByteBuffer baseline, ByteBuffer delta, ByteBuffer target) {
+		copyBaseline(baseline, target);
+		apply(delta, target);
+	}
+
+	@Override
+	public void apply(ByteBuffer delta, ByteBuffer target) {
+		int i = -1;
+		int gap;
+		while ((gap = Varint.get(delta)) != 0) {
+			i += gap;
+			putInt(target, i * 4,
+					getInt(target, i * 4) + Varint.unZigZag(Varint.get(delta)));
+		}
+	}
+}
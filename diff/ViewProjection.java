@@ -0,0 +1,45 @@
+package diff;
+
+import com.jme3.network.HostedConnection;
+
+/**
+ * Narrows the master state down to what a client can see, for example the
+ * entities in its potentially visible set or area of interest. Connections
+ * with an equal view receive the same projection, which is serialized once
+ * and shares its delta messages.
+ * <p>
+ * Both methods are called by the thread that dispatches the messages.
+ * 
+ * @author Ben Ruijl
+ * 
+ * @param <T>
+ *            Message type
+ * @param <V>
+ *            View type, which should implement {@code equals} and
+ *            {@code hashCode}
+ * @see ServerDiffHandler#setProjection(ViewProjection)
+ */
+public interface ViewProjection<T, V> {
+
+	/**
+	 * Gets the view of a connection, such as the area or the visible set it is
+	 * in. Connections with equal views receive the same message.
+	 * 
+	 * @param connection
+	 *            Connection to client
+	 * @return The view of the connection
+	 */
+	V getView(HostedConnection connection);
+
+	/**
+	 * Creates the message that the connections with the given view receive.
+	 * The master message should not be modified.
+	 * 
+	 * @param message
+	 *            The master message
+	 * @param view
+	 *            The view
+	 * @return The projected message
+	 */
+	T project(T message, V view);
+}
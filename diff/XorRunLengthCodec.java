@@ -0,0 +1,85 @@
+package diff;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A delta format that XORs the message with the baseline and run-length
+ * encodes the result. The delta is a sequence of pairs of a run of unchanged
+ * bytes and a run of changed bytes, both preceded by their length as a
+ * {@link Varint}. Works well if there are long runs of unchanged bytes.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class XorRunLengthCodec extends AbstractDeltaCodec implements
+		InPlaceDeltaCodec {
+	public static final byte ID = 2;
+
+	public XorRunLengthCodec() {
+		super(ID);
+	}
+
+	@Override
+	public void encode(ByteBuffer baseline, ByteBuffer message,
+			ByteBuffer target) {
+		int length = message.remaining();
+		int start = message.position();
+		int i = 0;
+
+		while (i < length) {
+			int unchanged = nextChange(baseline, message, i);
+
+			int changed = unchanged;
+			while (changed < length) {
+				if (isChanged(baseline, message, changed)) {
+					changed++;
+				} else if (changed + 1 < length
+						&& isChanged(baseline, message, changed + 1)) {
+					// a single unchanged byte is cheaper as part of the run
+					changed += 2;
+				} else {
+					break;
+				}
+			}
+
+			Varint.put(target, unchanged - i);
+			Varint.put(target, changed - unchanged);
+
+			for (int j = unchanged; j < changed; j++) {
+				target.put((byte) (message.get(start + j) ^ getByte(baseline,
+						j)));
+			}
+
+			i = changed;
+		}
+	}
+
+	private static boolean isChanged(ByteBuffer baseline, ByteBuffer message,
+			int offset) {
+		return message.get(message.position() + offset) != getByte(baseline,
+				offset);
+	}
+
+	@Override
+	public void decode(ByteBuffer baseline, ByteBuffer delta, ByteBuffer target) {
+		copyBaseline(baseline, target);
+		apply(delta, target);
+	}
+
+	@Override
+	public void apply(ByteBuffer delta, ByteBuffer target) {
+		int start = target.position();
+		int length = target.remaining();
+		int i = 0;
+
+		while (i < length) {
+			i += Varint.get(delta);
+			int changed = Varint.get(delta);
+
+			for (int j = 0; j < changed; j++, i++) {
+				target.put(start + i,
+						(byte) (target.get(start + i) ^ delta.get()));
+			}
+		}
+	}
+}
@@ -12,7 +12,9 @@ import diff.ClientDiffHandler;
 import diff.DiffClassRegistration;
 
 /**
- * An example client that shows how the snapshot network code works.
+ * An example client that shows how the snapshot network code works. It
+ * connects to the {@link ServerTest} or to a {@link RelayTest} on the port
+ * that is given as argument.
  * 
  * @author Ben Ruijl
  * 
@@ -20,11 +22,11 @@ import diff.DiffClassRegistration;
 public class ClientTest implements MessageListener<Client> {
 	final ClientDiffHandler<GameStateMessage> diffHandler;
 
-	public ClientTest() throws IOException {
+	public ClientTest(int port) throws IOException {
 		DiffClassRegistration.registerClasses();
 		Serializer.registerClass(GameStateMessage.class);
 
-		Client myClient = Network.connectToServer("localhost", 6143);
+		Client myClient = Network.connectToServer("localhost", port);
 
 		diffHandler = new ClientDiffHandler<>(myClient, GameStateMessage.class, (short)30);
 		diffHandler.addListener(this); // register listener for GameStateMessage
@@ -41,7 +43,7 @@ public class ClientTest implements MessageListener<Client> {
 	}
 
 	public static void main(String[] args) throws IOException {
-		new ClientTest();
+		new ClientTest(args.length > 0 ? Integer.parseInt(args[0]) : 6143);
 	}
 
 	@Override
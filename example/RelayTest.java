@@ -0,0 +1,61 @@
+package example;
+
+import java.io.IOException;
+
+import com.jme3.network.Client;
+import com.jme3.network.Network;
+import com.jme3.network.Server;
+import com.jme3.network.serializing.Serializer;
+
+import diff.DiffClassRegistration;
+import diff.Relay;
+
+/**
+ * An example relay that serves the messages of the {@link ServerTest}, or of
+ * another relay, to its own clients. Relays can be chained on one machine by
+ * giving each the port of the previous one:
+ * <p>
+ * {@code RelayTest 6143 6144 2}, {@code RelayTest 6144 6145 2} and
+ * {@code ClientTest 6145}.
+ * <p>
+ * Usage: {@code RelayTest [upstreamPort] [port] [delaySeconds]}
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class RelayTest {
+	final Relay<GameStateMessage> relay;
+
+	public RelayTest(int upstreamPort, int port, int delaySeconds)
+			throws IOException {
+		DiffClassRegistration.registerClasses();
+		Serializer.registerClass(GameStateMessage.class);
+
+		Server myServer = Network.createServer(port);
+		Client myClient = Network.connectToServer("localhost", upstreamPort);
+
+		relay = new Relay<>(myClient, myServer, GameStateMessage.class,
+				(short) 30);
+		relay.setDelay(delaySeconds * 1000000000L);
+
+		myServer.start();
+		myClient.start();
+
+		while (true) {
+			relay.update();
+
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		new RelayTest(args.length > 0 ? Integer.parseInt(args[0]) : 6143,
+				args.length > 1 ? Integer.parseInt(args[1]) : 6144,
+				args.length > 2 ? Integer.parseInt(args[2]) : 0);
+	}
+
+}
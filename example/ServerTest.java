@@ -49,7 +49,8 @@ public class ServerTest {
 			}
 		});
 
-		List<Float> or = Arrays.asList(new Float[] { 0.5f, 0.6f, 0.7f });
+		List<Float> or = new ArrayList<Float>(Arrays.asList(new Float[] { 0.5f,
+				0.6f, 0.7f }));
 
 		while (true) {
 			if (myServer.hasConnections()) {
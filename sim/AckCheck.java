@@ -0,0 +1,124 @@
+package sim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jme3.network.Filters;
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+import com.jme3.network.MessageListener;
+
+import diff.ClientDiffHandler;
+import diff.ConnectionStats;
+import diff.ServerDiffHandler;
+import example.GameStateMessage;
+
+/**
+ * Checks the cumulative acknowledgments over a lossy {@link LoopbackNetwork},
+ * in which the acknowledgments are lost as often as the states. For every
+ * loss rate, the loss rate that the server measures from the
+ * acknowledgments is compared with the loss rate of the link, which it
+ * should match because a lost acknowledgment is repaired by the next one.
+ * Every client also piggybacks a message on its acknowledgment now and
+ * then, and the correctness of every received state is checked.
+ * <p>
+ * Usage: {@code AckCheck [clients] [stateSize]}
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class AckCheck {
+	private static final int TICKS = 400;
+	/** Number of ticks between two piggybacked messages of a client */
+	private static final int PIGGYBACK_PERIOD = 10;
+	private static final double[] LOSS_RATES = { 0, 0.05, 0.1, 0.2, 0.3 };
+	/** Largest difference between the measured and the actual loss rate */
+	private static final double TOLERANCE = 0.03;
+	private static final String ROW = "%8.2f %10.3f %12d %12d %10d %10d";
+
+	/**
+	 * Runs the ticks over a link with the given loss rate and prints the
+	 * results.
+	 * 
+	 * @return The number of failures: incorrect states, or 1 if the measured
+	 *         loss rate is off
+	 */
+	private static long run(int numClients, int floats, double loss) {
+		NetworkConditions conditions = CheckHarness.createConditions();
+		conditions.setLoss(loss);
+		LoopbackNetwork network = new LoopbackNetwork(conditions);
+		LoopbackServer server = network.createServer();
+		ServerDiffHandler<GameStateMessage> serverHandler = new ServerDiffHandler<>(
+				server);
+		server.start();
+
+		final long[] piggybacked = new long[1];
+		serverHandler.addMessageListener(
+				new MessageListener<HostedConnection>() {
+					@Override
+					public void messageReceived(HostedConnection source,
+							Message m) {
+						piggybacked[0]++;
+					}
+				}, GameStateMessage.class);
+
+		GameStateMessage[] sent = new GameStateMessage[TICKS];
+		CheckHarness.Verifier verifier = new CheckHarness.Verifier(sent);
+		List<ClientDiffHandler<GameStateMessage>> handlers = new ArrayList<>(
+				numClients);
+
+		for (int i = 0; i < numClients; i++) {
+			handlers.add(CheckHarness.connect(server, verifier));
+		}
+
+		long numPiggybacked = 0;
+		for (int tick = 0; tick < TICKS; tick++) {
+			sent[tick] = LoadGenerator.createState(floats, tick);
+			serverHandler.dispatchMessage(server,
+					Filters.in(server.getConnections()), sent[tick]);
+			network.advance(CheckHarness.TICK_INTERVAL);
+
+			if (tick % PIGGYBACK_PERIOD == 0) {
+				for (ClientDiffHandler<GameStateMessage> clientHandler : handlers) {
+					clientHandler.send(LoadGenerator.createState(1, tick));
+					numPiggybacked++;
+				}
+			}
+		}
+
+		network.advance(1000);
+
+		double measured = 0;
+		List<ConnectionStats> connections = serverHandler.getMetrics()
+				.getConnections();
+		for (ConnectionStats stats : connections) {
+			measured += stats.getLossRate();
+		}
+
+		measured /= Math.max(1, connections.size());
+		System.out.println(String.format(ROW, loss, measured, numPiggybacked,
+				piggybacked[0], verifier.getChecked(), verifier.getIncorrect()));
+
+		return verifier.getIncorrect() + (Math.abs(measured - loss) > TOLERANCE ? 1 : 0);
+	}
+
+	public static void main(String[] args) {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int stateSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+
+		CheckHarness.registerClasses();
+
+		System.out.println(clients + " clients, state of " + stateSize
+				+ " bytes, " + TICKS + " ticks");
+		CheckHarness.printHeader(ROW, "loss", "measured", "piggybacked",
+				"delivered", "checked", "incorrect");
+
+		int floats = LoadGenerator.getFloats(stateSize);
+		long failures = 0;
+		for (double loss : LOSS_RATES) {
+			failures += run(clients, floats, loss);
+		}
+
+		CheckHarness.finish(failures);
+	}
+}
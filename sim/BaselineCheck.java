@@ -0,0 +1,124 @@
+package sim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jme3.network.Filters;
+import com.jme3.network.HostedConnection;
+
+import diff.ClientDiffHandler;
+import diff.ServerDiffHandler;
+import diff.ServerMetrics;
+import example.GameStateMessage;
+
+/**
+ * Checks the static baseline of {@link ServerDiffHandler#setBaseline} over a
+ * {@link LoopbackNetwork}: many clients join at once, first without and then
+ * with a baseline. The bytes sent in the ticks after the join, including the
+ * baseline itself, the number of full messages and the correctness of every
+ * received state are reported. The default state is larger than a jME
+ * message, so the baseline has to be sent in fragments.
+ * <p>
+ * Usage: {@code BaselineCheck [clients] [stateSize]}
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class BaselineCheck {
+	/** Tick at which the clients join */
+	private static final int JOIN_TICK = 10;
+	/** Number of ticks after the join that are reported */
+	private static final int REPORTED_TICKS = 5;
+	private static final int TICKS = 40;
+	private static final String ROW = "%-8s %49s %8d %8d %10d %10d %10d";
+
+	/**
+	 * Runs the join with or without a baseline and prints the results.
+	 * 
+	 * @return The number of failures: incorrect states and clients that do
+	 *         not have the baseline
+	 */
+	private static long run(int numClients, int floats, boolean baseline) {
+		LoopbackNetwork network = CheckHarness.createNetwork();
+		LoopbackServer server = network.createServer();
+		ServerDiffHandler<GameStateMessage> serverHandler = new ServerDiffHandler<>(
+				server);
+		server.start();
+
+		if (baseline) {
+			serverHandler.setBaseline(server,
+					LoadGenerator.createState(floats, 0));
+		}
+
+		GameStateMessage[] sent = new GameStateMessage[TICKS];
+		CheckHarness.Verifier verifier = new CheckHarness.Verifier(sent);
+		List<ClientDiffHandler<GameStateMessage>> handlers = new ArrayList<>(
+				numClients);
+		long[] bytes = new long[REPORTED_TICKS];
+
+		for (int tick = 0; tick < TICKS; tick++) {
+			long before = getBytesSent(server);
+			if (tick == JOIN_TICK) {
+				for (int i = 0; i < numClients; i++) {
+					handlers.add(CheckHarness.connect(server, verifier));
+				}
+			}
+
+			sent[tick] = LoadGenerator.createState(floats, tick);
+			serverHandler.dispatchMessage(server,
+					Filters.in(server.getConnections()), sent[tick]);
+			network.advance(CheckHarness.TICK_INTERVAL);
+
+			if (tick >= JOIN_TICK && tick < JOIN_TICK + REPORTED_TICKS) {
+				bytes[tick - JOIN_TICK] = getBytesSent(server) - before;
+			}
+		}
+
+		int withBaseline = 0;
+		for (ClientDiffHandler<GameStateMessage> clientHandler : handlers) {
+			if (clientHandler.getDefaultChannel().getBaselineVersion() >= 0) {
+				withBaseline++;
+			}
+		}
+
+		ServerMetrics metrics = serverHandler.getMetrics();
+		StringBuilder perTick = new StringBuilder();
+		for (long tickBytes : bytes) {
+			perTick.append(String.format(" %9d", tickBytes));
+		}
+
+		System.out.println(String.format(ROW, baseline ? "yes" : "no",
+				perTick.substring(1), metrics.getFullMessages(),
+				metrics.getBaselineLookups(), withBaseline,
+				verifier.getChecked(), verifier.getIncorrect()));
+
+		return verifier.getIncorrect() + (baseline ? numClients - withBaseline : 0);
+	}
+
+	private static long getBytesSent(LoopbackServer server) {
+		long bytes = 0;
+		for (HostedConnection connection : server.getConnections()) {
+			bytes += ((LoopbackConnection) connection).getBytesSent();
+		}
+
+		return bytes;
+	}
+
+	public static void main(String[] args) {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int stateSize = args.length > 1 ? Integer.parseInt(args[1]) : 40000;
+
+		CheckHarness.registerClasses();
+
+		System.out.println(clients + " clients join at tick " + JOIN_TICK
+				+ ", state of " + stateSize + " bytes");
+		CheckHarness.printHeader(ROW, "baseline",
+				"bytes in the ticks after the join", "full", "lookups",
+				"cached", "checked", "incorrect");
+
+		int floats = LoadGenerator.getFloats(stateSize);
+		long failures = run(clients, floats, false)
+				+ run(clients, floats, true);
+		CheckHarness.finish(failures);
+	}
+}
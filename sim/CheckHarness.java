@@ -0,0 +1,185 @@
+package sim;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.jme3.network.Client;
+import com.jme3.network.Message;
+import com.jme3.network.MessageListener;
+import com.jme3.network.serializing.Serializer;
+
+import diff.ClientDiffHandler;
+import diff.DiffClassRegistration;
+import example.GameStateMessage;
+
+/**
+ * The parts that the checks in this package share: the registration of the
+ * classes, a {@link LoopbackNetwork} with typical conditions, clients that
+ * verify every state they receive, a table of results and the exit code.
+ *
+ * @author Ben Ruijl
+ *
+ */
+class CheckHarness {
+	/** Time between two ticks in milliseconds */
+	static final int TICK_INTERVAL = 50;
+	private static final Pattern COLUMN = Pattern
+			.compile("%(-?\\d*)(\\.\\d+)?[dfs]");
+
+	private CheckHarness() {
+	}
+
+	/**
+	 * Registers the classes that the server and the clients send.
+	 */
+	static void registerClasses() {
+		DiffClassRegistration.registerClasses();
+		Serializer.registerClass(GameStateMessage.class);
+	}
+
+	/**
+	 * Creates the conditions of a typical link, with some latency, loss,
+	 * reordering and duplication. The conditions can be changed.
+	 */
+	static NetworkConditions createConditions() {
+		return new NetworkConditions(50, 10, 0.05, 0.01, 0.01);
+	}
+
+	/**
+	 * Creates a network with the conditions of a typical link.
+	 */
+	static LoopbackNetwork createNetwork() {
+		return new LoopbackNetwork(createConditions());
+	}
+
+	/**
+	 * Connects a client to the server and starts it.
+	 *
+	 * @param listener
+	 *            Listener for the received states, such as a
+	 *            {@link Verifier}, or {@code null}
+	 * @return The handler of the client
+	 */
+	static ClientDiffHandler<GameStateMessage> connect(LoopbackServer server,
+			MessageListener<Client> listener) {
+		LoopbackClient client = server.connect();
+		ClientDiffHandler<GameStateMessage> handler = new ClientDiffHandler<>(
+				client, GameStateMessage.class, (short) 32);
+		if (listener != null) {
+			handler.addListener(listener);
+		}
+
+		client.start();
+		return handler;
+	}
+
+	/**
+	 * Prints the header of a table.
+	 *
+	 * @param rowFormat
+	 *            Format of the rows, of which the widths are used
+	 * @param columns
+	 *            Names of the columns
+	 */
+	static void printHeader(String rowFormat, String... columns) {
+		Matcher matcher = COLUMN.matcher(rowFormat);
+		StringBuffer format = new StringBuffer();
+		while (matcher.find()) {
+			matcher.appendReplacement(format, "%" + matcher.group(1) + "s");
+		}
+
+		matcher.appendTail(format);
+		System.out.println(String.format(format.toString(),
+				(Object[]) columns));
+	}
+
+	/**
+	 * Reports the failures of a check and exits with status 1 if there are
+	 * any.
+	 *
+	 * @param failures
+	 *            Number of failures
+	 */
+	static void finish(long failures) {
+		if (failures > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Checks every state that clients receive against the state that was
+	 * sent in its tick, which the first float of a state holds, see
+	 * {@link LoadGenerator#createState(int, int)}. One verifier can be shared
+	 * by the clients, because they all run on the thread that advances the
+	 * network.
+	 */
+	static class Verifier implements MessageListener<Client> {
+		private final GameStateMessage[] sent;
+		private long checked;
+		private long incorrect;
+		private int newest = -1;
+
+		/**
+		 * @param sent
+		 *            The states that are sent, indexed by their tick
+		 */
+		Verifier(GameStateMessage[] sent) {
+			this.sent = sent;
+		}
+
+		@Override
+		public void messageReceived(Client source, Message m) {
+			GameStateMessage state = (GameStateMessage) m;
+			int tick = getTick(state);
+			checked++;
+			if (!isCorrect(source, state, tick)) {
+				incorrect++;
+			}
+
+			newest = Math.max(newest, tick);
+		}
+
+		/**
+		 * Checks a state that was received by a client in the given tick.
+		 */
+		boolean isCorrect(Client source, GameStateMessage state, int tick) {
+			if (tick < 0 || tick >= sent.length || getTick(state) != tick) {
+				return false;
+			}
+
+			GameStateMessage expected = getExpected(source, tick);
+			return expected != null && LoadGenerator.equal(state, expected);
+		}
+
+		/**
+		 * Gets the state that a client should have received in a tick.
+		 */
+		protected GameStateMessage getExpected(Client source, int tick) {
+			return sent[tick];
+		}
+
+		private static int getTick(GameStateMessage state) {
+			return state.getPosition().get(0).intValue();
+		}
+
+		long getChecked() {
+			return checked;
+		}
+
+		/**
+		 * Gets the number of received states that differ from the state that
+		 * was sent. Should be 0.
+		 */
+		long getIncorrect() {
+			return incorrect;
+		}
+
+		/**
+		 * Gets the newest tick that was received, or -1 if none was.
+		 */
+		int getNewest() {
+			return newest;
+		}
+	}
+}
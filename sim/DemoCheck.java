@@ -0,0 +1,121 @@
+package sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import com.jme3.network.Filters;
+
+import diff.DemoPlayer;
+import diff.DemoRecorder;
+import diff.LatencyHistogram;
+import diff.ServerDiffHandler;
+import example.GameStateMessage;
+
+/**
+ * Checks the {@link DemoRecorder} and {@link DemoPlayer}: the ticks that a
+ * server dispatches to a few clients over a {@link LoopbackNetwork} are
+ * recorded to a temporary demo file, which is then played in order and
+ * seeked at random. Every tick that is played must equal the message that
+ * was dispatched in that tick. The dispatch time with the recorder, the
+ * dropped ticks, the size of the demo and the seek time are reported.
+ * <p>
+ * Usage: {@code DemoCheck [ticks] [stateSize]}
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class DemoCheck {
+	private static final int CLIENTS = 8;
+	private static final int KEYFRAME_INTERVAL = 50;
+	private static final int SEEKS = 500;
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int stateSize = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+		CheckHarness.registerClasses();
+
+		LoopbackNetwork network = CheckHarness.createNetwork();
+		LoopbackServer server = network.createServer();
+		ServerDiffHandler<GameStateMessage> serverHandler = new ServerDiffHandler<>(
+				server);
+		server.start();
+
+		for (int i = 0; i < CLIENTS; i++) {
+			CheckHarness.connect(server, null);
+		}
+
+		File file = File.createTempFile("demo", ".dem");
+		File indexFile = DemoRecorder.getIndexFile(file);
+		file.deleteOnExit();
+		indexFile.deleteOnExit();
+
+		DemoRecorder recorder = new DemoRecorder(file, KEYFRAME_INTERVAL);
+		serverHandler.setRecorder(recorder);
+
+		int floats = LoadGenerator.getFloats(stateSize);
+		GameStateMessage[] sent = new GameStateMessage[ticks];
+		CheckHarness.Verifier verifier = new CheckHarness.Verifier(sent);
+		LatencyHistogram dispatchTime = new LatencyHistogram();
+		for (int tick = 0; tick < ticks; tick++) {
+			sent[tick] = LoadGenerator.createState(floats, tick);
+			long start = System.nanoTime();
+			serverHandler.dispatchMessage(server,
+					Filters.in(server.getConnections()), sent[tick]);
+			dispatchTime.record(System.nanoTime() - start);
+			network.advance(CheckHarness.TICK_INTERVAL);
+
+			/* Give the writer thread some time, as a game loop would */
+			if (tick % 100 == 0) {
+				Thread.sleep(1);
+			}
+		}
+
+		serverHandler.setRecorder(null);
+		recorder.close();
+
+		System.out.println(ticks + " ticks of " + stateSize + " bytes, "
+				+ CLIENTS + " clients");
+		System.out.println("dispatch " + dispatchTime.getStats());
+		System.out.println(String.format(
+				"written %d, dropped %d, %d bytes, index of %d bytes",
+				recorder.getWritten(), recorder.getDropped(), file.length(),
+				indexFile.length()));
+
+		DemoPlayer<GameStateMessage> player = new DemoPlayer<>(file);
+		long played = 0, incorrect = 0;
+		GameStateMessage state;
+		while ((state = player.next()) != null) {
+			played++;
+			if (!verifier.isCorrect(null, state, player.getTick())) {
+				incorrect++;
+			}
+		}
+
+		Random random = new Random(1);
+		long start = System.nanoTime();
+		for (int i = 0; i < SEEKS; i++) {
+			int target = random.nextInt(ticks);
+			state = player.seek(target);
+
+			/* A dropped tick is replaced by the tick before it */
+			if (state == null || player.getTick() > target
+					|| recorder.getDropped() == 0 && player.getTick() != target
+					|| !verifier.isCorrect(null, state, player.getTick())) {
+				incorrect++;
+			}
+		}
+
+		long seekTime = (System.nanoTime() - start) / SEEKS;
+		player.close();
+
+		System.out.println(String.format(
+				"played %d, %d random seeks of %.1f us, incorrect %d",
+				played, SEEKS, seekTime / 1000.0, incorrect));
+
+		CheckHarness.finish(incorrect
+				+ (played != recorder.getWritten() ? 1 : 0));
+	}
+}
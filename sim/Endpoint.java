@@ -0,0 +1,23 @@
+package sim;
+
+import com.jme3.network.Message;
+
+/**
+ * One end of a link in a {@link LoopbackNetwork}, which receives the messages
+ * that arrive on it.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+interface Endpoint {
+
+	/**
+	 * Delivers a message to the listeners of this endpoint.
+	 * 
+	 * @param message
+	 *            The deserialized message
+	 * @param size
+	 *            Serialized size of the message
+	 */
+	void receive(Message message, int size);
+}
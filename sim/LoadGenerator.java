@@ -0,0 +1,358 @@
+package sim;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.jme3.network.Client;
+import com.jme3.network.Filters;
+import com.jme3.network.Message;
+import com.jme3.network.MessageListener;
+
+import diff.ClientDiffHandler;
+import diff.LatencyHistogram;
+import diff.LatencyStats;
+import diff.MessageSerialization;
+import diff.ServerDiffHandler;
+import example.GameStateMessage;
+
+/**
+ * Drives a {@link ServerDiffHandler} and many {@link ClientDiffHandler}s over a
+ * {@link LoopbackNetwork} in one JVM, at a fixed tick rate. Reports the time
+ * the server spends dispatching a tick, the bandwidth per client and whether
+ * every state a client receives is exactly the state the server sent.
+ * <p>
+ * The tick cost only contains the dispatching, which is what limits the
+ * number of clients a server core can serve. The clients run on the same
+ * thread, but in virtual time, so they do not slow down the simulated
+ * network. If the number of clients is 0, the number of clients is doubled
+ * until the 99th percentile of the tick cost exceeds the tick interval, and
+ * the capacity is narrowed down from there.
+ * <p>
+ * Usage:
+ * {@code LoadGenerator [clients] [seconds] [stateSize] [latency] [jitter] [loss] [reordering] [duplication]}
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class LoadGenerator {
+	private static final int TICK_RATE = 20;
+	private static final int TICK_INTERVAL = 1000 / TICK_RATE;
+	private static final int WARMUP_TICKS = 2 * TICK_RATE;
+	/** Number of sent states that are kept to check the clients */
+	private static final int STATE_HISTORY = 256;
+	/** One in this many floats changes every tick */
+	private static final int CHANGE_PERIOD = 10;
+	private static final int MAX_CLIENTS = 1 << 16;
+
+	private final NetworkConditions conditions;
+	private final int seconds;
+	private final int floats;
+
+	public LoadGenerator(NetworkConditions conditions, int seconds,
+			int stateSize) {
+		this.conditions = conditions;
+		this.seconds = seconds;
+		floats = getFloats(stateSize);
+	}
+
+	/**
+	 * Gets the number of floats that makes the serialized game state about
+	 * the given size, but at least one.
+	 */
+	static int getFloats(int stateSize) {
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		int empty = MessageSerialization.serialize(createState(0, 0), buffer)
+				.remaining();
+		int perFloat = MessageSerialization.serialize(createState(1, 0),
+				buffer).remaining()
+				- empty;
+		return Math.max(1, (stateSize - empty) / perFloat);
+	}
+
+	/**
+	 * Creates the game state of a tick. The first float is the tick, so that
+	 * a client state can be matched with the state that was sent.
+	 */
+	static GameStateMessage createState(int floats, int tick) {
+		List<Float> position = new ArrayList<>(floats);
+		for (int i = 0; i < floats; i++) {
+			position.add(i % CHANGE_PERIOD == 0 ? (float) tick + i : (float) i);
+		}
+
+		List<Float> orientation = new ArrayList<>(Arrays.asList(0.5f, 0.6f,
+				0.7f));
+		return new GameStateMessage("load", position, orientation, (byte) tick);
+	}
+
+	static boolean equal(GameStateMessage a, GameStateMessage b) {
+		return a.getId() == b.getId() && a.getName().equals(b.getName())
+				&& a.getPosition().equals(b.getPosition())
+				&& a.getOrientation().equals(b.getOrientation());
+	}
+
+	/**
+	 * Runs a simulation with the given number of clients.
+	 * 
+	 * @param numClients
+	 *            Number of clients
+	 * @return The results, without the warm-up ticks
+	 */
+	public Result run(int numClients) {
+		LoopbackNetwork network = new LoopbackNetwork(conditions);
+		LoopbackServer server = network.createServer();
+		ServerDiffHandler<GameStateMessage> serverHandler = new ServerDiffHandler<>(
+				server);
+		server.start();
+
+		final GameStateMessage[] sent = new GameStateMessage[STATE_HISTORY];
+		final int[] lastTick = new int[numClients];
+		final long[] checks = new long[2]; // checked, incorrect
+		List<LoopbackClient> clients = new ArrayList<>(numClients);
+
+		for (int i = 0; i < numClients; i++) {
+			final int index = i;
+			LoopbackClient client = server.connect();
+			ClientDiffHandler<GameStateMessage> clientHandler = new ClientDiffHandler<>(
+					client, GameStateMessage.class, (short) 32);
+			clientHandler.addListener(new MessageListener<Client>() {
+				@Override
+				public void messageReceived(Client source, Message m) {
+					GameStateMessage state = (GameStateMessage) m;
+					int tick = state.getPosition().get(0).intValue();
+					GameStateMessage original = sent[tick % STATE_HISTORY];
+
+					checks[0]++;
+					if (original == null
+							|| original.getPosition().get(0).intValue() != tick
+							|| !equal(state, original)) {
+						checks[1]++;
+					}
+
+					lastTick[index] = tick;
+				}
+			});
+			client.start();
+			clients.add(client);
+		}
+
+		Arrays.fill(lastTick, -1);
+		LatencyHistogram tickCost = new LatencyHistogram();
+		long bytesDown = 0, bytesUp = 0, staleness = 0, missing = 0;
+		int ticks = WARMUP_TICKS + seconds * TICK_RATE;
+
+		for (int tick = 0; tick < ticks; tick++) {
+			if (tick == WARMUP_TICKS) {
+				tickCost.reset();
+				checks[0] = checks[1] = 0;
+				for (LoopbackClient client : clients) {
+					bytesDown -= client.getConnection().getBytesSent();
+					bytesUp -= client.getBytesSent();
+				}
+			}
+
+			GameStateMessage state = createState(floats, tick);
+			sent[tick % STATE_HISTORY] = state;
+
+			long start = System.nanoTime();
+			serverHandler.dispatchMessage(server,
+					Filters.in(server.getConnections()), state);
+			tickCost.record(System.nanoTime() - start);
+
+			network.advance(TICK_INTERVAL);
+
+			if (tick >= WARMUP_TICKS) {
+				for (int i = 0; i < numClients; i++) {
+					if (lastTick[i] < 0) {
+						missing++;
+					} else {
+						staleness += tick - lastTick[i];
+					}
+				}
+			}
+		}
+
+		for (LoopbackClient client : clients) {
+			bytesDown += client.getConnection().getBytesSent();
+			bytesUp += client.getBytesSent();
+		}
+
+		long samples = (long) numClients * seconds * TICK_RATE;
+		return new Result(numClients, tickCost.getStats(), (double) bytesDown
+				/ numClients / seconds, (double) bytesUp / numClients
+				/ seconds, checks[0], checks[1], missing, (double) staleness
+				/ Math.max(1, samples - missing));
+	}
+
+	/**
+	 * Finds the largest number of clients for which the 99th percentile of
+	 * the tick cost stays within the tick interval.
+	 * 
+	 * @return The number of clients
+	 */
+	public int findCapacity() {
+		long budget = 1000000L * TICK_INTERVAL;
+		int low = 0, high = 16;
+
+		while (high <= MAX_CLIENTS) {
+			Result result = run(high);
+			System.out.println(result);
+			if (result.getTickCost().getP99Micros() * 1000 > budget) {
+				break;
+			}
+
+			low = high;
+			high *= 2;
+		}
+
+		/* Narrow down between the last count that fit and the first that did not */
+		for (int step = 0; step < 4 && high - low > 1 && high <= MAX_CLIENTS; step++) {
+			int middle = (low + high) / 2;
+			Result result = run(middle);
+			System.out.println(result);
+			if (result.getTickCost().getP99Micros() * 1000 > budget) {
+				high = middle;
+			} else {
+				low = middle;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * The results of a simulation.
+	 */
+	public static class Result {
+		private final int clients;
+		private final LatencyStats tickCost;
+		private final double bytesDown;
+		private final double bytesUp;
+		private final long checked;
+		private final long incorrect;
+		private final long missing;
+		private final double staleness;
+
+		public Result(int clients, LatencyStats tickCost, double bytesDown,
+				double bytesUp, long checked, long incorrect, long missing,
+				double staleness) {
+			this.clients = clients;
+			this.tickCost = tickCost;
+			this.bytesDown = bytesDown;
+			this.bytesUp = bytesUp;
+			this.checked = checked;
+			this.incorrect = incorrect;
+			this.missing = missing;
+			this.staleness = staleness;
+		}
+
+		public int getClients() {
+			return clients;
+		}
+
+		/**
+		 * Gets the time the server spends dispatching a tick.
+		 * 
+		 * @return The tick cost
+		 */
+		public LatencyStats getTickCost() {
+			return tickCost;
+		}
+
+		/**
+		 * Gets the bandwidth from the server to a client.
+		 * 
+		 * @return Bytes per second
+		 */
+		public double getBytesDown() {
+			return bytesDown;
+		}
+
+		/**
+		 * Gets the bandwidth from a client to the server.
+		 * 
+		 * @return Bytes per second
+		 */
+		public double getBytesUp() {
+			return bytesUp;
+		}
+
+		/**
+		 * Gets the number of states that the clients received and that were
+		 * checked against the states the server sent.
+		 * 
+		 * @return Number of states
+		 */
+		public long getChecked() {
+			return checked;
+		}
+
+		/**
+		 * Gets the number of received states that differ from the state that
+		 * was sent. Should be 0.
+		 * 
+		 * @return Number of states
+		 */
+		public long getIncorrect() {
+			return incorrect;
+		}
+
+		/**
+		 * Gets the number of ticks that ended with a client without any
+		 * state.
+		 * 
+		 * @return Number of client ticks
+		 */
+		public long getMissing() {
+			return missing;
+		}
+
+		/**
+		 * Gets the average number of ticks the state of a client is behind
+		 * the server at the end of a tick.
+		 * 
+		 * @return Staleness in ticks
+		 */
+		public double getStaleness() {
+			return staleness;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%8d %12.1f %12.1f %12.0f %10.0f %10d %10d %10.2f",
+					clients, tickCost.getMeanMicros(), tickCost.getP99Micros(),
+					bytesDown, bytesUp, checked, incorrect, staleness);
+		}
+	}
+
+	public static void main(String[] args) {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int stateSize = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+		NetworkConditions conditions = new NetworkConditions(
+				args.length > 3 ? Integer.parseInt(args[3]) : 50,
+				args.length > 4 ? Integer.parseInt(args[4]) : 10,
+				args.length > 5 ? Double.parseDouble(args[5]) : 0.05,
+				args.length > 6 ? Double.parseDouble(args[6]) : 0.01,
+				args.length > 7 ? Double.parseDouble(args[7]) : 0.01);
+
+		CheckHarness.registerClasses();
+
+		LoadGenerator generator = new LoadGenerator(conditions, seconds,
+				stateSize);
+		System.out.println(TICK_RATE + " ticks per second, " + seconds
+				+ " seconds, state of " + stateSize + " bytes, " + conditions);
+		System.out.println(String.format("%8s %12s %12s %12s %10s %10s %10s %10s",
+				"clients", "tick (us)", "p99 (us)", "down (B/s)", "up (B/s)",
+				"checked", "incorrect", "staleness"));
+
+		if (clients > 0) {
+			System.out.println(generator.run(clients));
+		} else {
+			System.out.println("Capacity: " + generator.findCapacity()
+					+ " clients per core");
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package sim;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jme3.network.Client;
+import com.jme3.network.ClientStateListener;
+import com.jme3.network.ClientStateListener.DisconnectInfo;
+import com.jme3.network.ErrorListener;
+import com.jme3.network.Message;
+import com.jme3.network.MessageListener;
+import com.jme3.network.base.MessageListenerRegistry;
+import com.jme3.network.service.ClientServiceManager;
+
+/**
+ * A client on a {@link LoopbackNetwork}, created with
+ * {@link LoopbackServer#connect()}. Services and error listeners are not
+ * supported.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class LoopbackClient implements Client, Endpoint {
+	private final LoopbackNetwork network;
+	private final LoopbackConnection connection;
+	private final LoopbackNetwork.Link link;
+	private final MessageListenerRegistry<Client> listenerRegistry;
+	private final List<ClientStateListener> stateListeners;
+	private final AtomicLong bytesSent;
+	private final AtomicLong bytesReceived;
+	private volatile boolean started;
+	private volatile boolean connected;
+
+	LoopbackClient(LoopbackNetwork network, LoopbackConnection connection) {
+		this.network = network;
+		this.connection = connection;
+		link = new LoopbackNetwork.Link();
+		listenerRegistry = new MessageListenerRegistry<>();
+		stateListeners = new CopyOnWriteArrayList<>();
+		bytesSent = new AtomicLong();
+		bytesReceived = new AtomicLong();
+		connected = true;
+	}
+
+	/**
+	 * Gets the server side of the connection of this client.
+	 * 
+	 * @return The hosted connection
+	 */
+	public LoopbackConnection getConnection() {
+		return connection;
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	void disconnected(String reason) {
+		if (!connected) {
+			return;
+		}
+
+		connected = false;
+		DisconnectInfo info = new DisconnectInfo();
+		info.reason = reason;
+		for (ClientStateListener listener : stateListeners) {
+			listener.clientDisconnected(this, info);
+		}
+	}
+
+	@Override
+	public void receive(Message message, int size) {
+		if (connected) {
+			bytesReceived.addAndGet(size);
+			listenerRegistry.messageReceived(this, message);
+		}
+	}
+
+	@Override
+	public void start() {
+		started = true;
+		for (ClientStateListener listener : stateListeners) {
+			listener.clientConnected(this);
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		return connected;
+	}
+
+	@Override
+	public boolean isStarted() {
+		return started;
+	}
+
+	@Override
+	public int getId() {
+		return connection.getId();
+	}
+
+	@Override
+	public String getGameName() {
+		return "loopback";
+	}
+
+	@Override
+	public int getVersion() {
+		return 0;
+	}
+
+	@Override
+	public ClientServiceManager getServices() {
+		return null;
+	}
+
+	@Override
+	public void send(Message message) {
+		if (connected) {
+			bytesSent.addAndGet(network.send(link, connection, message));
+		}
+	}
+
+	@Override
+	public void send(int channel, Message message) {
+		send(message);
+	}
+
+	@Override
+	public void close() {
+		connection.close("Client closed");
+	}
+
+	@Override
+	public void addClientStateListener(ClientStateListener listener) {
+		stateListeners.add(listener);
+	}
+
+	@Override
+	public void removeClientStateListener(ClientStateListener listener) {
+		stateListeners.remove(listener);
+	}
+
+	@Override
+	public void addMessageListener(MessageListener<? super Client> listener) {
+		listenerRegistry.addMessageListener(listener);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes") // the signature of the interface
+	public void addMessageListener(MessageListener<? super Client> listener,
+			Class... classes) {
+		listenerRegistry.addMessageListener(listener, classes);
+	}
+
+	@Override
+	public void removeMessageListener(MessageListener<? super Client> listener) {
+		listenerRegistry.removeMessageListener(listener);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes") // the signature of the interface
+	public void removeMessageListener(
+			MessageListener<? super Client> listener, Class... classes) {
+		listenerRegistry.removeMessageListener(listener, classes);
+	}
+
+	@Override
+	public void addErrorListener(ErrorListener<? super Client> listener) {
+	}
+
+	@Override
+	public void removeErrorListener(ErrorListener<? super Client> listener) {
+	}
+}
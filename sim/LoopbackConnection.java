@@ -0,0 +1,123 @@
+package sim;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+import com.jme3.network.Server;
+
+/**
+ * The server side of the link between a {@link LoopbackServer} and a
+ * {@link LoopbackClient}. Counts the bytes that are sent and received, so
+ * that the bandwidth per client can be measured.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class LoopbackConnection implements HostedConnection, Endpoint {
+	private final LoopbackServer server;
+	private final LoopbackClient client;
+	private final int id;
+	private final LoopbackNetwork.Link link;
+	private final Map<String, Object> attributes;
+	private final AtomicLong bytesSent;
+	private final AtomicLong bytesReceived;
+
+	LoopbackConnection(LoopbackServer server, int id) {
+		this.server = server;
+		this.id = id;
+		link = new LoopbackNetwork.Link();
+		attributes = new ConcurrentHashMap<>();
+		bytesSent = new AtomicLong();
+		bytesReceived = new AtomicLong();
+		client = new LoopbackClient(server.getNetwork(), this);
+	}
+
+	public LoopbackClient getClient() {
+		return client;
+	}
+
+	/**
+	 * Gets the number of bytes that were sent to the client, including the
+	 * messages that were lost on the way.
+	 * 
+	 * @return Number of bytes
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Gets the number of bytes that were received from the client.
+	 * 
+	 * @return Number of bytes
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	@Override
+	public void receive(Message message, int size) {
+		bytesReceived.addAndGet(size);
+		server.receive(this, message);
+	}
+
+	@Override
+	public void send(Message message) {
+		bytesSent.addAndGet(server.getNetwork().send(link, client, message));
+	}
+
+	@Override
+	public void send(int channel, Message message) {
+		send(message);
+	}
+
+	@Override
+	public Server getServer() {
+		return server;
+	}
+
+	@Override
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public String getAddress() {
+		return "loopback:" + id;
+	}
+
+	@Override
+	public void close(String reason) {
+		server.remove(this);
+		client.disconnected(reason);
+	}
+
+	@Override
+	public Object setAttribute(String name, Object value) {
+		if (value == null) {
+			return attributes.remove(name);
+		}
+
+		return attributes.put(name, value);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T getAttribute(String name) {
+		return (T) attributes.get(name);
+	}
+
+	@Override
+	public Set<String> attributeNames() {
+		return attributes.keySet();
+	}
+
+	@Override
+	public String toString() {
+		return "LoopbackConnection[" + id + "]";
+	}
+}
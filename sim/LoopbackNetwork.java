@@ -0,0 +1,220 @@
+package sim;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jme3.network.Message;
+import com.jme3.network.serializing.Serializer;
+
+import diff.MessageSerialization;
+
+/**
+ * An in-process stand-in for the network between a jME server and its
+ * clients. Messages are serialized when they are sent and deserialized when
+ * they arrive, so the serializers run and the sizes are real, but the
+ * messages never leave the JVM.
+ * <p>
+ * The network runs on a virtual clock: a message arrives after the latency of
+ * the {@link NetworkConditions}, when the clock is moved past its arrival time
+ * with {@link #advance(long)}. Nothing arrives in between, so a simulation is
+ * deterministic for a given seed and can run thousands of clients faster than
+ * real time. The network is not thread-safe for the receivers: messages are
+ * delivered on the thread that calls {@link #advance(long)}.
+ * <p>
+ * A message can be at most {@link #MAX_MESSAGE_SIZE} bytes, like in the
+ * serializer protocol of jME, so that a message that is too large for a real
+ * server fails in the simulation as well.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class LoopbackNetwork {
+	protected static final Logger log = Logger.getLogger(LoopbackNetwork.class
+			.getName());
+	/**
+	 * The largest serialized message that jME sends, because its length is
+	 * written as a short
+	 */
+	public static final int MAX_MESSAGE_SIZE = Short.MAX_VALUE;
+	private final NetworkConditions conditions;
+	private final Random random;
+	private final PriorityQueue<Packet> packets;
+	private final ByteBuffer buffer;
+	private long time;
+	private long numPackets;
+
+	/**
+	 * Creates a network.
+	 * 
+	 * @param conditions
+	 *            Conditions of every link, which may be changed during the
+	 *            simulation
+	 * @param seed
+	 *            Seed of the random losses and delays
+	 */
+	public LoopbackNetwork(NetworkConditions conditions, long seed) {
+		this.conditions = conditions;
+		random = new Random(seed);
+		packets = new PriorityQueue<>();
+		buffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+		time = 0;
+	}
+
+	public LoopbackNetwork(NetworkConditions conditions) {
+		this(conditions, 42);
+	}
+
+	/**
+	 * Creates a server on this network. Clients connect to it with
+	 * {@link LoopbackServer#connect()}.
+	 * 
+	 * @return The server
+	 */
+	public LoopbackServer createServer() {
+		return new LoopbackServer(this);
+	}
+
+	public NetworkConditions getConditions() {
+		return conditions;
+	}
+
+	/**
+	 * Gets the time of the virtual clock.
+	 * 
+	 * @return Time in milliseconds since the network was created
+	 */
+	public synchronized long getTime() {
+		return time;
+	}
+
+	/**
+	 * Gets the number of messages that are underway.
+	 * 
+	 * @return Number of messages
+	 */
+	public synchronized int getPending() {
+		return packets.size();
+	}
+
+	/**
+	 * Sends a message over the network, applying the conditions.
+	 * 
+	 * @param sender
+	 *            Link the message is sent on
+	 * @param receiver
+	 *            Receiving end of the link
+	 * @param message
+	 *            Message to send
+	 * @return Serialized size of the message
+	 * @throws BufferOverflowException
+	 *             If the message is larger than {@link #MAX_MESSAGE_SIZE}
+	 */
+	synchronized int send(Link sender, Endpoint receiver, Message message) {
+		MessageSerialization.serializeInto(message, buffer);
+		byte[] data = new byte[buffer.remaining()];
+		buffer.get(data);
+
+		long arrival = time + conditions.getLatency();
+		if (conditions.getJitter() > 0) {
+			arrival += random.nextInt(conditions.getJitter() + 1);
+		}
+
+		if (message.isReliable()) {
+			/* Reliable messages arrive in order */
+			arrival = Math.max(arrival, sender.lastReliableArrival);
+			sender.lastReliableArrival = arrival;
+			packets.add(new Packet(arrival, numPackets++, receiver, data));
+			return data.length;
+		}
+
+		if (random.nextDouble() < conditions.getLoss()) {
+			return data.length;
+		}
+
+		if (random.nextDouble() < conditions.getReordering()) {
+			arrival += Math.max(1, conditions.getLatency());
+		}
+
+		packets.add(new Packet(arrival, numPackets++, receiver, data));
+
+		if (random.nextDouble() < conditions.getDuplication()) {
+			packets.add(new Packet(arrival + random.nextInt(
+					conditions.getJitter() + 1), numPackets++, receiver, data));
+		}
+
+		return data.length;
+	}
+
+	/**
+	 * Moves the virtual clock forward and delivers every message that arrives
+	 * in that time, in order of arrival. Messages that are sent by the
+	 * receivers arrive in the same call if they are due.
+	 * 
+	 * @param millis
+	 *            Time to advance in milliseconds
+	 */
+	public void advance(long millis) {
+		long end;
+		synchronized (this) {
+			end = time + millis;
+		}
+
+		while (true) {
+			Packet packet;
+			synchronized (this) {
+				packet = packets.peek();
+				if (packet == null || packet.arrival > end) {
+					time = end;
+					return;
+				}
+
+				packets.poll();
+				time = Math.max(time, packet.arrival);
+			}
+
+			try {
+				Message message = (Message) Serializer
+						.readClassAndObject(ByteBuffer.wrap(packet.data));
+				packet.receiver.receive(message, packet.data.length);
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Could not read message", e);
+			}
+		}
+	}
+
+	/**
+	 * The sending side of a link, which keeps reliable messages in order.
+	 */
+	static class Link {
+		private long lastReliableArrival;
+	}
+
+	private static class Packet implements Comparable<Packet> {
+		private final long arrival;
+		private final long sequence;
+		private final Endpoint receiver;
+		private final byte[] data;
+
+		public Packet(long arrival, long sequence, Endpoint receiver,
+				byte[] data) {
+			this.arrival = arrival;
+			this.sequence = sequence;
+			this.receiver = receiver;
+			this.data = data;
+		}
+
+		@Override
+		public int compareTo(Packet other) {
+			if (arrival != other.arrival) {
+				return arrival < other.arrival ? -1 : 1;
+			}
+
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package sim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jme3.network.ConnectionListener;
+import com.jme3.network.Filter;
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+import com.jme3.network.MessageListener;
+import com.jme3.network.Server;
+import com.jme3.network.base.MessageListenerRegistry;
+import com.jme3.network.service.HostedServiceManager;
+
+/**
+ * A server on a {@link LoopbackNetwork}. It behaves like a jME server to the
+ * handlers that use it, but its clients are created in the same JVM with
+ * {@link #connect()}. Services are not supported.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class LoopbackServer implements Server {
+	private final LoopbackNetwork network;
+	private final Map<Integer, LoopbackConnection> connections;
+	private final MessageListenerRegistry<HostedConnection> listenerRegistry;
+	private final List<ConnectionListener> connectionListeners;
+	private final AtomicInteger nextId;
+	private int numChannels;
+	private volatile boolean running;
+
+	LoopbackServer(LoopbackNetwork network) {
+		this.network = network;
+		connections = new ConcurrentSkipListMap<>();
+		listenerRegistry = new MessageListenerRegistry<>();
+		connectionListeners = new CopyOnWriteArrayList<>();
+		nextId = new AtomicInteger();
+		numChannels = 0;
+	}
+
+	public LoopbackNetwork getNetwork() {
+		return network;
+	}
+
+	/**
+	 * Connects a new client to this server. The connection listeners of the
+	 * server are notified immediately.
+	 * 
+	 * @return The client, which still has to be started
+	 */
+	public LoopbackClient connect() {
+		LoopbackConnection connection = new LoopbackConnection(this,
+				nextId.getAndIncrement());
+		connections.put(connection.getId(), connection);
+
+		for (ConnectionListener listener : connectionListeners) {
+			listener.connectionAdded(this, connection);
+		}
+
+		return connection.getClient();
+	}
+
+	void remove(LoopbackConnection connection) {
+		if (connections.remove(connection.getId()) != null) {
+			for (ConnectionListener listener : connectionListeners) {
+				listener.connectionRemoved(this, connection);
+			}
+		}
+	}
+
+	void receive(LoopbackConnection source, Message message) {
+		listenerRegistry.messageReceived(source, message);
+	}
+
+	@Override
+	public String getGameName() {
+		return "loopback";
+	}
+
+	@Override
+	public int getVersion() {
+		return 0;
+	}
+
+	@Override
+	public HostedServiceManager getServices() {
+		return null;
+	}
+
+	@Override
+	public void broadcast(Message message) {
+		broadcast(null, message);
+	}
+
+	@Override
+	public void broadcast(Filter<? super HostedConnection> filter,
+			Message message) {
+		for (LoopbackConnection connection : connections.values()) {
+			if (filter == null || filter.apply(connection)) {
+				connection.send(message);
+			}
+		}
+	}
+
+	@Override
+	public void broadcast(int channel,
+			Filter<? super HostedConnection> filter, Message message) {
+		broadcast(filter, message);
+	}
+
+	@Override
+	public void start() {
+		running = true;
+	}
+
+	/**
+	 * Adds a channel. All channels of a loopback network behave the same: a
+	 * message is sent reliably if it is marked reliable.
+	 */
+	@Override
+	public synchronized int addChannel(int port) {
+		return numChannels++;
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		for (LoopbackConnection connection : new ArrayList<>(
+				connections.values())) {
+			connection.close("Server closed");
+		}
+	}
+
+	@Override
+	public HostedConnection getConnection(int id) {
+		return connections.get(id);
+	}
+
+	@Override
+	public Collection<HostedConnection> getConnections() {
+		return Collections.<HostedConnection> unmodifiableCollection(new ArrayList<>(
+				connections.values()));
+	}
+
+	@Override
+	public boolean hasConnections() {
+		return !connections.isEmpty();
+	}
+
+	@Override
+	public void addConnectionListener(ConnectionListener listener) {
+		connectionListeners.add(listener);
+	}
+
+	@Override
+	public void removeConnectionListener(ConnectionListener listener) {
+		connectionListeners.remove(listener);
+	}
+
+	@Override
+	public void addMessageListener(
+			MessageListener<? super HostedConnection> listener) {
+		listenerRegistry.addMessageListener(listener);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes") // the signature of the interface
+	public void addMessageListener(
+			MessageListener<? super HostedConnection> listener,
+			Class... classes) {
+		listenerRegistry.addMessageListener(listener, classes);
+	}
+
+	@Override
+	public void removeMessageListener(
+			MessageListener<? super HostedConnection> listener) {
+		listenerRegistry.removeMessageListener(listener);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes") // the signature of the interface
+	public void removeMessageListener(
+			MessageListener<? super HostedConnection> listener,
+			Class... classes) {
+		listenerRegistry.removeMessageListener(listener, classes);
+	}
+}
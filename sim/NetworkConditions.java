@@ -0,0 +1,96 @@
+package sim;
+
+/**
+ * The conditions of a simulated network link: the one-way latency and its
+ * jitter, and the probabilities that an unreliable message is lost,
+ * reordered or duplicated. Reliable messages are delayed, but always arrive
+ * once and in order, like on a TCP connection.
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class NetworkConditions {
+	private volatile int latency;
+	private volatile int jitter;
+	private volatile double loss;
+	private volatile double reordering;
+	private volatile double duplication;
+
+	/**
+	 * Creates a perfect link, without latency or loss.
+	 */
+	public NetworkConditions() {
+		this(0, 0, 0, 0, 0);
+	}
+
+	/**
+	 * Creates a link with the given conditions.
+	 * 
+	 * @param latency
+	 *            One-way latency in milliseconds
+	 * @param jitter
+	 *            Maximum random delay on top of the latency in milliseconds
+	 * @param loss
+	 *            Probability that a message is lost
+	 * @param reordering
+	 *            Probability that a message is held back for another
+	 *            latency, so that later messages overtake it
+	 * @param duplication
+	 *            Probability that a message arrives twice
+	 */
+	public NetworkConditions(int latency, int jitter, double loss,
+			double reordering, double duplication) {
+		this.latency = latency;
+		this.jitter = jitter;
+		this.loss = loss;
+		this.reordering = reordering;
+		this.duplication = duplication;
+	}
+
+	public int getLatency() {
+		return latency;
+	}
+
+	public void setLatency(int latency) {
+		this.latency = latency;
+	}
+
+	public int getJitter() {
+		return jitter;
+	}
+
+	public void setJitter(int jitter) {
+		this.jitter = jitter;
+	}
+
+	public double getLoss() {
+		return loss;
+	}
+
+	public void setLoss(double loss) {
+		this.loss = loss;
+	}
+
+	public double getReordering() {
+		return reordering;
+	}
+
+	public void setReordering(double reordering) {
+		this.reordering = reordering;
+	}
+
+	public double getDuplication() {
+		return duplication;
+	}
+
+	public void setDuplication(double duplication) {
+		this.duplication = duplication;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"latency %d ms, jitter %d ms, loss %.3f, reordering %.3f, duplication %.3f",
+				latency, jitter, loss, reordering, duplication);
+	}
+}
@@ -0,0 +1,108 @@
+package sim;
+
+import com.jme3.network.Filters;
+
+import diff.ServerDiffHandler;
+import diff.ServerMetrics;
+import example.GameStateMessage;
+
+/**
+ * Checks the dispatch pipeline of {@link ServerDiffHandler#setPipelined(int)}
+ * over a {@link LoopbackNetwork}: the same ticks are dispatched on the
+ * calling thread and on the pipeline thread, which sends while the calling
+ * thread advances the network and runs the clients. The ticks are paced in
+ * real time, so that the pipeline thread can keep up. Every few seconds a
+ * burst of ticks is dispatched at once, which fills the queue, so that ticks
+ * are dropped. The time the dispatching thread spends per tick, the dropped
+ * ticks and the correctness of every received state are reported.
+ * <p>
+ * Usage: {@code PipelineCheck [clients] [stateSize] [queueCapacity]}
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class PipelineCheck {
+	private static final int TICKS = 200;
+	/** Number of ticks between two bursts */
+	private static final int BURST_PERIOD = 50;
+	/** Number of ticks that are dispatched at once in a burst */
+	private static final int BURST_SIZE = 20;
+	private static final String ROW = "%8d %12.1f %12.1f %12.1f %8d %10d %10d";
+
+	/**
+	 * Runs the ticks with or without a pipeline and prints the results.
+	 * 
+	 * @return The number of failures: incorrect states, or 1 if no state was
+	 *         checked
+	 */
+	private static long run(int numClients, int floats, int queueCapacity)
+			throws InterruptedException {
+		LoopbackNetwork network = CheckHarness.createNetwork();
+		LoopbackServer server = network.createServer();
+		ServerDiffHandler<GameStateMessage> serverHandler = new ServerDiffHandler<>(
+				server);
+		serverHandler.setPipelined(queueCapacity);
+		server.start();
+
+		int numStates = TICKS + TICKS / BURST_PERIOD * BURST_SIZE;
+		GameStateMessage[] sent = new GameStateMessage[numStates];
+		CheckHarness.Verifier verifier = new CheckHarness.Verifier(sent);
+
+		for (int i = 0; i < numClients; i++) {
+			CheckHarness.connect(server, verifier);
+		}
+
+		int state = 0;
+		for (int tick = 0; tick < TICKS; tick++) {
+			long start = System.nanoTime();
+			int burst = tick % BURST_PERIOD == BURST_PERIOD / 2 ? BURST_SIZE
+					: 1;
+			for (int i = 0; i < burst; i++) {
+				sent[state] = LoadGenerator.createState(floats, state);
+
+				serverHandler.dispatchMessage(server,
+						Filters.in(server.getConnections()), sent[state]);
+				state++;
+			}
+
+			network.advance(CheckHarness.TICK_INTERVAL);
+
+			long left = CheckHarness.TICK_INTERVAL - (System.nanoTime() - start) / 1000000;
+			if (left > 0) {
+				Thread.sleep(left);
+			}
+		}
+
+		/* Send the queued ticks and deliver them */
+		serverHandler.setPipelined(0);
+		network.advance(1000);
+
+		ServerMetrics metrics = serverHandler.getMetrics();
+		System.out.println(String.format(ROW, queueCapacity, metrics
+				.getDispatchLatency().getP99Micros(), metrics
+				.getGenerateLatency().getMeanMicros(), metrics
+				.getSendLatency().getMeanMicros(), metrics.getDroppedTicks(),
+				verifier.getChecked(), verifier.getIncorrect()));
+
+		return verifier.getIncorrect() + (verifier.getChecked() == 0 ? 1 : 0);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int stateSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+		int queueCapacity = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+		CheckHarness.registerClasses();
+
+		System.out.println(clients + " clients, state of " + stateSize
+				+ " bytes, a burst of " + BURST_SIZE + " ticks every "
+				+ BURST_PERIOD + " ticks");
+		CheckHarness.printHeader(ROW, "queue", "p99 (us)", "gen (us)",
+				"send (us)", "dropped", "checked", "incorrect");
+
+		int floats = LoadGenerator.getFloats(stateSize);
+		long failures = run(clients, floats, 0)
+				+ run(clients, floats, queueCapacity);
+		CheckHarness.finish(failures);
+	}
+}
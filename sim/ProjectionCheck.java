@@ -0,0 +1,145 @@
+package sim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jme3.network.Client;
+import com.jme3.network.Filters;
+import com.jme3.network.HostedConnection;
+
+import diff.ServerDiffHandler;
+import diff.ServerMetrics;
+import diff.ViewProjection;
+import example.GameStateMessage;
+
+/**
+ * Checks a {@link ViewProjection} with many more views than the history of
+ * the server has messages, over a {@link LoopbackNetwork}. Every client has a
+ * view of its own and some clients move to another view now and then. The
+ * history lookups, the number of full and delta messages and the correctness
+ * of every received state, compared with the projection of the view the
+ * state was sent in, are reported.
+ * <p>
+ * Usage: {@code ProjectionCheck [clients] [stateSize]}
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class ProjectionCheck {
+	private static final int TICKS = 200;
+	/** Number of ticks between two moves of a client */
+	private static final int MOVE_PERIOD = 40;
+	/** One in this many floats is hidden from a view */
+	private static final int HIDDEN_PERIOD = 5;
+	private static final String ROW = "%8d %10d %10d %10d %10d %10d %10d";
+
+	/**
+	 * Hides a different part of the state from every view. The tick in the
+	 * first float is always visible.
+	 */
+	private static class Projection implements
+			ViewProjection<GameStateMessage, Integer> {
+		private final int[] views;
+
+		public Projection(int[] views) {
+			this.views = views;
+		}
+
+		@Override
+		public Integer getView(HostedConnection connection) {
+			return views[connection.getId()];
+		}
+
+		@Override
+		public GameStateMessage project(GameStateMessage message, Integer view) {
+			List<Float> position = new ArrayList<>(message.getPosition());
+			for (int i = 1; i < position.size(); i++) {
+				if ((i + view) % HIDDEN_PERIOD == 0) {
+					position.set(i, 0f);
+				}
+			}
+
+			return new GameStateMessage(message.getName(), position,
+					message.getOrientation(), message.getId());
+		}
+	}
+
+	/**
+	 * Runs the ticks and prints the results.
+	 * 
+	 * @return The number of failures: incorrect states, or 1 if no state was
+	 *         checked or the history was missed more often than it was found
+	 */
+	private static long run(int numClients, int floats) {
+		LoopbackNetwork network = CheckHarness.createNetwork();
+		LoopbackServer server = network.createServer();
+		ServerDiffHandler<GameStateMessage> serverHandler = new ServerDiffHandler<>(
+				server);
+		final int[] views = new int[numClients];
+		final Projection projection = new Projection(views);
+		serverHandler.setProjection(projection);
+		server.start();
+
+		final GameStateMessage[] sent = new GameStateMessage[TICKS];
+		/* The view every client had in every tick, by connection id */
+		final int[][] sentViews = new int[numClients][TICKS];
+
+		/* A state is compared with the projection for the view of its tick */
+		CheckHarness.Verifier verifier = new CheckHarness.Verifier(sent) {
+			@Override
+			protected GameStateMessage getExpected(Client source, int tick) {
+				int index = ((LoopbackClient) source).getConnection().getId();
+				return projection.project(sent[tick], sentViews[index][tick]);
+			}
+		};
+
+		for (int i = 0; i < numClients; i++) {
+			views[i] = i;
+			CheckHarness.connect(server, verifier);
+		}
+
+		for (int tick = 0; tick < TICKS; tick++) {
+			/* A different client moves to the next view every few ticks */
+			if (tick > 0 && tick % (MOVE_PERIOD / 4) == 0) {
+				int mover = tick / (MOVE_PERIOD / 4) % numClients;
+				views[mover] = (views[mover] + 1) % numClients;
+			}
+
+			for (int i = 0; i < numClients; i++) {
+				sentViews[i][tick] = views[i];
+			}
+
+			sent[tick] = LoadGenerator.createState(floats, tick);
+			serverHandler.dispatchMessage(server,
+					Filters.in(server.getConnections()), sent[tick]);
+			network.advance(CheckHarness.TICK_INTERVAL);
+		}
+
+		network.advance(1000);
+
+		ServerMetrics metrics = serverHandler.getMetrics();
+		System.out.println(String.format(ROW, numClients,
+				metrics.getHistoryHits(), metrics.getHistoryMisses(),
+				metrics.getFullMessages(), metrics.getDeltaMessages(),
+				verifier.getChecked(), verifier.getIncorrect()));
+
+		return verifier.getIncorrect()
+				+ (verifier.getChecked() == 0
+						|| metrics.getHistoryHits() < metrics
+								.getHistoryMisses() ? 1 : 0);
+	}
+
+	public static void main(String[] args) {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int stateSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+
+		CheckHarness.registerClasses();
+
+		System.out.println(clients + " clients with their own view, state of "
+				+ stateSize + " bytes, a history of 20 messages");
+		CheckHarness.printHeader(ROW, "views", "hits", "misses", "full",
+				"delta", "checked", "incorrect");
+
+		CheckHarness.finish(run(clients, LoadGenerator.getFloats(stateSize)));
+	}
+}
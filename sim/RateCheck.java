@@ -0,0 +1,73 @@
+package sim;
+
+import java.util.Random;
+
+import diff.RateController;
+
+/**
+ * Checks the snapshot rate that a {@link RateController} achieves when the
+ * ticks of the game are not evenly spaced. The controller is driven by ticks
+ * with a random jitter, and the number of messages it lets through is
+ * compared with the configured snapshot rate.
+ * <p>
+ * Usage: {@code RateCheck [tickRate] [jitterMillis]}
+ *
+ * @author Ben Ruijl
+ *
+ */
+public class RateCheck {
+	private static final long MILLI = 1000000L;
+	private static final long SECOND = 1000 * MILLI;
+	private static final int SECONDS = 60;
+	private static final int[] SNAPSHOT_RATES = { 5, 10, 15, 20 };
+	/** Largest relative difference between the achieved and the set rate */
+	private static final double TOLERANCE = 0.02;
+	private static final String ROW = "%8d %10.2f %10.2f";
+
+	/**
+	 * Drives a controller with jittered ticks and prints the achieved rate.
+	 *
+	 * @return 1 if the achieved rate is off, else 0
+	 */
+	private static int run(int tickRate, long jitter, int snapshotRate,
+			Random random) {
+		RateController controller = new RateController(snapshotRate, 0);
+		long tickInterval = SECOND / tickRate;
+		long start = SECOND; // nanoTime may have any origin
+		int ticks = SECONDS * tickRate;
+		int sent = 0;
+
+		for (int tick = 0; tick < ticks; tick++) {
+			long now = start + tick * tickInterval
+					+ (long) ((random.nextDouble() * 2 - 1) * jitter);
+			if (controller.shouldSend(now, 0, -1)) {
+				controller.registerSent(now, 100);
+				sent++;
+			}
+		}
+
+		double expected = Math.min(snapshotRate, tickRate);
+		double achieved = sent / (double) SECONDS;
+		System.out.println(String.format(ROW, snapshotRate, expected,
+				achieved));
+
+		return Math.abs(achieved - expected) > expected * TOLERANCE ? 1 : 0;
+	}
+
+	public static void main(String[] args) {
+		int tickRate = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		long jitter = (args.length > 1 ? Long.parseLong(args[1]) : 1) * MILLI;
+
+		System.out.println(tickRate + " ticks per second, jitter of "
+				+ jitter / MILLI + " ms, " + SECONDS + " seconds");
+		CheckHarness.printHeader(ROW, "rate", "expected", "achieved");
+
+		Random random = new Random(42);
+		int failures = 0;
+		for (int snapshotRate : SNAPSHOT_RATES) {
+			failures += run(tickRate, jitter, snapshotRate, random);
+		}
+
+		CheckHarness.finish(failures);
+	}
+}
@@ -0,0 +1,116 @@
+package sim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jme3.network.Filters;
+
+import diff.Relay;
+import diff.ServerDiffHandler;
+import example.GameStateMessage;
+
+/**
+ * Checks a chain of {@link Relay}s over a {@link LoopbackNetwork}: the server
+ * has only the first relay as client, every relay serves the next relay and
+ * a number of spectators, and every relay holds the states back for a delay.
+ * The server publishes a static baseline, which has to reach the spectators
+ * of every relay. The lag of the spectators behind the server, the bytes the
+ * server sends, the baseline lookups of every relay and the correctness of
+ * every received state are reported.
+ * <p>
+ * Usage: {@code RelayCheck [relays] [spectators] [delayMillis] [stateSize]}
+ * 
+ * @author Ben Ruijl
+ * 
+ */
+public class RelayCheck {
+	private static final int TICKS = 400;
+	private static final String ROW = "%8d %10d %10d %10d %10d %10d";
+
+	public static void main(String[] args) {
+		int numRelays = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int spectators = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		long delay = args.length > 2 ? Long.parseLong(args[2]) : 500;
+		int stateSize = args.length > 3 ? Integer.parseInt(args[3]) : 2048;
+
+		CheckHarness.registerClasses();
+
+		/* Relays are close to each other */
+		NetworkConditions conditions = CheckHarness.createConditions();
+		conditions.setLatency(20);
+		conditions.setJitter(5);
+		LoopbackNetwork network = new LoopbackNetwork(conditions);
+		LoopbackServer origin = network.createServer();
+		ServerDiffHandler<GameStateMessage> serverHandler = new ServerDiffHandler<>(
+				origin);
+		origin.start();
+
+		int floats = LoadGenerator.getFloats(stateSize);
+		serverHandler.setBaseline(origin, LoadGenerator.createState(floats, 0));
+
+		GameStateMessage[] sent = new GameStateMessage[TICKS];
+		List<Relay<GameStateMessage>> relays = new ArrayList<>(numRelays);
+		/* The spectators of every relay share a verifier */
+		List<CheckHarness.Verifier> verifiers = new ArrayList<>(numRelays);
+		List<LoopbackClient> upstreamClients = new ArrayList<>(numRelays);
+		LoopbackServer upstream = origin;
+
+		for (int r = 0; r < numRelays; r++) {
+			LoopbackClient client = upstream.connect();
+			LoopbackServer server = network.createServer();
+			Relay<GameStateMessage> relay = new Relay<>(client, server,
+					GameStateMessage.class, (short) 32);
+			relay.setDelay(delay * 1000000L);
+			server.start();
+			client.start();
+			relays.add(relay);
+			upstreamClients.add(client);
+			upstream = server;
+
+			CheckHarness.Verifier verifier = new CheckHarness.Verifier(sent);
+			verifiers.add(verifier);
+			for (int i = 0; i < spectators; i++) {
+				CheckHarness.connect(server, verifier);
+			}
+		}
+
+		for (int tick = 0; tick < TICKS; tick++) {
+			sent[tick] = LoadGenerator.createState(floats, tick);
+			serverHandler.dispatchMessage(origin,
+					Filters.in(origin.getConnections()), sent[tick]);
+			network.advance(CheckHarness.TICK_INTERVAL);
+
+			for (Relay<GameStateMessage> relay : relays) {
+				relay.update(network.getTime() * 1000000L);
+			}
+		}
+
+		System.out.println(numRelays + " relays with " + spectators
+				+ " spectators each, a delay of " + delay
+				+ " ms per relay, state of " + stateSize + " bytes");
+		System.out.println("server connections "
+				+ origin.getConnections().size() + ", bytes sent "
+				+ upstreamClients.get(0).getBytesReceived());
+		CheckHarness.printHeader(ROW, "relay", "lag", "forwarded", "lookups",
+				"received", "incorrect");
+
+		long failures = 0;
+		for (int r = 0; r < numRelays; r++) {
+			Relay<GameStateMessage> relay = relays.get(r);
+			CheckHarness.Verifier verifier = verifiers.get(r);
+			long baselineLookups = relay.getDownstream().getMetrics()
+					.getBaselineLookups();
+			System.out.println(String.format(ROW, r,
+					TICKS - 1 - verifier.getNewest(), relay.getForwarded(),
+					baselineLookups, verifier.getChecked(),
+					verifier.getIncorrect()));
+
+			failures += verifier.getIncorrect();
+			if (verifier.getChecked() == 0 || baselineLookups == 0) {
+				failures++;
+			}
+		}
+
+		CheckHarness.finish(failures);
+	}
+}